@@ -26,20 +26,26 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import static android.content.Context.BLUETOOTH_SERVICE;
-import static com.sneakysquid.nova.link.Debug.assertOnUiThread;
 import static com.sneakysquid.nova.link.Debug.debug;
 
 /**
@@ -51,32 +57,153 @@ import static com.sneakysquid.nova.link.Debug.debug;
  */
 public class BluetoothLENovaLink implements NovaLink {
 
-    private static class Cmd {
-        int requestId;
-        String msg;
-        NovaCompletionCallback callback;
-    }
-
     private static final int SCAN_INTERVAL = 1000; // How long between scans, in millis.
     private static final int SCAN_DURATION = 500; // How long to scan for, in millis.
-    private static final int ACK_TIMEOUT = 2000; // How long before we give up waiting for ack from device, in millis.
+    private static final int RECONNECT_ATTEMPTS = 5; // Direct reconnects to a lost device before going back to scanning.
+    private static final int RECONNECT_BASE_DELAY = 250; // Backoff after the first (immediate) reconnect fails, in millis. Doubles each time.
+    private static final int RECONNECT_MAX_DELAY = 4000; // Cap on reconnect backoff, in millis.
+    private static final int RECONNECT_TIMEOUT = 3000; // How long a reconnect attempt may take to get Ready, in millis.
+    private static final int HEALTH_MIN_INTERVAL = 2000; // Health check interval while degraded or just connected, in millis.
+    private static final int HEALTH_MAX_INTERVAL = 16000; // Health check interval backs off to this while healthy, in millis.
+    private static final int HEALTH_QUIET_PERIOD = 1000; // Health checks wait for this long after any cmd traffic, in millis.
+    private static final int NEGOTIATE_TIMEOUT = 1000; // How long to wait for a capability reply before assuming old firmware, in millis.
+    private static final int LATENCY_IDLE = 10000; // Preview with no flash for this long drops out of low latency, in millis.
+    private static final int RSSI_TIMEOUT = 1000; // How long to hold pings for an RSSI read, in millis.
+    private static final int HEALTH_DEGRADED = 40; // Link quality below this is degraded.
+    private static final int HEALTH_RECOVERED = 60; // Link quality at or above this is healthy again.
 
     private static final UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
-    private static final int PARSE_FAILED = -1;
+    private static final Method REQUEST_CONNECTION_PRIORITY = findRequestConnectionPriority();
+
+    // Trace section/event names. See NovaTrace.
+    private static final String TRACE_SCAN = "Nova scan";
+    private static final String TRACE_CONNECT = "Nova connect";
+    private static final String TRACE_DISCOVER = "Nova discover services";
+    private static final String TRACE_NEGOTIATE = "Nova negotiate";
+    private static final String TRACE_ACK = "Nova ack";
+    private static final String TRACE_STATUS = "Nova status callbacks";
 
-    private final Activity activity;
+    private final Context context;
     private final Set<NovaLinkStatusCallback> linkStatusCallbacks = new HashSet<NovaLinkStatusCallback>();
+    private final NovaLinkMetrics metrics = new NovaLinkMetrics();
+    private final NovaLinkHealth health = new NovaLinkHealth(NovaCommandEngine.ACK_TIMEOUT);
 
     private boolean enabled = false;
-    private int nextRequestId = 0;
-    private NovaLinkStatus status = NovaLinkStatus.Disabled;
-    private final LinkedList<Cmd> awaitingSend = new LinkedList<Cmd>();
-    private Cmd awaitingAck = null;
+    private volatile NovaLinkStatus status = NovaLinkStatus.Disabled; // Written on link's thread, read from any.
+    private final Handler handler;
+    private final NovaClock clock;
+    private final NovaCommandEngine engine;
+    private final NovaSubmissionQueue submissions = new NovaSubmissionQueue();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drainSubmissions();
+        }
+    };
     private final AtomicBoolean startScanTimerAllow = new AtomicBoolean();
     private final AtomicBoolean stopScanTimerAllow = new AtomicBoolean();
-    private final AtomicBoolean ackTimerAllow = new AtomicBoolean();
+    private final Runnable scanTimer = new Runnable() {
+        @Override
+        public void run() {
+            if (startScanTimerAllow.get() /* don't reset, want to repeat */) {
+                startScan();
+                handler.postDelayed(this, SCAN_INTERVAL); // Repeat
+            }
+        }
+    };
+    private final BroadcastReceiver adapterStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // Registered with the link's Handler, so this is on the link's thread.
+            onAdapterStateChanged(intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR));
+        }
+    };
+    private final AtomicBoolean reconnectTimerAllow = new AtomicBoolean();
+    private final Runnable reconnectTimer = new Runnable() {
+        @Override
+        public void run() {
+            if (reconnectTimerAllow.getAndSet(false)) {
+                reconnect();
+            }
+        }
+    };
+    private final Runnable reconnectTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (reconnectDevice != null && status == NovaLinkStatus.Connecting) {
+                // A direct connect to a device that's out of range can take ~30s to fail by itself.
+                debug("reconnect attempt %d timed out", reconnectAttempt);
+                connectFailed();
+            }
+        }
+    };
+    private final Random reconnectJitter = new Random();
+    private BluetoothDevice reconnectDevice; // Device lost mid-session, that we're reconnecting to directly.
+    private int reconnectAttempt;
+    private long linkLostNanos; // When the link was lost, or 0 if it hasn't been since last Ready.
+    private final AtomicBoolean healthTimerAllow = new AtomicBoolean();
+    private final Runnable healthTimer = new Runnable() {
+        @Override
+        public void run() {
+            if (healthTimerAllow.getAndSet(false)) {
+                checkHealth();
+            }
+        }
+    };
+    private final Runnable rssiTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (rssiPending) {
+                debug("RSSI read timed out");
+                onRssiRead(0, false);
+            }
+        }
+    };
+    private final Runnable negotiateTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (negotiating) {
+                debug("no capability reply, assuming text protocol");
+                negotiatedProtocols.put(activeDevice.getAddress(), NovaProtocol.Text);
+                onLinkReady(NovaProtocol.Text);
+            }
+        }
+    };
+    private boolean binaryProtocolEnabled = true;
+    private boolean writeWithoutResponse = false;
+    private boolean lastWriteWithoutResponse; // Mode used for the cmd awaiting ack.
+    private boolean negotiating = false; // Connected, waiting for capability reply.
+    // By device address. Older firmware never replies, so it isn't asked again, and doesn't cost
+    // every reconnect NEGOTIATE_TIMEOUT.
+    private final Map<String, NovaProtocol> negotiatedProtocols = new HashMap<String, NovaProtocol>();
+    private final AtomicBoolean latencyTimerAllow = new AtomicBoolean();
+    private final Runnable latencyTimer = new Runnable() {
+        @Override
+        public void run() {
+            if (latencyTimerAllow.getAndSet(false)) {
+                checkLatencyIdle();
+            }
+        }
+    };
+    private NovaLatencyMode latencyMode = NovaLatencyMode.Balanced;
+    private NovaLatencyMode appliedLatencyMode; // As last requested of the connection, or null if not (yet).
+    private boolean previewActive = false;
+    private boolean latencyBoosted = false; // Preview active, and a flash requested recently.
+    private long lastFlashMillis; // uptimeMillis of last flash/off request.
+    private boolean healthMonitorEnabled = false;
+    private NovaLinkHealthListener healthListener;
+    private int healthInterval = HEALTH_MIN_INTERVAL;
+    private boolean rssiPending = false; // GATT only does one op at a time, so pings are held while set.
+    private boolean linkDegraded = false;
+    private long lastTrafficMillis; // uptimeMillis of last cmd write or ack.
+    private BluetoothManager bluetoothManager; // Looked up once, on first enable().
     private BluetoothAdapter bluetoothAdapter;
+    private boolean radioOn = false; // Tracked from ACTION_STATE_CHANGED broadcasts while enabled.
+    private boolean enableRadioRequested = false; // Only ask the user to turn on Bluetooth once per enable().
+    private String connectPhase; // Async trace event for the current connection phase, or null.
+    private NovaSessionRecorder recorder;
     private BluetoothAdapter.LeScanCallback currentScan;
     private int strongestSignalRSSI;
     private BluetoothDevice strongestSignalDevice;
@@ -86,10 +213,26 @@ public class BluetoothLENovaLink implements NovaLink {
     private BluetoothGattCharacteristic responseCharacteristic;
 
     /**
-     * @param activity Main Android Activity for this app.
+     * @param context Main Android Activity for this app, or the application context for a link
+     *                that outlives Activities (see {@link NovaLinkManager}).
+     */
+    public BluetoothLENovaLink(Context context) {
+        this(context, Looper.getMainLooper());
+    }
+
+    /**
+     * Run the link on looper's thread rather than the main thread, e.g. a HandlerThread owned by
+     * the app, so a busy UI doesn't hold up flashes. The link is then used from that thread (see
+     * {@link NovaLink}), and dispatches all its callbacks there.
+     *
+     * @param context Main Android Activity for this app, or the application context.
+     * @param looper  Looper of the thread to run the link on.
      */
-    public BluetoothLENovaLink(Activity activity) {
-        this.activity = activity;
+    public BluetoothLENovaLink(Context context, Looper looper) {
+        this.context = context;
+        this.handler = new Handler(looper);
+        this.clock = NovaClock.of(handler);
+        this.engine = new NovaCommandEngine(new CommandHost(), clock, metrics);
     }
 
     /**
@@ -104,10 +247,23 @@ public class BluetoothLENovaLink implements NovaLink {
         debug("status = " + newStatus);
         if (newStatus != status) {
             status = newStatus;
+            if (recorder != null) {
+                recorder.onStatus(newStatus);
+            }
+            // Snapshot, as callbacks may register/unregister callbacks (e.g. NovaAsyncLink).
+            NovaLinkStatusCallback[] callbacks;
             synchronized (linkStatusCallbacks) {
-                for (NovaLinkStatusCallback linkStatusCallback : linkStatusCallbacks) {
+                callbacks = linkStatusCallbacks.toArray(new NovaLinkStatusCallback[linkStatusCallbacks.size()]);
+            }
+            boolean trace = NovaTrace.begin(TRACE_STATUS);
+            try {
+                for (NovaLinkStatusCallback linkStatusCallback : callbacks) {
                     linkStatusCallback.onNovaLinkStatusChange(newStatus);
                 }
+            } finally {
+                if (trace) {
+                    NovaTrace.end();
+                }
             }
         }
     }
@@ -132,12 +288,191 @@ public class BluetoothLENovaLink implements NovaLink {
         }
     }
 
+    /**
+     * Limit how many commands may wait to be sent (not counting the one awaiting ack), and what
+     * happens to new commands beyond that. If the device stalls, a low limit stops commands
+     * piling up behind it, each waiting out its own ack timeout in turn.
+     * <p/>
+     * Default is 31 with {@link NovaQueuePolicy#RejectNew}.
+     *
+     * @param limit  Max queued commands, 1 to 31.
+     * @param policy What to do with a new command when the limit is reached.
+     * @see #setQueueListener(NovaQueueListener)
+     */
+    public void setQueueLimit(int limit, NovaQueuePolicy policy) {
+        assertOnLinkThread();
+
+        engine.setQueueLimit(limit, policy);
+    }
+
+    /**
+     * Listener for the queue reaching its limit, and draining again. May be null.
+     *
+     * @see #setQueueLimit(int, NovaQueuePolicy)
+     */
+    public void setQueueListener(NovaQueueListener listener) {
+        assertOnLinkThread();
+
+        engine.setQueueListener(listener);
+    }
+
+    /**
+     * Whether to offer the compact binary protocol to devices when connecting. Devices with
+     * older firmware carry on using the text protocol either way, and once found not to reply,
+     * aren't asked again by this link. Takes effect on the next connection.
+     * <p/>
+     * Default is enabled.
+     */
+    public void setBinaryProtocolEnabled(boolean enabled) {
+        assertOnLinkThread();
+
+        this.binaryProtocolEnabled = enabled;
+    }
+
+    /**
+     * @return Whether the current connection uses the compact binary protocol.
+     */
+    public boolean isBinaryProtocol() {
+        return engine.getProtocol() == NovaProtocol.Binary;
+    }
+
+    /**
+     * Write cmds without waiting for the device to confirm each write at the link layer, where
+     * the device supports it. Every cmd is acked by the device anyway, so the write response
+     * just adds a round trip before the flash fires. Unacked cmds still time out and fail as
+     * usual.
+     * <p/>
+     * Default is disabled. Compare ack round trips in each mode with {@link #getMetrics()}.
+     */
+    public void setWriteWithoutResponse(boolean enabled) {
+        assertOnLinkThread();
+
+        this.writeWithoutResponse = enabled;
+        if (status == NovaLinkStatus.Ready) {
+            applyWriteType();
+        }
+    }
+
+    /**
+     * Record the session to recorder, for replaying with {@link NovaSessionReplayer}, e.g. to
+     * reproduce a field bug. May be null to stop recording.
+     */
+    public void setSessionRecorder(NovaSessionRecorder recorder) {
+        assertOnLinkThread();
+
+        this.recorder = recorder;
+        engine.setRecorder(recorder);
+        if (recorder != null) {
+            recorder.onStatus(status);
+            recorder.onWriteHeld(rssiPending);
+        }
+    }
+
+    /**
+     * @see NovaLink#setLatencyMode(NovaLatencyMode)
+     */
+    @Override
+    public void setLatencyMode(NovaLatencyMode mode) {
+        assertOnLinkThread();
+
+        if (mode == null) {
+            throw new IllegalArgumentException("mode must not be null");
+        }
+        latencyMode = mode;
+        applyLatencyMode();
+    }
+
+    /**
+     * @see NovaLink#setPreviewActive(boolean)
+     */
+    @Override
+    public void setPreviewActive(boolean active) {
+        assertOnLinkThread();
+
+        if (active == previewActive) {
+            return;
+        }
+        previewActive = active;
+        if (active) {
+            lastFlashMillis = SystemClock.uptimeMillis();
+            boostLatency();
+        } else {
+            latencyBoosted = false;
+            latencyTimerAllow.set(false);
+            handler.removeCallbacks(latencyTimer);
+            applyLatencyMode();
+        }
+    }
+
+    /**
+     * Periodically check the health of a Ready link, by reading its signal strength and pinging
+     * it if it's been idle. Without this, a dead link is only noticed when a flash times out.
+     * <p/>
+     * Checks only happen once the link has been quiet for a while, and a flash sent during a
+     * check abandons its signal strength read rather than waiting for it, so they don't hold up
+     * flashes. Checks are frequent while degraded or just connected, backing off while the link
+     * stays healthy.
+     * <p/>
+     * Default is disabled.
+     *
+     * @see #setHealthListener(NovaLinkHealthListener)
+     */
+    public void setHealthMonitorEnabled(boolean enabled) {
+        assertOnLinkThread();
+
+        if (enabled == healthMonitorEnabled) {
+            return;
+        }
+        healthMonitorEnabled = enabled;
+        if (!enabled) {
+            stopHealthMonitor();
+        } else if (status == NovaLinkStatus.Ready) {
+            healthInterval = HEALTH_MIN_INTERVAL;
+            scheduleHealthCheck(HEALTH_MIN_INTERVAL);
+        }
+    }
+
+    /**
+     * Listener for link quality degrading, and recovering again. May be null.
+     * <p/>
+     * Quality is scored from every ack (and timeout), so this works without the health monitor,
+     * but the monitor notices a failing link sooner if the app is idle.
+     *
+     * @see #setHealthMonitorEnabled(boolean)
+     */
+    public void setHealthListener(NovaLinkHealthListener listener) {
+        assertOnLinkThread();
+
+        this.healthListener = listener;
+    }
+
+    /**
+     * @return Rolling quality of the current link, 0 (dead) to 100 (perfect).
+     */
+    public int getLinkQuality() {
+        return health.getQuality();
+    }
+
+    /**
+     * Live statistics for this link, e.g. queue depth.
+     */
+    public NovaLinkMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return Clock whose timers run on this link's thread, e.g. for {@link NovaFuture} timeouts.
+     */
+    NovaClock getClock() {
+        return clock;
+    }
+
     /**
      * @see NovaLink#enable()
      */
     @Override
     public void enable() {
-        assertOnUiThread();
+        assertOnLinkThread();
         debug("enable()");
 
         if (enabled) {
@@ -145,20 +480,20 @@ public class BluetoothLENovaLink implements NovaLink {
         }
         enabled = true;
 
-        setStatus(NovaLinkStatus.Idle);
+        if (bluetoothManager == null) {
+            bluetoothManager = (BluetoothManager) context.getSystemService(BLUETOOTH_SERVICE);
+            bluetoothAdapter = (bluetoothManager == null) ? null : bluetoothManager.getAdapter();
+        }
 
-        startScanTimerAllow.set(true);
-        new Handler().postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                if (startScanTimerAllow.get() /* don't reset, want to repeat */) {
-                    startScan();
-                    new Handler().postDelayed(this, SCAN_INTERVAL); // Repeat
-                }
-            }
-        }, SCAN_INTERVAL);
+        // Follow the radio being turned on/off, rather than polling for it on every scan.
+        context.registerReceiver(adapterStateReceiver, new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED),
+                null, handler);
 
-        startScan();
+        if (bluetoothAdapter != null && bluetoothAdapter.isEnabled()) {
+            onRadioOn();
+        } else {
+            onRadioOff();
+        }
     }
 
     /**
@@ -166,7 +501,7 @@ public class BluetoothLENovaLink implements NovaLink {
      */
     @Override
     public void disable() {
-        assertOnUiThread();
+        assertOnLinkThread();
         debug("disable()");
 
         if (!enabled) {
@@ -174,19 +509,24 @@ public class BluetoothLENovaLink implements NovaLink {
         }
         enabled = false;
 
+        context.unregisterReceiver(adapterStateReceiver);
+        radioOn = false;
+        enableRadioRequested = false;
+        stopReconnecting();
+        linkLostNanos = 0;
+
         disconnect();
         stopScan();
 
-        startScanTimerAllow.set(false);
+        stopScanTimer();
         stopScanTimerAllow.set(false);
-        ackTimerAllow.set(false);
 
         setStatus(NovaLinkStatus.Disabled);
     }
 
     @Override
     public void refresh() {
-        assertOnUiThread();
+        assertOnLinkThread();
         if (enabled) {
             disable();
             enable();
@@ -194,6 +534,73 @@ public class BluetoothLENovaLink implements NovaLink {
     }
 
 
+    // ----------------------------------
+    // Follow Bluetooth radio on/off state
+    // ----------------------------------
+
+    private void onAdapterStateChanged(int state) {
+        assertOnLinkThread();
+
+        if (!enabled) {
+            return;
+        }
+
+        debug("onAdapterStateChanged() %d", state);
+
+        if (state == BluetoothAdapter.STATE_ON) {
+            if (!radioOn) {
+                onRadioOn();
+            }
+        } else if (radioOn) {
+            // Turning off, or off.
+            onRadioOff();
+        }
+    }
+
+    /**
+     * Radio is on: scan straight away, then periodically.
+     */
+    private void onRadioOn() {
+        debug("bluetooth on");
+        radioOn = true;
+
+        setStatus(NovaLinkStatus.Idle);
+
+        stopScanTimer();
+        startScanTimerAllow.set(true);
+        handler.postDelayed(scanTimer, SCAN_INTERVAL);
+
+        startScan();
+    }
+
+    /**
+     * Radio is off (or missing): drop any connection and stop scanning entirely until it's back.
+     */
+    private void onRadioOff() {
+        debug("bluetooth not enabled");
+        radioOn = false;
+
+        stopScanTimer();
+        stopScanTimerAllow.set(false);
+        stopReconnecting();
+        disconnect(NovaLinkStatus.Disabled);
+
+        if (bluetoothAdapter != null && !enableRadioRequested) {
+            enableRadioRequested = true;
+            Intent intent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
+            if (!(context instanceof Activity)) {
+                intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK); // Required outside an Activity.
+            }
+            context.startActivity(intent);
+        }
+    }
+
+    private void stopScanTimer() {
+        startScanTimerAllow.set(false);
+        handler.removeCallbacks(scanTimer);
+    }
+
+
     // ---------------------
     // Scan for Nova devices
     // ---------------------
@@ -202,20 +609,18 @@ public class BluetoothLENovaLink implements NovaLink {
      * Start scanning. Periodically called by timer.
      */
     void startScan() {
-        assertOnUiThread();
+        assertOnLinkThread();
 
         if (stopScanTimerAllow.get()) {
             return; // Scan is already in progress.
         }
 
-        BluetoothManager bluetoothManager = (BluetoothManager) activity.getSystemService(BLUETOOTH_SERVICE);
-        bluetoothAdapter = (bluetoothManager == null) ? null : bluetoothManager.getAdapter();
+        if (!radioOn) {
+            return; // Scanning resumes when ACTION_STATE_CHANGED says the radio is back on.
+        }
 
-        if (bluetoothAdapter == null || !bluetoothAdapter.isEnabled()) {
-            debug("bluetooth not enabled");
-            setStatus(NovaLinkStatus.Disabled);
-            activity.startActivity(new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE));
-            return;
+        if (reconnectDevice != null) {
+            return; // Reconnecting directly to a lost device instead.
         }
 
         if (status != NovaLinkStatus.Idle) {
@@ -230,7 +635,7 @@ public class BluetoothLENovaLink implements NovaLink {
         currentScan = new BluetoothAdapter.LeScanCallback() {
             @Override
             public void onLeScan(final BluetoothDevice device, final int rssi, final byte[] scanRecord) {
-                activity.runOnUiThread(new Runnable() {
+                handler.post(new Runnable() {
                     @Override
                     public void run() {
                         onScannedDevice(device, rssi, scanRecord);
@@ -245,10 +650,11 @@ public class BluetoothLENovaLink implements NovaLink {
         }
 
         setStatus(NovaLinkStatus.Scanning);
+        NovaTrace.beginAsync(TRACE_SCAN, 0);
 
         // Stop scanning after SCAN_DURATION.
         stopScanTimerAllow.set(true);
-        new Handler().postDelayed(new Runnable() {
+        handler.postDelayed(new Runnable() {
             @Override
             public void run() {
                 if (stopScanTimerAllow.getAndSet(false)) {
@@ -259,7 +665,7 @@ public class BluetoothLENovaLink implements NovaLink {
     }
 
     private void onScannedDevice(BluetoothDevice device, int rssi, byte[] scanRecord) {
-        assertOnUiThread();
+        assertOnLinkThread();
 
         if (!isNova(device)) {
             debug("onScannedDevice() IGNORE: " + deviceDetails(device));
@@ -282,6 +688,7 @@ public class BluetoothLENovaLink implements NovaLink {
     void stopScan() {
         if (currentScan != null) {
             bluetoothAdapter.stopLeScan(currentScan);
+            NovaTrace.endAsync(TRACE_SCAN, 0);
         }
         currentScan = null;
 
@@ -311,15 +718,16 @@ public class BluetoothLENovaLink implements NovaLink {
 
         // Connects to the discovered device
         activeDevice = device;
+        traceConnectPhase(TRACE_CONNECT);
 
         // These callbacks are generated by an internal Bluetooth thread.
-        // Before we do anything we need to thunk back to the main thread.
-        activeGatt = device.connectGatt(activity, false /* first connect false, subsequent true */,
+        // Before we do anything we need to thunk back to the link's thread.
+        activeGatt = device.connectGatt(context, false /* first connect false, subsequent true */,
                 new BluetoothGattCallback() {
 
                     @Override
                     public void onConnectionStateChange(final BluetoothGatt gatt, final int status, final int newState) {
-                        activity.runOnUiThread(new Runnable() {
+                        handler.post(new Runnable() {
                             @Override
                             public void run() {
                                 BluetoothLENovaLink.this.onConnectionStateChange(gatt, status, newState);
@@ -329,7 +737,7 @@ public class BluetoothLENovaLink implements NovaLink {
 
                     @Override
                     public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
-                        activity.runOnUiThread(new Runnable() {
+                        handler.post(new Runnable() {
                             @Override
                             public void run() {
                                 BluetoothLENovaLink.this.onServicesDiscovered(gatt, status);
@@ -339,17 +747,44 @@ public class BluetoothLENovaLink implements NovaLink {
 
                     @Override
                     public void onCharacteristicChanged(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
-                        activity.runOnUiThread(new Runnable() {
+                        handler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                boolean trace = NovaTrace.begin(TRACE_ACK);
+                                try {
+                                    BluetoothLENovaLink.this.onCharacteristicChanged(gatt, characteristic);
+                                } finally {
+                                    if (trace) {
+                                        NovaTrace.end();
+                                    }
+                                }
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onDescriptorWrite(final BluetoothGatt gatt, final BluetoothGattDescriptor descriptor, final int status) {
+                        handler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                BluetoothLENovaLink.this.onDescriptorWrite(gatt, descriptor, status);
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onReadRemoteRssi(final BluetoothGatt gatt, final int rssi, final int status) {
+                        handler.post(new Runnable() {
                             @Override
                             public void run() {
-                                BluetoothLENovaLink.this.onCharacteristicChanged(gatt, characteristic);
+                                BluetoothLENovaLink.this.onReadRemoteRssi(gatt, rssi, status);
                             }
                         });
                     }
 
                     @Override
                     public void onCharacteristicWrite(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
-                        activity.runOnUiThread(new Runnable() {
+                        handler.post(new Runnable() {
                             @Override
                             public void run() {
                                 BluetoothLENovaLink.this.onCharacteristicWrite(gatt, characteristic, status);
@@ -364,41 +799,117 @@ public class BluetoothLENovaLink implements NovaLink {
     }
 
     private void onConnectionStateChange(final BluetoothGatt gatt, final int status, final int newState) {
-        assertOnUiThread();
+        assertOnLinkThread();
 
         if (gatt != activeGatt) {
             return;
         }
 
         debug("onConnectionStateChange()");
+        if (recorder != null) {
+            recorder.onGatt(NovaSessionRecorder.GATT_CONNECTION_STATE, status, newState);
+        }
 
-        if (status != BluetoothGatt.GATT_SUCCESS) {
-            debug("failed to connect");
-            disconnect();
+        if (status != BluetoothGatt.GATT_SUCCESS || newState == BluetoothProfile.STATE_DISCONNECTED) {
+            BluetoothDevice device = activeDevice;
+            boolean wasReady = this.status == NovaLinkStatus.Ready;
+
+            // Close the GATT and fail pending commands straight away, rather than sitting
+            // half-dead until the next scan.
+            debug(wasReady ? "link lost" : "failed to connect");
+
+            if (wasReady) {
+                disconnect();
+                linkLostNanos = SystemClock.elapsedRealtimeNanos();
+                metrics.onLinkLost();
+                reconnectDevice = device;
+                reconnectAttempt = 0;
+                scheduleReconnect();
+            } else {
+                connectFailed();
+            }
         } else if (newState == BluetoothProfile.STATE_CONNECTED) {
             debug("connected to " + deviceDetails(activeDevice));
             debug("discovering services...");
+            traceConnectPhase(TRACE_DISCOVER);
             gatt.discoverServices();
-        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-            debug("failed to connect");
         } else {
             throw new IllegalArgumentException("Unexpected state: " + newState);
         }
 
     }
 
+    /**
+     * Schedule the next direct reconnect to reconnectDevice. The first is immediate, then with
+     * capped exponential backoff and jitter. After RECONNECT_ATTEMPTS, give up and let the
+     * scan timer find a device again.
+     */
+    private void scheduleReconnect() {
+        if (reconnectAttempt >= RECONNECT_ATTEMPTS) {
+            debug("reconnect failed %d times, back to scanning", reconnectAttempt);
+            stopReconnecting();
+            return;
+        }
+
+        int delay = 0;
+        if (reconnectAttempt > 0) {
+            int backoff = Math.min(RECONNECT_MAX_DELAY, RECONNECT_BASE_DELAY << (reconnectAttempt - 1));
+            // Half fixed, half random, so a room full of phones don't all retry in step.
+            delay = backoff / 2 + reconnectJitter.nextInt(backoff / 2 + 1);
+        }
+        reconnectAttempt++;
+
+        debug("reconnect attempt %d in %dms", reconnectAttempt, delay);
+        handler.removeCallbacks(reconnectTimeout);
+        reconnectTimerAllow.set(true);
+        handler.postDelayed(reconnectTimer, delay);
+    }
+
+    private void reconnect() {
+        assertOnLinkThread();
+
+        if (!enabled || !radioOn || reconnectDevice == null || status != NovaLinkStatus.Idle) {
+            return;
+        }
+        metrics.onReconnectAttempt();
+        connect(reconnectDevice);
+        handler.postDelayed(reconnectTimeout, RECONNECT_TIMEOUT);
+    }
+
+    /**
+     * A connect failed before Ready. Tear it down, and if it was a direct reconnect, try again
+     * (or give up and go back to scanning), as scans wait while reconnectDevice is set.
+     */
+    private void connectFailed() {
+        disconnect();
+        if (reconnectDevice != null) {
+            scheduleReconnect();
+        }
+    }
+
+    private void stopReconnecting() {
+        reconnectDevice = null;
+        reconnectAttempt = 0;
+        reconnectTimerAllow.set(false);
+        handler.removeCallbacks(reconnectTimer);
+        handler.removeCallbacks(reconnectTimeout);
+    }
+
     private void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
-        assertOnUiThread();
+        assertOnLinkThread();
 
         if (gatt != activeGatt) {
             return;
         }
 
         debug("onServicesDiscovered()");
+        if (recorder != null) {
+            recorder.onGatt(NovaSessionRecorder.GATT_SERVICES_DISCOVERED, status, 0);
+        }
 
         if (status != BluetoothGatt.GATT_SUCCESS) {
             debug("failed to discover services");
-            disconnect();
+            connectFailed();
         } else {
             requestCharacteristic = null;
             responseCharacteristic = null;
@@ -420,7 +931,7 @@ public class BluetoothLENovaLink implements NovaLink {
 
             if (requestCharacteristic == null || responseCharacteristic == null) {
                 debug("failed to find Nova characteristics");
-                disconnect();
+                connectFailed();
             } else {
 
                 // Listen for responses (calls onCharacteristicChanged())
@@ -428,86 +939,169 @@ public class BluetoothLENovaLink implements NovaLink {
                 BluetoothGattDescriptor descriptor = responseCharacteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
                 if (descriptor == null) {
                     debug("failed to locate CLIENT_CHARACTERISTIC_CONFIG in response descriptor");
-                    disconnect();
+                    connectFailed();
                     return;
                 }
                 descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
                 if (!gatt.writeDescriptor(descriptor)) {
                     debug("failed to write ENABLE_NOTIFICATION to response descriptor");
-                    disconnect();
+                    connectFailed();
                     return;
                 }
 
-                // READY to rock!
-                setStatus(NovaLinkStatus.Ready);
+                if (binaryProtocolEnabled
+                        && negotiatedProtocols.get(activeDevice.getAddress()) != NovaProtocol.Text) {
+                    // Ask what the firmware speaks once notifications are on (onDescriptorWrite()),
+                    // as GATT only does one op at a time.
+                    negotiating = true;
+                    traceConnectPhase(TRACE_NEGOTIATE);
+                    handler.postDelayed(negotiateTimeout, NEGOTIATE_TIMEOUT);
+                } else {
+                    onLinkReady(NovaProtocol.Text);
+                }
             }
         }
     }
 
-    private void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-        assertOnUiThread();
+    private void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        assertOnLinkThread();
 
-        if (gatt != activeGatt && characteristic != requestCharacteristic) {
+        if (gatt != activeGatt || !negotiating) {
             return;
         }
+        if (recorder != null) {
+            recorder.onGatt(NovaSessionRecorder.GATT_DESCRIPTOR_WRITE, status, 0);
+        }
 
         if (status != BluetoothGatt.GATT_SUCCESS) {
-            debug("onCharacteristicWrite() failed : " + status);
+            debug("failed to enable notifications : " + status);
+            connectFailed();
             return;
         }
 
-        debug("onCharacteristicWrite() success");
+        // Capability ping. Reply handled in onCharacteristicChanged().
+        byte[] frame = NovaProtocol.capabilityFrame();
+        if (Debug.isEnabled()) {
+            debug("send --> %s", NovaProtocol.Text.describe(frame));
+        }
+        requestCharacteristic.setValue(frame);
+        boolean written = activeGatt.writeCharacteristic(requestCharacteristic);
+        if (recorder != null) {
+            recorder.onWrite(frame, written, true);
+        }
+        if (!written) {
+            debug("failed to write capability ping, assuming text protocol");
+            onLinkReady(NovaProtocol.Text);
+        }
     }
 
-    private void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-        assertOnUiThread();
+    private void onLinkReady(NovaProtocol protocol) {
+        traceConnectPhase(null);
+        negotiating = false;
+        handler.removeCallbacks(negotiateTimeout);
+        engine.setProtocol(protocol);
+        debug("using %s protocol", protocol);
+        applyWriteType(); // Before Ready, as status callbacks may well send a flash.
+
+        // READY to rock!
+        stopReconnecting();
+        if (linkLostNanos != 0) {
+            metrics.onLinkRecovered(SystemClock.elapsedRealtimeNanos() - linkLostNanos);
+            linkLostNanos = 0;
+        }
+        health.reset();
+        linkDegraded = false;
+        lastTrafficMillis = SystemClock.uptimeMillis();
+        setStatus(NovaLinkStatus.Ready);
+        // Only takes effect once Ready. Picks up a mode or preview set while connecting.
+        applyLatencyMode();
+        if (healthMonitorEnabled) {
+            healthInterval = HEALTH_MIN_INTERVAL;
+            scheduleHealthCheck(HEALTH_MIN_INTERVAL);
+        }
+    }
 
-        if (gatt != activeGatt && characteristic != responseCharacteristic) {
-            return;
+    private void applyWriteType() {
+        boolean supported = (requestCharacteristic.getProperties()
+                & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0;
+        if (writeWithoutResponse && !supported) {
+            debug("device does not support write without response");
         }
+        requestCharacteristic.setWriteType(writeWithoutResponse && supported
+                ? BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+                : BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+    }
 
-        String response = responseCharacteristic.getStringValue(0);
-        debug("recv <-- %s", response);
+    /**
+     * End the async trace event for the current connection phase, and begin the next, if any.
+     */
+    private void traceConnectPhase(String next) {
+        if (connectPhase != null) {
+            NovaTrace.endAsync(connectPhase, 0);
+        }
+        connectPhase = next;
+        if (next != null) {
+            NovaTrace.beginAsync(next, 0);
+        }
+    }
 
-        int responseId = parseAck(response);
+    private void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        assertOnLinkThread();
 
-        if (responseId == PARSE_FAILED) {
-            debug("Failed to parse response '%s'", response);
-            disconnect();
+        if (gatt != activeGatt && characteristic != requestCharacteristic) {
             return;
         }
-
-        if (awaitingAck == null) {
-            debug("Was not expecting ack (got: %d)", responseId);
-            disconnect();
-            return;
+        if (recorder != null) {
+            recorder.onGatt(NovaSessionRecorder.GATT_CHARACTERISTIC_WRITE, status, 0);
         }
 
-        if (awaitingAck.requestId != responseId) {
-            debug("Unexpected ack (got: %d, expected: %d)", responseId, awaitingAck.requestId);
-            disconnect();
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            debug("onCharacteristicWrite() failed : " + status);
             return;
         }
 
-        debug("ack  <-- %s", frameMsg(awaitingAck.requestId, awaitingAck.msg));
+        debug("onCharacteristicWrite() success");
+    }
 
-        NovaCompletionCallback callback = awaitingAck.callback;
+    private void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+        assertOnLinkThread();
 
-        // No longer awaiting the ack.
-        awaitingAck = null;
+        if (gatt != activeGatt && characteristic != responseCharacteristic) {
+            return;
+        }
 
-        // Cancel timeout timer.
-        ackTimerAllow.set(false);
+        byte[] response = responseCharacteristic.getValue();
+        if (recorder != null) {
+            recorder.onNotify(response);
+        }
 
-        // Send any queued outbound messages.
-        processSendQueue();
+        if (negotiating) {
+            if (Debug.isEnabled()) {
+                debug("recv <-- %s", NovaProtocol.Text.describe(response));
+            }
+            NovaProtocol negotiated = NovaProtocol.parseCapability(response);
+            if (negotiated != null) {
+                negotiatedProtocols.put(activeDevice.getAddress(), negotiated);
+                onLinkReady(negotiated);
+            }
+            return;
+        }
 
-        // Trigger user callback.
-        callback.onComplete(true);
+        if (!engine.onResponse(response)) {
+            disconnect();
+        }
     }
 
     private void disconnect() {
-        assertOnUiThread();
+        disconnect(NovaLinkStatus.Idle);
+    }
+
+    /**
+     * Tear down any connection or scan, moving straight to newStatus (so going Disabled doesn't
+     * pass through Idle on the way).
+     */
+    private void disconnect(NovaLinkStatus newStatus) {
+        assertOnLinkThread();
 
         if (activeGatt != null) {
             activeGatt.disconnect();
@@ -516,30 +1110,29 @@ public class BluetoothLENovaLink implements NovaLink {
 
         if (currentScan != null) {
             bluetoothAdapter.stopLeScan(currentScan);
+            NovaTrace.endAsync(TRACE_SCAN, 0);
         }
         currentScan = null;
 
+        traceConnectPhase(null);
+        negotiating = false;
+        handler.removeCallbacks(negotiateTimeout);
+        appliedLatencyMode = null;
+
         activeDevice = null;
         activeGatt = null;
         requestCharacteristic = null;
         responseCharacteristic = null;
 
         // Cancel timers
-        ackTimerAllow.set(false);
         stopScanTimerAllow.set(false);
+        stopHealthMonitor();
 
-        // Abort any queued requests.
-        if (awaitingAck != null) {
-            awaitingAck.callback.onComplete(false);
-            awaitingAck = null;
-        }
-
-        for (Cmd cmd : awaitingSend) {
-            cmd.callback.onComplete(false);
-        }
-        awaitingSend.clear();
+        // Not Ready any more, so callbacks below can't queue further requests.
+        setStatus(newStatus);
 
-        setStatus(NovaLinkStatus.Idle);
+        // Abort any queued requests.
+        engine.failAll(NovaCompletionReason.Disconnected);
     }
 
 
@@ -548,157 +1141,336 @@ public class BluetoothLENovaLink implements NovaLink {
     // -----------------------
 
     @Override
-    public void beginFlash(NovaFlashCommand flashCmd, NovaCompletionCallback callback) {
-        assertOnUiThread();
+    public long beginFlash(NovaFlashCommand flashCmd, NovaCompletionCallback callback) {
+        return beginFlash(flashCmd, NO_DEADLINE, callback);
+    }
 
-        if (flashCmd.isPointless()) {
-            // settings say that flash is effectively off
-            request(offCmd(), callback);
-        } else {
-            request(lightCmd(flashCmd.getWarmness(), flashCmd.getCoolness(), flashCmd.getDuration()), callback);
+    @Override
+    public long beginFlash(NovaFlashCommand flashCmd, long deadline, NovaCompletionCallback callback) {
+        if (!onLinkThread()) {
+            return submit(NovaSubmissionQueue.BEGIN_FLASH, flashCmd, null, deadline, callback);
         }
+
+        return engine.beginFlash(flashCmd, deadline, callback);
     }
 
     @Override
-    public void beginFlash(NovaFlashCommand flashCmd) {
-        assertOnUiThread();
+    public long beginFlashSequence(NovaFlashSequence sequence, NovaCompletionCallback callback) {
+        if (!onLinkThread()) {
+            return submit(NovaSubmissionQueue.BEGIN_FLASH_SEQUENCE, null, sequence, NO_DEADLINE, callback);
+        }
 
-        beginFlash(flashCmd, null);
+        return engine.beginFlashSequence(sequence, callback);
     }
 
     @Override
-    public void endFlash(NovaCompletionCallback callback) {
-        assertOnUiThread();
+    public long beginFlash(NovaFlashCommand flashCmd) {
+        return beginFlash(flashCmd, null);
+    }
 
-        request(offCmd(), callback);
+    @Override
+    public long endFlash(NovaCompletionCallback callback) {
+        return endFlash(NO_DEADLINE, callback);
     }
 
     @Override
-    public void endFlash() {
-        assertOnUiThread();
+    public long endFlash(long deadline, NovaCompletionCallback callback) {
+        if (!onLinkThread()) {
+            return submit(NovaSubmissionQueue.END_FLASH, null, null, deadline, callback);
+        }
 
-        endFlash(null);
+        return engine.endFlash(deadline, callback);
     }
 
     @Override
-    public void ping(NovaCompletionCallback callback) {
-        assertOnUiThread();
-
-        request(pingCmd(), callback);
+    public long endFlash() {
+        return endFlash(null);
     }
 
-    private void request(String msg, NovaCompletionCallback callback) {
-        assertOnUiThread();
+    @Override
+    public long ping(NovaCompletionCallback callback) {
+        if (!onLinkThread()) {
+            return submit(NovaSubmissionQueue.PING, null, null, NO_DEADLINE, callback);
+        }
 
-        if (callback == null) {
-            callback = new NovaCompletionCallback() {
-                @Override
-                public void onComplete(boolean successful) {
-                    // no-op
-                }
-            };
+        return engine.ping(callback);
+    }
+
+    @Override
+    public boolean cancel(long token) {
+        if (!onLinkThread()) {
+            if (token == NO_TOKEN) {
+                return false;
+            }
+            handOver(new NovaSubmissionQueue.Submission(NovaSubmissionQueue.CANCEL, null, null, NO_DEADLINE,
+                    null, token));
+            return true;
         }
 
-        if (this.status != NovaLinkStatus.Ready) {
-            callback.onComplete(false);
-            return;
+        if (NovaSubmissionQueue.isReserved(token)) {
+            drainSubmissions(); // Its command may not have been handed to the engine yet.
         }
+        return engine.cancel(submissions.engineToken(token));
+    }
 
-        if (++nextRequestId == 255) {
-            nextRequestId = 0;
+    private boolean onLinkThread() {
+        return Looper.myLooper() == handler.getLooper();
+    }
+
+    private void assertOnLinkThread() {
+        if (!onLinkThread()) {
+            throw new IllegalThreadStateException("Not on link's thread (on " + Thread.currentThread() + ")");
         }
+    }
 
-        Cmd cmd = new Cmd();
-        cmd.requestId = nextRequestId;
-        cmd.msg = msg;
-        cmd.callback = callback;
+    /**
+     * Hand a command over to the link's thread. Any thread.
+     *
+     * @return Token reserved for the command.
+     */
+    private long submit(byte kind, NovaFlashCommand flashCmd, NovaFlashSequence sequence, long deadline,
+                        NovaCompletionCallback callback) {
+        long token = submissions.reserveToken();
+        handOver(new NovaSubmissionQueue.Submission(kind, flashCmd, sequence, deadline, callback, token));
+        return token;
+    }
 
-        awaitingSend.add(cmd);
-        processSendQueue();
+    private void handOver(NovaSubmissionQueue.Submission submission) {
+        submissions.offer(submission);
+        if (drainScheduled.compareAndSet(false, true)) {
+            // Ahead of whatever else is waiting on the link's thread (e.g. UI work), as a shot
+            // is probably waiting on this. It still waits for whatever the thread is doing now.
+            handler.postAtFrontOfQueue(drainTask);
+        }
     }
 
-    private void processSendQueue() {
-        assertOnUiThread();
+    private void drainSubmissions() {
+        // Reset first, so a submission offered after the loop below sees it's not scheduled.
+        drainScheduled.set(false);
+
+        NovaSubmissionQueue.Submission submission;
+        while ((submission = submissions.poll()) != null) {
+            switch (submission.kind) {
+                case NovaSubmissionQueue.BEGIN_FLASH:
+                    submissions.resolve(submission.token,
+                            engine.beginFlash(submission.flashCmd, submission.deadline, submission.callback));
+                    break;
+                case NovaSubmissionQueue.BEGIN_FLASH_SEQUENCE:
+                    submissions.resolve(submission.token,
+                            engine.beginFlashSequence(submission.sequence, submission.callback));
+                    break;
+                case NovaSubmissionQueue.END_FLASH:
+                    submissions.resolve(submission.token, engine.endFlash(submission.deadline, submission.callback));
+                    break;
+                case NovaSubmissionQueue.CANCEL:
+                    engine.cancel(submissions.engineToken(submission.token));
+                    break;
+                default:
+                    submissions.resolve(submission.token, engine.ping(submission.callback));
+            }
+            submission.clear();
+        }
+    }
 
-        // If we're not waiting for anything to be acked, go ahead and send the next cmd in the outbound queue.
-        if (awaitingAck == null && !awaitingSend.isEmpty()) {
 
-            // Shift first command from front of awaitingSend queue.
-            Cmd cmd = awaitingSend.removeFirst();
 
-            String body = frameMsg(cmd.requestId, cmd.msg);
-            debug("send --> %s", body);
+    // -----------------------------
+    // Connection interval (latency)
+    // -----------------------------
 
-            // Write to device.
-            requestCharacteristic.setValue(body);
-            if (!activeGatt.writeCharacteristic(requestCharacteristic)) {
-                debug("Failed to write value");
-                activeGatt.abortReliableWrite(activeDevice);
-                cmd.callback.onComplete(false);
+    private void boostLatency() {
+        latencyBoosted = true;
+        applyLatencyMode();
+        latencyTimerAllow.set(true);
+        handler.postDelayed(latencyTimer, LATENCY_IDLE);
+    }
+
+    /**
+     * Called by timer while boosted. Drops out of low latency if there's been no flash for
+     * LATENCY_IDLE, otherwise checks again when there could have been.
+     */
+    private void checkLatencyIdle() {
+        if (!latencyBoosted) {
+            return;
+        }
+        long idle = SystemClock.uptimeMillis() - lastFlashMillis;
+        if (idle < LATENCY_IDLE) {
+            latencyTimerAllow.set(true);
+            handler.postDelayed(latencyTimer, LATENCY_IDLE - idle);
+            return;
+        }
+        debug("preview idle, relaxing latency");
+        latencyBoosted = false;
+        applyLatencyMode();
+    }
+
+    /**
+     * Request the current latency mode of the connection, if it's changed.
+     */
+    private void applyLatencyMode() {
+        if (status != NovaLinkStatus.Ready || REQUEST_CONNECTION_PRIORITY == null) {
+            return;
+        }
+
+        NovaLatencyMode mode = latencyBoosted ? NovaLatencyMode.LowLatency : latencyMode;
+        if (mode == appliedLatencyMode) {
+            return;
+        }
+
+        debug("latency mode = " + mode);
+        try {
+            if (!(Boolean) REQUEST_CONNECTION_PRIORITY.invoke(activeGatt, mode.connectionPriority)) {
+                debug("failed to request connection priority");
                 return;
             }
+        } catch (IllegalAccessException e) {
+            debug("failed to request connection priority: " + e);
+            return;
+        } catch (InvocationTargetException e) {
+            debug("failed to request connection priority: " + e.getCause());
+            return;
+        }
+        appliedLatencyMode = mode;
+        metrics.onLatencyModeChanged(mode);
+    }
 
-            // Now we're waiting for this.
-            awaitingAck = cmd;
-
-            // Set timer for acks so we don't hang forever waiting.
-            ackTimerAllow.set(true);
-            new Handler().postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    if (ackTimerAllow.getAndSet(false)) {
-                        ackTookTooLong();
-                    }
-                }
-            }, ACK_TIMEOUT);
+    private static Method findRequestConnectionPriority() {
+        try {
+            return BluetoothGatt.class.getMethod("requestConnectionPriority", int.class);
+        } catch (NoSuchMethodException e) {
+            return null; // Before Android 5.0.
         }
     }
 
-    private void ackTookTooLong() {
-        assertOnUiThread();
 
-        if (awaitingAck != null) {
-            debug("Timeout waiting for %s ack", frameMsg(awaitingAck.requestId, awaitingAck.msg));
-            awaitingAck.callback.onComplete(false);
-        }
+    // ------------------
+    // Link health checks
+    // ------------------
 
-        awaitingAck = null;
-        processSendQueue();
+    private void scheduleHealthCheck(int delay) {
+        handler.removeCallbacks(healthTimer);
+        healthTimerAllow.set(true);
+        handler.postDelayed(healthTimer, delay);
     }
 
-    private String frameMsg(int requestId, String msg) {
-        // Requests are framed "(xx:yy)" where xx is 2 digit hex requestId and yy is body string.
-        // e.g. "(00:P)"
-        //      "(4A:L,00,FF,05DC)"
-        return String.format("(%02X:%s)", requestId, msg);
+    private void stopHealthMonitor() {
+        healthTimerAllow.set(false);
+        handler.removeCallbacks(healthTimer);
+        handler.removeCallbacks(rssiTimeout);
+        setRssiPending(false);
+    }
+
+    /**
+     * Periodically called by timer while Ready. Reads the RSSI if the link is quiet, and follows
+     * up with a keep-alive ping in onRssiRead() if it's been idle for a whole interval.
+     */
+    private void checkHealth() {
+        assertOnLinkThread();
+
+        if (!healthMonitorEnabled || status != NovaLinkStatus.Ready) {
+            return;
+        }
+
+        long quiet = SystemClock.uptimeMillis() - lastTrafficMillis;
+        if (!engine.isIdle() || quiet < HEALTH_QUIET_PERIOD) {
+            // Busy, probably taking photos. Don't compete, look again when it's quiet.
+            scheduleHealthCheck(HEALTH_QUIET_PERIOD);
+            return;
+        }
+
+        if (activeGatt.readRemoteRssi()) {
+            setRssiPending(true);
+            handler.postDelayed(rssiTimeout, RSSI_TIMEOUT);
+        } else {
+            debug("RSSI read failed to start");
+            onRssiRead(0, false);
+        }
     }
 
-    private String pingCmd() {
-        return "P";
+    /**
+     * A flash mustn't wait up to RSSI_TIMEOUT for a mere sample. Stop holding writes, so it goes
+     * straight out (the stack queues it behind the read), and ignore the read's result.
+     */
+    private void abandonRssiRead() {
+        debug("abandoning RSSI read for flash");
+        handler.removeCallbacks(rssiTimeout);
+        setRssiPending(false);
+        scheduleHealthCheck(healthInterval);
     }
 
-    private String lightCmd(int warmPwm, int coolPwm, int timeoutMillis) {
-        // Light cmd is formatted "L,w,c,t" where w and c are warm/cool pwm duty cycles as 2 digit hex
-        // and t is 4 digit hex timeout.
-        // e.g. "L,00,FF,05DC" (means light with warm=0, cool=255, timeout=1500ms)
-        return String.format("L,%02X,%02X,%04X", warmPwm, coolPwm, timeoutMillis);
+    private void setRssiPending(boolean pending) {
+        if (pending != rssiPending && recorder != null) {
+            recorder.onWriteHeld(pending);
+        }
+        rssiPending = pending;
     }
 
-    private String offCmd() {
-        return "O";
+    private void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+        assertOnLinkThread();
+
+        if (gatt != activeGatt || !rssiPending) {
+            return;
+        }
+        if (recorder != null) {
+            recorder.onGatt(NovaSessionRecorder.GATT_READ_RSSI, status, rssi);
+        }
+        onRssiRead(rssi, status == BluetoothGatt.GATT_SUCCESS);
     }
 
-    private int parseAck(String fullmsg) {
-        // Parses "(xx:A)" packet where xx is hex value for resultId.
+    private void onRssiRead(int rssi, boolean success) {
+        setRssiPending(false);
+        handler.removeCallbacks(rssiTimeout);
 
-        Pattern regex = Pattern.compile("\\(([0-9A-Za-z][0-9A-Za-z]):A\\)");
-        Matcher matcher = regex.matcher(fullmsg);
+        if (success) {
+            debug("RSSI %d dBm", rssi);
+            health.onRssi(rssi);
+            healthChanged();
+        }
 
-        if (matcher.matches()) {
-            String requestIdHex = matcher.group(1);
-            return Integer.parseInt(requestIdHex, 16);
-        } else {
-            return PARSE_FAILED;
+        if (status != NovaLinkStatus.Ready) {
+            return;
+        }
+
+        // Back off while healthy. healthChanged() resets the interval if degraded.
+        int interval = healthInterval;
+        if (!linkDegraded) {
+            healthInterval = Math.min(HEALTH_MAX_INTERVAL, healthInterval * 2);
+        }
+
+        if (SystemClock.uptimeMillis() - lastTrafficMillis >= interval) {
+            // Nothing has been acked for a while, so the device may have gone without us
+            // noticing. Ping it; the ack (or timeout) feeds into the link quality.
+            metrics.onKeepAlivePing();
+            engine.ping(null);
+        }
+
+        // Send anything that was held for the read.
+        engine.processSendQueue();
+
+        scheduleHealthCheck(healthInterval);
+    }
+
+    /**
+     * Link quality has been updated. Notify healthListener if it crossed a threshold.
+     */
+    private void healthChanged() {
+        int quality = health.getQuality();
+        metrics.onLinkHealth(quality, health.getRssi());
+
+        if (!linkDegraded && quality < HEALTH_DEGRADED) {
+            debug("link degraded, quality %d", quality);
+            linkDegraded = true;
+            healthInterval = HEALTH_MIN_INTERVAL;
+            metrics.onLinkDegraded();
+            if (healthListener != null) {
+                healthListener.onLinkDegraded(quality, health.getRssi());
+            }
+        } else if (linkDegraded && quality >= HEALTH_RECOVERED) {
+            debug("link healthy, quality %d", quality);
+            linkDegraded = false;
+            if (healthListener != null) {
+                healthListener.onLinkHealthy(quality, health.getRssi());
+            }
         }
     }
 
@@ -710,4 +1482,62 @@ public class BluetoothLENovaLink implements NovaLink {
                 + ", uuids=" + Arrays.toString(device.getUuids())
                 + ")";
     }
+
+    /**
+     * Connects the command engine to the GATT connection, and feeds it into link health and
+     * latency management.
+     */
+    private class CommandHost implements NovaCommandEngine.Host {
+
+        @Override
+        public boolean isReady() {
+            return status == NovaLinkStatus.Ready;
+        }
+
+        @Override
+        public boolean isWriteHeld() {
+            return rssiPending;
+        }
+
+        @Override
+        public boolean write(byte[] frame) {
+            lastTrafficMillis = SystemClock.uptimeMillis();
+            requestCharacteristic.setValue(frame);
+            if (!activeGatt.writeCharacteristic(requestCharacteristic)) {
+                debug("Failed to write value");
+                activeGatt.abortReliableWrite(activeDevice);
+                return false;
+            }
+            lastWriteWithoutResponse =
+                    requestCharacteristic.getWriteType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+            return true;
+        }
+
+        @Override
+        public void onFlashRequested() {
+            lastFlashMillis = SystemClock.uptimeMillis();
+            if (rssiPending) {
+                abandonRssiRead();
+            }
+            if (previewActive && !latencyBoosted) {
+                // Back from idle. Too late to speed up this cmd, but likely more shots to come.
+                boostLatency();
+            }
+        }
+
+        @Override
+        public void onAck(long roundTripNanos) {
+            lastTrafficMillis = SystemClock.uptimeMillis();
+            metrics.onAck(lastWriteWithoutResponse, appliedLatencyMode, roundTripNanos);
+            health.onAck(roundTripNanos);
+            healthChanged();
+        }
+
+        @Override
+        public void onAckTimeout() {
+            health.onTimeout();
+            healthChanged();
+        }
+    }
+
 }
@@ -23,10 +23,27 @@ import android.util.Log;
  */
 public class Debug {
 
+    private static volatile boolean enabled = true;
+
+    /**
+     * Turn debug logging on or off (default on). Logging formats messages and walks the call
+     * stack, so turn it off for allocation-free command handling.
+     */
+    public static void setEnabled(boolean enabled) {
+        Debug.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
     /**
      * Log at debug level.
      */
     public static void debug(String msg, Object... args) {
+        if (!enabled) {
+            return;
+        }
         Log.d(obtainTagFromCallStack(2), String.format(msg, args));
     }
 
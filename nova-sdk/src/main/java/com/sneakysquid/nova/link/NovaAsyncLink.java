@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Future-based view of a {@link NovaLink}, for composing flash operations with other
+ * asynchronous work (e.g. camera capture) without nesting callbacks.
+ * <p/>
+ * Each operation returns a {@link NovaFuture} that succeeds with the command's
+ * {@link NovaCompletionResult}, or fails with a {@link NovaCommandException} carrying it.
+ * Everything runs on the link's thread (usually the main/UI thread), with no extra thread hops.
+ * <p/>
+ * {@link NovaFuture#cancel() Cancelling} a command's future (directly, or via a timeout), or a
+ * future chained from it while the command is pending, also {@link NovaLink#cancel(long) cancels}
+ * the command. Timeouts run on the link's thread.
+ *
+ * @see NovaFuture
+ */
+public class NovaAsyncLink {
+
+    private final NovaLink link;
+    private final NovaClock clock; // For timeouts, so they run on the link's thread.
+
+    public NovaAsyncLink(NovaLink link) {
+        this.link = link;
+        this.clock = clockOf(link);
+    }
+
+    public NovaLink getLink() {
+        return link;
+    }
+
+    /**
+     * @see NovaLink#beginFlash(NovaFlashCommand, NovaCompletionCallback)
+     */
+    public NovaFuture<NovaCompletionResult> beginFlash(NovaFlashCommand flashCmd) {
+        return beginFlash(flashCmd, NovaLink.NO_DEADLINE);
+    }
+
+    /**
+     * @see NovaLink#beginFlash(NovaFlashCommand, long, NovaCompletionCallback)
+     */
+    public NovaFuture<NovaCompletionResult> beginFlash(NovaFlashCommand flashCmd, long deadline) {
+        FutureCallback callback = new FutureCallback();
+        return callback.track(link.beginFlash(flashCmd, deadline, callback));
+    }
+
+    /**
+     * @see NovaLink#beginFlashSequence(NovaFlashSequence, NovaCompletionCallback)
+     */
+    public NovaFuture<NovaCompletionResult> beginFlashSequence(NovaFlashSequence sequence) {
+        FutureCallback callback = new FutureCallback();
+        return callback.track(link.beginFlashSequence(sequence, callback));
+    }
+
+    /**
+     * @see NovaLink#endFlash(NovaCompletionCallback)
+     */
+    public NovaFuture<NovaCompletionResult> endFlash() {
+        return endFlash(NovaLink.NO_DEADLINE);
+    }
+
+    /**
+     * @see NovaLink#endFlash(long, NovaCompletionCallback)
+     */
+    public NovaFuture<NovaCompletionResult> endFlash(long deadline) {
+        FutureCallback callback = new FutureCallback();
+        return callback.track(link.endFlash(deadline, callback));
+    }
+
+    /**
+     * @see NovaLink#ping(NovaCompletionCallback)
+     */
+    public NovaFuture<NovaCompletionResult> ping() {
+        FutureCallback callback = new FutureCallback();
+        return callback.track(link.ping(callback));
+    }
+
+    /**
+     * Completes with the next status the link changes to. Chaining this repeatedly gives a stream
+     * of status changes.
+     */
+    public NovaFuture<NovaLinkStatus> nextStatusChange() {
+        return statusFuture(null);
+    }
+
+    /**
+     * Completes when the link reaches the given status, or immediately if it already has.
+     * Combine with {@link NovaFuture#withTimeout(long)} to bound the wait.
+     */
+    public NovaFuture<NovaLinkStatus> awaitStatus(NovaLinkStatus status) {
+        if (link.getStatus() == status) {
+            return NovaFuture.succeeded(status);
+        }
+        return statusFuture(status);
+    }
+
+    private NovaFuture<NovaLinkStatus> statusFuture(final NovaLinkStatus wanted) {
+        final NovaFuture<NovaLinkStatus> future = new NovaFuture<NovaLinkStatus>(clock);
+        final NovaLinkStatusCallback statusCallback = new NovaLinkStatusCallback() {
+            @Override
+            public void onNovaLinkStatusChange(NovaLinkStatus status) {
+                if (wanted == null || wanted == status) {
+                    future.complete(status);
+                }
+            }
+        };
+        link.registerStatusCallback(statusCallback);
+        future.addListener(new NovaFuture.Listener<NovaLinkStatus>() {
+            @Override
+            public void onSuccess(NovaLinkStatus value) {
+                link.unregisterStatusCallback(statusCallback);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                link.unregisterStatusCallback(statusCallback);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * @return Clock whose timers run on link's thread, or null to fall back on the calling
+     * thread's Looper.
+     */
+    private static NovaClock clockOf(NovaLink link) {
+        if (link instanceof BluetoothLENovaLink) {
+            return ((BluetoothLENovaLink) link).getClock();
+        }
+        if (link instanceof SocketNovaLink) {
+            return ((SocketNovaLink) link).getClock();
+        }
+        return null;
+    }
+
+    /**
+     * Completes a future from a command result. Results are recycled by the link, so a copy
+     * is kept.
+     */
+    private class FutureCallback extends NovaResultCallback {
+
+        final NovaFuture<NovaCompletionResult> future = new NovaFuture<NovaCompletionResult>(clock);
+
+        /**
+         * @param token As returned by the link for this callback's command.
+         */
+        NovaFuture<NovaCompletionResult> track(final long token) {
+            future.addListener(new NovaFuture.Listener<NovaCompletionResult>() {
+                @Override
+                public void onSuccess(NovaCompletionResult value) {
+                    // Done.
+                }
+
+                @Override
+                public void onFailure(Throwable error) {
+                    if (error instanceof CancellationException || error instanceof TimeoutException) {
+                        link.cancel(token);
+                    }
+                }
+            });
+            return future;
+        }
+
+        @Override
+        public void onResult(NovaCompletionResult result) {
+            NovaCompletionResult copy = result.copy();
+            if (copy.isSuccessful()) {
+                future.complete(copy);
+            } else {
+                future.fail(new NovaCommandException(copy));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Time and timers for the link's thread. On Android, this is SystemClock and a Handler, but
+ * links can also run on a socket event loop, or a simulator's virtual clock.
+ * <p/>
+ * Timers run on the link's thread. As with Handler, removing a timer removes all pending posts
+ * of that Runnable.
+ */
+abstract class NovaClock {
+
+    /**
+     * @return Millis in the same base as command deadlines (on Android,
+     * {@link SystemClock#uptimeMillis()}).
+     */
+    abstract long uptimeMillis();
+
+    /**
+     * @return Nanos in the same base as {@link NovaCompletionResult} timestamps (on Android,
+     * {@link SystemClock#elapsedRealtimeNanos()}).
+     */
+    abstract long elapsedRealtimeNanos();
+
+    abstract void postDelayed(Runnable task, long delayMillis);
+
+    abstract void removeCallbacks(Runnable task);
+
+    /**
+     * Android clock, with timers run by handler.
+     */
+    static NovaClock of(final Handler handler) {
+        return new NovaClock() {
+            @Override
+            long uptimeMillis() {
+                return SystemClock.uptimeMillis();
+            }
+
+            @Override
+            long elapsedRealtimeNanos() {
+                return SystemClock.elapsedRealtimeNanos();
+            }
+
+            @Override
+            void postDelayed(Runnable task, long delayMillis) {
+                handler.postDelayed(task, delayMillis);
+            }
+
+            @Override
+            void removeCallbacks(Runnable task) {
+                handler.removeCallbacks(task);
+            }
+        };
+    }
+
+}
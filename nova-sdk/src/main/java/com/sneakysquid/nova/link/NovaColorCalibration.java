@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+/**
+ * Maps color temperatures to warm/cool LED levels, for
+ * {@link NovaFlashCommand#fromColorTemperature(int, int)}.
+ * <p/>
+ * Built from calibration points: the warm/cool mix that gives each of a few color temperatures
+ * at full brightness. These are interpolated (in mireds, which track perceived color evenly)
+ * into a table every 50K up front, and each resulting command is cached, so picking a flash to
+ * match the scene on every frame is a table lookup with no floating point or allocation.
+ * <p/>
+ * The default table is a nominal curve for the warm (~2700K) and cool (~6000K) LEDs of current
+ * devices. Swap in a measured one per firmware or device with {@link #setDefault}.
+ * <p/>
+ * Immutable (apart from its cache), and thread safe.
+ */
+public final class NovaColorCalibration {
+
+    public static final int MIN_KELVIN = 1000;
+    public static final int MAX_KELVIN = 20000;
+
+    private static final int STEP = 50; // Table resolution, in Kelvin.
+    private static final int LEVELS = 256; // Brightness 0-255.
+
+    private static volatile NovaColorCalibration defaultCalibration = new NovaColorCalibration(
+            new int[]{2700, 3200, 4000, 4500, 5000, 5500, 6000},
+            new int[]{255, 255, 255, 255, 170, 80, 0},
+            new int[]{0, 90, 200, 255, 255, 255, 255});
+
+    private final int minKelvin;
+    private final int maxKelvin;
+    private final short[] warm; // At full brightness, per STEP from minKelvin.
+    private final short[] cool;
+    private final NovaFlashCommand[][] cache; // Per STEP, then per brightness. Rows filled on demand.
+
+    /**
+     * @param kelvins Color temperatures calibrated, at least two, ascending.
+     * @param warm    Warm LED level (0-255) giving each color temperature at full brightness.
+     * @param cool    Cool LED level (0-255) giving each color temperature at full brightness.
+     */
+    public NovaColorCalibration(int[] kelvins, int[] warm, int[] cool) {
+        if (kelvins.length < 2 || warm.length != kelvins.length || cool.length != kelvins.length) {
+            throw new IllegalArgumentException("need at least two points, with warm and cool levels for each");
+        }
+        for (int i = 0; i < kelvins.length; i++) {
+            if (kelvins[i] < MIN_KELVIN || kelvins[i] > MAX_KELVIN || (i > 0 && kelvins[i] <= kelvins[i - 1])) {
+                throw new IllegalArgumentException("kelvins must ascend within " + MIN_KELVIN + " to " + MAX_KELVIN
+                        + " (value is " + kelvins[i] + ")");
+            }
+            if (warm[i] < 0 || warm[i] > 255 || cool[i] < 0 || cool[i] > 255) {
+                throw new IllegalArgumentException("levels must be in range 0 to 255 (values are " + warm[i]
+                        + ", " + cool[i] + ")");
+            }
+        }
+
+        this.minKelvin = kelvins[0];
+        this.maxKelvin = kelvins[kelvins.length - 1];
+        int size = (maxKelvin - minKelvin + STEP - 1) / STEP + 1;
+        this.warm = new short[size];
+        this.cool = new short[size];
+        this.cache = new NovaFlashCommand[size][];
+
+        int point = 0;
+        for (int i = 0; i < size; i++) {
+            int kelvin = Math.min(maxKelvin, minKelvin + i * STEP);
+            while (kelvin > kelvins[point + 1]) {
+                point++;
+            }
+            double lowMired = 1e6 / kelvins[point];
+            double highMired = 1e6 / kelvins[point + 1];
+            double t = (lowMired - 1e6 / kelvin) / (lowMired - highMired);
+            this.warm[i] = (short) Math.round(warm[point] + t * (warm[point + 1] - warm[point]));
+            this.cool[i] = (short) Math.round(cool[point] + t * (cool[point + 1] - cool[point]));
+        }
+    }
+
+    /**
+     * @return Calibration used by {@link NovaFlashCommand#fromColorTemperature(int, int)}.
+     */
+    public static NovaColorCalibration getDefault() {
+        return defaultCalibration;
+    }
+
+    /**
+     * Replace the calibration used by {@link NovaFlashCommand#fromColorTemperature(int, int)},
+     * e.g. with one measured for the connected device's firmware.
+     */
+    public static void setDefault(NovaColorCalibration calibration) {
+        if (calibration == null) {
+            throw new IllegalArgumentException("calibration must not be null");
+        }
+        defaultCalibration = calibration;
+    }
+
+    /**
+     * @return Lowest color temperature calibrated. Anything warmer gets this.
+     */
+    public int getMinKelvin() {
+        return minKelvin;
+    }
+
+    /**
+     * @return Highest color temperature calibrated. Anything cooler gets this.
+     */
+    public int getMaxKelvin() {
+        return maxKelvin;
+    }
+
+    /**
+     * Flash of a color temperature, to the nearest 50K within the calibrated range, with the
+     * default duration. The same instance is returned each time for the same settings.
+     *
+     * @param kelvin     Color temperature.
+     * @param brightness 0 (off) to 255 (brightest this color temperature allows).
+     */
+    public NovaFlashCommand command(int kelvin, int brightness) {
+        if (brightness < 0 || brightness > 255) {
+            throw new IllegalArgumentException("brightness must be in range 0 to 255 (value is " + brightness + ")");
+        }
+        int index = (Math.max(minKelvin, Math.min(maxKelvin, kelvin)) - minKelvin + STEP / 2) / STEP;
+
+        // Racing threads may each fill a row or entry, but commands are immutable, so any will do.
+        NovaFlashCommand[] row = cache[index];
+        if (row == null) {
+            row = new NovaFlashCommand[LEVELS];
+            cache[index] = row;
+        }
+        NovaFlashCommand cmd = row[brightness];
+        if (cmd == null) {
+            cmd = new NovaFlashCommand((warm[index] * brightness + 127) / 255, (cool[index] * brightness + 127) / 255);
+            row[brightness] = cmd;
+        }
+        return cmd;
+    }
+
+    /**
+     * Nominal color temperature of a camera white balance mode (as set with
+     * {@code android.hardware.Camera.Parameters#setWhiteBalance()}), so the flash can match it.
+     *
+     * @return Kelvin, or -1 for auto or unknown modes.
+     */
+    public static int whiteBalanceKelvin(String mode) {
+        if (mode == null) {
+            return -1;
+        }
+        // Values of Camera.Parameters.WHITE_BALANCE_*.
+        if (mode.equals("incandescent")) {
+            return 2700;
+        } else if (mode.equals("warm-fluorescent")) {
+            return 3000;
+        } else if (mode.equals("fluorescent")) {
+            return 4200;
+        } else if (mode.equals("daylight")) {
+            return 5500;
+        } else if (mode.equals("cloudy-daylight")) {
+            return 6500;
+        } else if (mode.equals("twilight")) {
+            return 4000;
+        } else if (mode.equals("shade")) {
+            return 7500;
+        }
+        return -1;
+    }
+
+}
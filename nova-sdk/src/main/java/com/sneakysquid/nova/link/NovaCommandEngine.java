@@ -0,0 +1,747 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.sneakysquid.nova.link.Debug.debug;
+import static com.sneakysquid.nova.link.NovaLink.NO_DEADLINE;
+import static com.sneakysquid.nova.link.NovaLink.NO_TOKEN;
+
+/**
+ * The command half of a link: queues commands, writes their frames one at a time, matches
+ * acks, and completes callbacks. It knows nothing of how frames reach the device, which is up
+ * to its {@link Host} (e.g. BluetoothLE, or a socket).
+ * <p/>
+ * Not thread safe. Only used from the link's thread, which is also where timers run (see
+ * {@link NovaClock}) and callbacks are triggered.
+ */
+final class NovaCommandEngine {
+
+    /**
+     * The link that owns this engine.
+     */
+    interface Host {
+
+        /**
+         * @return Whether commands can be accepted. If not, they complete with
+         * {@link NovaCompletionReason#NotReady}.
+         */
+        boolean isReady();
+
+        /**
+         * @return Whether writes must wait for now. Call {@link #processSendQueue()} when not.
+         */
+        boolean isWriteHeld();
+
+        /**
+         * Write a frame to the device. Its ack is expected through {@link #onResponse(byte[])}.
+         *
+         * @return false if the write failed.
+         */
+        boolean write(byte[] frame);
+
+        /**
+         * A flash or off has been requested (as opposed to a ping). The host may stop holding
+         * writes here; the engine then sends without being told.
+         */
+        void onFlashRequested();
+
+        /**
+         * The cmd written most recently has been acked.
+         */
+        void onAck(long roundTripNanos);
+
+        /**
+         * The cmd written most recently was not acked in time.
+         */
+        void onAckTimeout();
+    }
+
+    static final NovaCompletionCallback NO_OP_CALLBACK = new NovaCompletionCallback() {
+        @Override
+        public void onComplete(boolean successful) {
+            // no-op
+        }
+    };
+
+    // Outbound priority lanes. Lower number is sent first.
+    static final int PRIORITY_FLASH = 0;
+    static final int PRIORITY_OFF = 1;
+    static final int PRIORITY_PING = 2;
+    static final int PRIORITY_LANES = 3;
+
+    static final int ACK_TIMEOUT = 2000; // How long before we give up waiting for ack from device, in millis.
+    static final int QUEUE_CAPACITY = 32; // Max cmds queued or in flight. Any more are rejected.
+    static final int ID_QUARANTINE = 32000; // How long before reusing an unacked request id, in millis. BLE's
+                                            // longest supervision timeout: any later and the link is gone.
+    private static final int FRAME_CACHE_SIZE = 16; // How many distinct flash settings to keep encoded.
+
+    // Trace section/event names. See NovaTrace.
+    private static final String TRACE_CMD = "Nova cmd";
+    private static final String TRACE_CALLBACK = "Nova callback";
+
+    private final Host host;
+    private final NovaClock clock;
+    private final NovaLinkMetrics metrics;
+    private final NovaCompletionResult.Pool resultPool = new NovaCompletionResult.Pool(4);
+    private final NovaFrameCache frameCache = new NovaFrameCache(FRAME_CACHE_SIZE, NovaProtocol.Text);
+    private final NovaCommandQueue queue = new NovaCommandQueue(QUEUE_CAPACITY, PRIORITY_LANES);
+
+    private final NovaRequestIds requestIds = new NovaRequestIds(ID_QUARANTINE);
+    private int heldRequestId = NovaRequestIds.NONE; // Id of the cmd on the air, until acked or given up on.
+    private int awaitingAck = NovaCommandQueue.NONE; // Slot in queue.
+    private long lastWriteNanos;
+    private int queueLimit = QUEUE_CAPACITY - 1; // Queued cmds, not counting awaitingAck.
+    private NovaQueuePolicy queuePolicy = NovaQueuePolicy.RejectNew;
+    private NovaQueueListener queueListener;
+    private NovaSessionRecorder recorder;
+    private boolean queueSaturated = false;
+    private final AtomicBoolean ackTimerAllow = new AtomicBoolean();
+    private final AtomicBoolean stepTimerAllow = new AtomicBoolean();
+    private final AtomicBoolean idTimerAllow = new AtomicBoolean();
+    private final Runnable ackTimer = new Runnable() {
+        @Override
+        public void run() {
+            if (ackTimerAllow.getAndSet(false)) {
+                ackTookTooLong();
+            }
+        }
+    };
+    private final Runnable stepTimer = new Runnable() {
+        @Override
+        public void run() {
+            if (stepTimerAllow.getAndSet(false)) {
+                writeStep();
+            }
+        }
+    };
+
+    private final Runnable idTimer = new Runnable() {
+        @Override
+        public void run() {
+            if (idTimerAllow.getAndSet(false)) {
+                processSendQueue();
+            }
+        }
+    };
+
+    NovaCommandEngine(Host host, NovaClock clock, NovaLinkMetrics metrics) {
+        this.host = host;
+        this.clock = clock;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @see BluetoothLENovaLink#setQueueLimit(int, NovaQueuePolicy)
+     */
+    void setQueueLimit(int limit, NovaQueuePolicy policy) {
+        if (limit < 1 || limit > QUEUE_CAPACITY - 1) {
+            throw new IllegalArgumentException("limit must be in range 1 to " + (QUEUE_CAPACITY - 1)
+                    + " (value is " + limit + ")");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("policy must not be null");
+        }
+        this.queueLimit = limit;
+        this.queuePolicy = policy;
+        if (recorder != null) {
+            recorder.onQueueLimit(limit, policy);
+        }
+    }
+
+    void setQueueListener(NovaQueueListener listener) {
+        this.queueListener = listener;
+    }
+
+    /**
+     * Record commands, writes and completions to recorder. May be null.
+     */
+    void setRecorder(NovaSessionRecorder recorder) {
+        this.recorder = recorder;
+        if (recorder != null) {
+            recorder.attach(clock);
+            recorder.onProtocol(frameCache.getProtocol());
+            recorder.onQueueLimit(queueLimit, queuePolicy);
+        }
+    }
+
+    NovaProtocol getProtocol() {
+        return frameCache.getProtocol();
+    }
+
+    /**
+     * Switch protocol, e.g. after negotiating with a newly connected device.
+     */
+    void setProtocol(NovaProtocol protocol) {
+        frameCache.setProtocol(protocol);
+        if (recorder != null) {
+            recorder.onProtocol(protocol);
+        }
+    }
+
+    /**
+     * @return Whether nothing is queued or awaiting ack.
+     */
+    boolean isIdle() {
+        return awaitingAck == NovaCommandQueue.NONE && queue.size() == 0;
+    }
+
+    long beginFlash(NovaFlashCommand flashCmd, long deadline, NovaCompletionCallback callback) {
+        if (flashCmd.isPointless()) {
+            // settings say that flash is effectively off
+            return request(NovaCommandQueue.TYPE_OFF, 0, null, PRIORITY_OFF, deadline, callback);
+        } else {
+            int packed = NovaCommandQueue.pack(flashCmd.getWarmness(), flashCmd.getCoolness(), flashCmd.getDuration());
+            return request(NovaCommandQueue.TYPE_LIGHT, packed, null, PRIORITY_FLASH, deadline, callback);
+        }
+    }
+
+    long beginFlashSequence(NovaFlashSequence sequence, NovaCompletionCallback callback) {
+        // Encode up front, so the steps go out back-to-back. In one frame, if the protocol allows.
+        if (frameCache.batchFrame(sequence) == null) {
+            for (int step = 0; step < sequence.size(); step++) {
+                frameCache.flashFrame(sequence.getCommand(step));
+            }
+        }
+
+        return request(NovaCommandQueue.TYPE_SEQUENCE, 0, sequence, PRIORITY_FLASH, NO_DEADLINE, callback);
+    }
+
+    long endFlash(long deadline, NovaCompletionCallback callback) {
+        return request(NovaCommandQueue.TYPE_OFF, 0, null, PRIORITY_OFF, deadline, callback);
+    }
+
+    long ping(NovaCompletionCallback callback) {
+        return request(NovaCommandQueue.TYPE_PING, 0, null, PRIORITY_PING, NO_DEADLINE, callback);
+    }
+
+    /**
+     * @see NovaLink#cancel(long)
+     */
+    boolean cancel(long token) {
+        if (recorder != null) {
+            recorder.onCancel(token);
+        }
+
+        int slot = queue.slotOf(token);
+        if (slot == NovaCommandQueue.NONE || queue.callback[slot] == null) {
+            return false; // Already completed or cancelled.
+        }
+
+        if (queue.remove(slot)) {
+            // Never sent. Its tombstone is freed when it reaches the front of its lane.
+            debug("Cancelled queued %s", describe(slot));
+            notifyCancelled(slot);
+            queueDepthChanged();
+            return true;
+        }
+
+        if (slot == awaitingAck && stepTimerAllow.get()) {
+            // Sequence waiting between steps, so nothing is on the air. Free the link straight away.
+            debug("Cancelled sequence before %s", describe(slot));
+            failAwaitingAck(NovaCompletionReason.Cancelled);
+            processSendQueue();
+            return true;
+        }
+
+        // Already sent. Keep holding the link until it's acked (or times out), so the ack isn't
+        // mistaken for a later cmd's, but complete the caller now.
+        debug("Cancelled in flight %s", describe(slot));
+        notifyCancelled(slot);
+        return true;
+    }
+
+    /**
+     * Handle a frame received from the device.
+     *
+     * @return false if it breaks the protocol, in which case the host should disconnect.
+     */
+    boolean onResponse(byte[] response) {
+        NovaProtocol protocol = frameCache.getProtocol();
+        if (Debug.isEnabled()) {
+            debug("recv <-- %s", protocol.describe(response));
+        }
+
+        int responseId = protocol.parseAck(response);
+
+        if (responseId == NovaProtocol.PARSE_FAILED && NovaProtocol.parseCapability(response) != null
+                || responseId == NovaProtocol.CAPABILITY_ID) {
+            debug("Ignoring late capability reply");
+            return true;
+        }
+
+        if (responseId == NovaProtocol.PARSE_FAILED) {
+            debug("Failed to parse response '%s'", protocol.describe(response));
+            failAwaitingAck(NovaCompletionReason.ProtocolError);
+            return false;
+        }
+
+        if (requestIds.isQuarantined(responseId)) {
+            // The ack for a cmd that already timed out. Quarantine kept its id out of use, so it
+            // can't be mistaken for anything newer. Nothing else is coming for it now.
+            debug("Ignoring late ack (got: %d)", responseId);
+            requestIds.releaseQuarantined(responseId);
+            metrics.onRequestIdsQuarantined(requestIds.getQuarantined());
+            return true;
+        }
+
+        if (awaitingAck == NovaCommandQueue.NONE || stepTimerAllow.get()) {
+            // Between sequence steps, the next step isn't on the air yet, and the request id is
+            // still the last step's. Anything now (e.g. a duplicate ack) can't be for it.
+            debug("Was not expecting ack (got: %d)", responseId);
+            return false;
+        }
+
+        if (queue.requestId[awaitingAck] != responseId) {
+            debug("Unexpected ack (got: %d, expected: %d)", responseId, queue.requestId[awaitingAck]);
+            failAwaitingAck(NovaCompletionReason.ProtocolError);
+            return false;
+        }
+
+        if (Debug.isEnabled()) {
+            debug("ack  <-- %s", describe(awaitingAck));
+        }
+
+        int acked = awaitingAck;
+
+        // No longer awaiting the ack, so its id is free.
+        awaitingAck = NovaCommandQueue.NONE;
+        releaseRequestId();
+
+        // Cancel timeout timer.
+        cancelCmdTimers();
+
+        host.onAck(clock.elapsedRealtimeNanos() - lastWriteNanos);
+
+        if (queue.type[acked] == NovaCommandQueue.TYPE_SEQUENCE
+                && queue.step[acked] + 1 < queue.sequence[acked].size()
+                && frameCache.batchFrame(queue.sequence[acked]) == null /* not sent whole */
+                && queue.callback[acked] != null /* not cancelled */) {
+            // Mid-sequence. Hold the link for the next step rather than sending queued commands.
+            queue.step[acked]++;
+            queue.attempts[acked] = 0; // Counted per step, as for a single command.
+            sendStep(acked);
+            return true;
+        }
+
+        // Send any queued outbound messages.
+        processSendQueue();
+
+        // Trigger user callback.
+        complete(acked, NovaCompletionReason.Acknowledged);
+        return true;
+    }
+
+    /**
+     * Fail the cmd awaiting ack and all queued cmds, e.g. on disconnect. The host should already
+     * be not ready, so callbacks can't queue further cmds.
+     */
+    void failAll(NovaCompletionReason reason) {
+        cancelCmdTimers();
+        failAwaitingAck(reason);
+
+        // Acks can't arrive for cmds given up on now, so all ids are free.
+        idTimerAllow.set(false);
+        clock.removeCallbacks(idTimer);
+        requestIds.reset();
+        metrics.onRequestIdsQuarantined(0);
+
+        int slot;
+        while ((slot = queue.poll()) != NovaCommandQueue.NONE) {
+            complete(slot, reason);
+        }
+        queueDepthChanged();
+    }
+
+    private long request(byte type, int packed, NovaFlashSequence sequence, int priority, long deadline,
+                         NovaCompletionCallback callback) {
+        if (recorder != null) {
+            recorder.onCommand(type, packed, sequence, deadline);
+        }
+
+        if (callback == null) {
+            callback = NO_OP_CALLBACK;
+        }
+
+        if (!host.isReady()) {
+            complete(callback, NovaCompletionReason.NotReady, -1, clock.elapsedRealtimeNanos(), 0, 0, 0);
+            return NO_TOKEN;
+        }
+
+        if (priority != PRIORITY_PING) {
+            host.onFlashRequested();
+        }
+
+        if (priority == PRIORITY_FLASH) {
+            // A new flash replaces whatever light state a queued off was going to set. Sending
+            // the off after it (it's in a lower lane) would cut the new flash short.
+            int off;
+            while ((off = queue.poll(PRIORITY_OFF)) != NovaCommandQueue.NONE) {
+                complete(off, NovaCompletionReason.Superseded);
+            }
+        }
+
+        int slot = NovaCommandQueue.NONE;
+        if (queue.size() < queueLimit || makeRoom(priority)) {
+            slot = queue.allocate();
+        }
+        if (slot == NovaCommandQueue.NONE) {
+            debug("Queue full, rejecting command");
+            metrics.onQueueRejected();
+            complete(callback, NovaCompletionReason.QueueFull, -1, clock.elapsedRealtimeNanos(), 0, 0, 0);
+            processSendQueue(); // In case onFlashRequested() released a hold.
+            return NO_TOKEN;
+        }
+
+        queue.type[slot] = type;
+        queue.packed[slot] = packed;
+        queue.sequence[slot] = sequence;
+        queue.deadline[slot] = deadline;
+        queue.enqueuedNanos[slot] = clock.elapsedRealtimeNanos();
+        queue.callback[slot] = callback;
+
+        queue.offer(priority, slot);
+        long token = queue.token(slot);
+        NovaTrace.beginAsync(TRACE_CMD, (int) token);
+        processSendQueue();
+        return token;
+    }
+
+    /**
+     * If we're not waiting for anything to be acked, send the most urgent live cmd in the
+     * outbound queue.
+     */
+    void processSendQueue() {
+        int slot;
+        while (awaitingAck == NovaCommandQueue.NONE && !host.isWriteHeld()
+                && queue.size() > 0 && !waitForRequestId(idTimer, idTimerAllow)
+                && (slot = queue.poll()) != NovaCommandQueue.NONE) {
+
+            long deadline = queue.deadline[slot];
+            if (deadline != NO_DEADLINE && clock.uptimeMillis() > deadline) {
+                debug("Dropping expired %s", describe(slot));
+                complete(slot, NovaCompletionReason.Expired);
+                continue;
+            }
+
+            if (!write(slot)) {
+                complete(slot, NovaCompletionReason.WriteFailed); // And carry on, as nothing else will.
+            }
+        }
+
+        queueDepthChanged();
+    }
+
+    /**
+     * Queue is at its limit. Apply queuePolicy to make room for a new cmd.
+     *
+     * @return Whether room was made.
+     */
+    private boolean makeRoom(int priority) {
+        switch (queuePolicy) {
+            case DropOldest:
+                // Never drop a more urgent cmd for this one, e.g. a flash for a ping.
+                int oldestLane = -1;
+                for (int lane = priority; lane < PRIORITY_LANES; lane++) {
+                    int head = queue.peek(lane);
+                    if (head != NovaCommandQueue.NONE && (oldestLane == -1
+                            || queue.enqueuedNanos[head] < queue.enqueuedNanos[queue.peek(oldestLane)])) {
+                        oldestLane = lane;
+                    }
+                }
+                if (oldestLane == -1) {
+                    return false;
+                }
+                int oldest = queue.poll(oldestLane);
+                debug("Queue full, dropping %s", describe(oldest));
+                metrics.onQueueDropped();
+                complete(oldest, NovaCompletionReason.Dropped);
+                return true;
+            case Coalesce:
+                if (queue.size(priority) == 0) {
+                    return false;
+                }
+                int duplicate;
+                while ((duplicate = queue.poll(priority)) != NovaCommandQueue.NONE) {
+                    metrics.onQueueCoalesced();
+                    complete(duplicate, NovaCompletionReason.Superseded);
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Update metrics and notify queueListener of saturation/draining.
+     */
+    private void queueDepthChanged() {
+        int depth = queue.size();
+        metrics.onQueueDepth(depth);
+
+        if (!queueSaturated && depth >= queueLimit) {
+            queueSaturated = true;
+            if (queueListener != null) {
+                queueListener.onQueueSaturated(depth);
+            }
+        } else if (queueSaturated && depth == 0) {
+            queueSaturated = false;
+            if (queueListener != null) {
+                queueListener.onQueueDrained();
+            }
+        }
+    }
+
+    /**
+     * Send the current step of a sequence, after its delay. The link is held (awaitingAck is set)
+     * during the delay, so nothing else is sent in between.
+     */
+    private void sendStep(int slot) {
+        awaitingAck = slot;
+
+        int delay = queue.sequence[slot].getDelay(queue.step[slot]);
+        if (delay == 0) {
+            writeStep();
+            return;
+        }
+
+        stepTimerAllow.set(true);
+        clock.postDelayed(stepTimer, delay);
+    }
+
+    private void writeStep() {
+        int slot = awaitingAck;
+        if (slot == NovaCommandQueue.NONE || waitForRequestId(stepTimer, stepTimerAllow)) {
+            return;
+        }
+        awaitingAck = NovaCommandQueue.NONE;
+        if (!write(slot)) {
+            complete(slot, NovaCompletionReason.WriteFailed);
+            processSendQueue(); // Nothing else will, with no ack to wait for.
+        }
+    }
+
+    /**
+     * Write slot's command to device and start waiting for its ack.
+     *
+     * @return false if the write failed, in which case the cmd is not awaiting ack.
+     */
+    private boolean write(int slot) {
+        // Callers have checked one is available.
+        int requestId = requestIds.allocate(clock.elapsedRealtimeNanos());
+        heldRequestId = requestId;
+        queue.requestId[slot] = requestId;
+
+        // Only one frame is ever in flight, so it's safe to patch the shared template now.
+        byte[] frame = frameFor(slot);
+        frameCache.patchRequestId(frame, requestId);
+        if (Debug.isEnabled()) {
+            debug("send --> %s", frameCache.getProtocol().describe(frame));
+        }
+
+        queue.attempts[slot]++;
+        lastWriteNanos = clock.elapsedRealtimeNanos();
+        if (queue.writtenNanos[slot] == 0) {
+            queue.writtenNanos[slot] = lastWriteNanos;
+        }
+
+        // Write to device.
+        boolean written = host.write(frame);
+        if (recorder != null) {
+            recorder.onWrite(frame, written, false);
+        }
+        if (!written) {
+            releaseRequestId(); // Never on the air.
+            return false;
+        }
+
+        // Now we're waiting for this.
+        awaitingAck = slot;
+
+        // Set timer for acks so we don't hang forever waiting. Any timer left over from an
+        // earlier cmd is removed first, so it can't fire early for this one.
+        clock.removeCallbacks(ackTimer);
+        ackTimerAllow.set(true);
+        clock.postDelayed(ackTimer, ACK_TIMEOUT);
+        return true;
+    }
+
+    private void ackTookTooLong() {
+        if (awaitingAck != NovaCommandQueue.NONE) {
+            int slot = awaitingAck;
+            awaitingAck = NovaCommandQueue.NONE;
+            debug("Timeout waiting for %s ack", describe(slot));
+            quarantineRequestId();
+            host.onAckTimeout();
+            complete(slot, NovaCompletionReason.Timeout);
+        }
+
+        processSendQueue();
+    }
+
+    private void cancelCmdTimers() {
+        ackTimerAllow.set(false);
+        stepTimerAllow.set(false);
+        clock.removeCallbacks(ackTimer);
+        clock.removeCallbacks(stepTimer);
+    }
+
+    private void failAwaitingAck(NovaCompletionReason reason) {
+        if (awaitingAck != NovaCommandQueue.NONE) {
+            int slot = awaitingAck;
+            awaitingAck = NovaCommandQueue.NONE;
+            cancelCmdTimers();
+            quarantineRequestId();
+            complete(slot, reason);
+        }
+    }
+
+    /**
+     * If every request id is in use or quarantined, retry when the next is released.
+     *
+     * @return Whether to wait.
+     */
+    private boolean waitForRequestId(Runnable retry, AtomicBoolean retryAllow) {
+        long now = clock.elapsedRealtimeNanos();
+        if (requestIds.isAvailable(now)) {
+            return false;
+        }
+        debug("Request ids exhausted, %d quarantined", requestIds.getQuarantined());
+        metrics.onRequestIdsExhausted();
+        clock.removeCallbacks(retry);
+        retryAllow.set(true);
+        clock.postDelayed(retry, Math.max(1, (requestIds.nextReleaseNanos() - now + 999999) / 1000000));
+        return true;
+    }
+
+    private void releaseRequestId() {
+        if (heldRequestId != NovaRequestIds.NONE) {
+            requestIds.release(heldRequestId);
+            heldRequestId = NovaRequestIds.NONE;
+        }
+    }
+
+    /**
+     * Given up on the cmd on the air, but its ack may yet arrive. Keep its id out of use.
+     */
+    private void quarantineRequestId() {
+        if (heldRequestId != NovaRequestIds.NONE) {
+            requestIds.quarantine(heldRequestId, clock.elapsedRealtimeNanos());
+            heldRequestId = NovaRequestIds.NONE;
+            metrics.onRequestIdsQuarantined(requestIds.getQuarantined());
+        }
+    }
+
+    /**
+     * Encoded frame template for slot's command. For sequences, the current step, or all steps
+     * if the protocol can batch them.
+     */
+    private byte[] frameFor(int slot) {
+        switch (queue.type[slot]) {
+            case NovaCommandQueue.TYPE_LIGHT:
+                int packed = queue.packed[slot];
+                return frameCache.lightFrame(NovaCommandQueue.warm(packed), NovaCommandQueue.cool(packed),
+                        NovaCommandQueue.duration(packed));
+            case NovaCommandQueue.TYPE_OFF:
+                return frameCache.offFrame();
+            case NovaCommandQueue.TYPE_SEQUENCE:
+                NovaFlashSequence sequence = queue.sequence[slot];
+                byte[] batch = frameCache.batchFrame(sequence);
+                return batch != null ? batch : frameCache.flashFrame(sequence.getCommand(queue.step[slot]));
+            default:
+                return frameCache.pingFrame();
+        }
+    }
+
+    private String describe(int slot) {
+        return frameCache.toString(frameFor(slot), queue.requestId[slot]);
+    }
+
+    /**
+     * Complete slot's cmd and free the slot. For sequences, the result covers the whole sequence.
+     * If the cmd was cancelled, its callback has already been triggered.
+     */
+    private void complete(int slot, NovaCompletionReason reason) {
+        long ackedNanos = reason == NovaCompletionReason.Acknowledged ? clock.elapsedRealtimeNanos() : 0;
+        NovaCompletionCallback callback = queue.callback[slot];
+        int attempts = queue.attempts[slot];
+        int requestId = sentRequestId(slot);
+        long enqueuedNanos = queue.enqueuedNanos[slot];
+        long writtenNanos = queue.writtenNanos[slot];
+        if (NovaTrace.isEnabled()) {
+            NovaTrace.endAsync(TRACE_CMD, (int) queue.token(slot));
+        }
+
+        // Free the slot before the callback, which may well request another cmd.
+        queue.release(slot);
+
+        if (callback != null) {
+            complete(callback, reason, requestId, enqueuedNanos, writtenNanos, ackedNanos, attempts);
+        }
+    }
+
+    /**
+     * Trigger slot's callback as cancelled, without freeing the slot. Clearing the callback marks
+     * the cmd as cancelled, so its eventual completion is silent.
+     */
+    private void notifyCancelled(int slot) {
+        NovaCompletionCallback callback = queue.callback[slot];
+        queue.callback[slot] = null;
+        complete(callback, NovaCompletionReason.Cancelled, sentRequestId(slot),
+                queue.enqueuedNanos[slot], queue.writtenNanos[slot], 0, queue.attempts[slot]);
+    }
+
+    /**
+     * @return Request id slot's cmd was last written with, or -1 if it never was. Attempts are
+     * counted per sequence step, so a sequence between steps has none, but was written.
+     */
+    private int sentRequestId(int slot) {
+        return queue.attempts[slot] == 0 && queue.step[slot] == 0 ? -1 : queue.requestId[slot];
+    }
+
+    /**
+     * Trigger user callback. NovaResultCallbacks get a pooled result, everything else the
+     * plain success flag.
+     */
+    private void complete(NovaCompletionCallback callback, NovaCompletionReason reason, int requestId,
+                          long enqueuedNanos, long writtenNanos, long ackedNanos, int attempts) {
+        if (recorder != null) {
+            recorder.onComplete(reason, enqueuedNanos);
+        }
+
+        boolean trace = NovaTrace.begin(TRACE_CALLBACK);
+        try {
+            if (callback instanceof NovaResultCallback) {
+                NovaCompletionResult result = resultPool.obtain()
+                        .set(reason, requestId, enqueuedNanos, writtenNanos, ackedNanos, attempts);
+                try {
+                    ((NovaResultCallback) callback).onResult(result);
+                } finally {
+                    resultPool.release(result);
+                }
+            } else {
+                callback.onComplete(reason.isSuccessful());
+            }
+        } finally {
+            if (trace) {
+                NovaTrace.end();
+            }
+        }
+    }
+
+}
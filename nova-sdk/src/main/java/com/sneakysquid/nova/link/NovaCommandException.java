@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+/**
+ * Failure of a {@link NovaFuture} returned by {@link NovaAsyncLink}: the command completed,
+ * but not successfully.
+ */
+public class NovaCommandException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final NovaCompletionResult result;
+
+    public NovaCommandException(NovaCompletionResult result) {
+        super("Nova command failed: " + result.getReason());
+        this.result = result;
+    }
+
+    /**
+     * @return Details of the failed command. Safe to retain.
+     */
+    public NovaCompletionResult getResult() {
+        return result;
+    }
+
+    public NovaCompletionReason getReason() {
+        return result.getReason();
+    }
+
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+/**
+ * Fixed-capacity outbound command queue for the link, laid out as parallel arrays so that
+ * queueing and completing commands allocates nothing.
+ * <p/>
+ * A command lives in a slot, identified by index, from being requested until it completes.
+ * Slot fields are the package-visible arrays below, indexed by slot. Queued slots wait in one
+ * ring per priority lane; the link holds the slot being sent/acked separately.
+ * <p/>
+ * Each allocation of a slot gets a new generation, so a {@link #token(int) token} identifies one
+ * command even after its slot is reused. Queued slots can be {@link #remove(int) removed} in O(1):
+ * they're left in the ring as tombstones and skipped (and freed) when they reach the front.
+ * <p/>
+ * When all slots are in use, {@link #allocate()} returns {@link #NONE} and the link rejects the
+ * command with {@link NovaCompletionReason#QueueFull}. The link usually applies a lower limit
+ * first, see {@link NovaQueuePolicy}.
+ * <p/>
+ * Not thread safe. Only used from the link's thread.
+ */
+final class NovaCommandQueue {
+
+    static final int NONE = -1;
+
+    // Command types.
+    static final byte TYPE_PING = 0;
+    static final byte TYPE_OFF = 1;
+    static final byte TYPE_LIGHT = 2;
+    static final byte TYPE_SEQUENCE = 3;
+
+    final int capacity;
+    final int lanes;
+
+    // Slot fields.
+    final int[] requestId;
+    final byte[] type;
+    final int[] packed; // warm/cool/duration, for TYPE_LIGHT. See pack().
+    final NovaFlashSequence[] sequence; // For TYPE_SEQUENCE.
+    final int[] step; // Current step, for TYPE_SEQUENCE.
+    final long[] deadline;
+    final long[] enqueuedNanos;
+    final long[] writtenNanos;
+    final int[] attempts;
+    final NovaCompletionCallback[] callback;
+    private final int[] generation;
+    private final int[] laneOf; // Lane slot is queued in, or NONE.
+    private final boolean[] removed; // Tombstone, still in a ring.
+
+    // Free slots, as a stack.
+    private final int[] free;
+    private int freeCount;
+
+    // Queued slots, as one ring per lane.
+    private final int[][] rings;
+    private final int[] heads;
+    private final int[] counts; // Including tombstones.
+    private final int[] live; // Excluding tombstones.
+
+    NovaCommandQueue(int capacity, int lanes) {
+        if (capacity < 1 || capacity > 256) {
+            throw new IllegalArgumentException("capacity must be in range 1 to 256 (value is " + capacity + ")");
+        }
+        this.capacity = capacity;
+        this.lanes = lanes;
+
+        requestId = new int[capacity];
+        type = new byte[capacity];
+        packed = new int[capacity];
+        sequence = new NovaFlashSequence[capacity];
+        step = new int[capacity];
+        deadline = new long[capacity];
+        enqueuedNanos = new long[capacity];
+        writtenNanos = new long[capacity];
+        attempts = new int[capacity];
+        callback = new NovaCompletionCallback[capacity];
+        generation = new int[capacity];
+        laneOf = new int[capacity];
+        removed = new boolean[capacity];
+
+        free = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            free[i] = capacity - 1 - i;
+        }
+        freeCount = capacity;
+
+        rings = new int[lanes][capacity];
+        heads = new int[lanes];
+        counts = new int[lanes];
+        live = new int[lanes];
+    }
+
+    static int pack(int warm, int cool, int duration) {
+        return (warm << 24) | (cool << 16) | duration;
+    }
+
+    static int warm(int packed) {
+        return packed >>> 24;
+    }
+
+    static int cool(int packed) {
+        return (packed >>> 16) & 0xFF;
+    }
+
+    static int duration(int packed) {
+        return packed & 0xFFFF;
+    }
+
+    /**
+     * Take a free slot, with its fields reset.
+     *
+     * @return Slot, or {@link #NONE} if all slots are in use.
+     */
+    int allocate() {
+        if (freeCount == 0) {
+            compact();
+        }
+        if (freeCount == 0) {
+            return NONE;
+        }
+        int slot = free[--freeCount];
+        laneOf[slot] = NONE;
+        removed[slot] = false;
+        requestId[slot] = 0;
+        type[slot] = TYPE_PING;
+        packed[slot] = 0;
+        step[slot] = 0;
+        deadline[slot] = 0;
+        enqueuedNanos[slot] = 0;
+        writtenNanos[slot] = 0;
+        attempts[slot] = 0;
+        return slot;
+    }
+
+    /**
+     * Return a slot to the free list. It must not be queued.
+     */
+    void release(int slot) {
+        callback[slot] = null;
+        sequence[slot] = null;
+        generation[slot]++;
+        free[freeCount++] = slot;
+    }
+
+    /**
+     * Token identifying the command currently in slot. Tokens are non-negative.
+     */
+    long token(int slot) {
+        return ((long) generation[slot] << 8) | slot;
+    }
+
+    /**
+     * @return Slot still holding the command the token was issued for, or {@link #NONE} if that
+     *         command has since been released or removed.
+     */
+    int slotOf(long token) {
+        if (token < 0) {
+            return NONE;
+        }
+        int slot = (int) (token & 0xFF);
+        if (slot >= capacity || generation[slot] != (int) (token >>> 8) || removed[slot]) {
+            return NONE;
+        }
+        return slot;
+    }
+
+    /**
+     * Whether slot is waiting in a lane (as opposed to in flight, or free).
+     */
+    boolean isQueued(int slot) {
+        return laneOf[slot] != NONE;
+    }
+
+    /**
+     * Remove a queued slot in O(1). It's left as a tombstone and released once it reaches the
+     * front of its lane, so the caller must not release it.
+     *
+     * @return false if slot was not queued.
+     */
+    boolean remove(int slot) {
+        int lane = laneOf[slot];
+        if (lane == NONE) {
+            return false;
+        }
+        laneOf[slot] = NONE;
+        removed[slot] = true;
+        live[lane]--;
+        return true;
+    }
+
+    /**
+     * Number of slots in use, whether queued or in flight.
+     */
+    int used() {
+        return capacity - freeCount;
+    }
+
+    /**
+     * Append slot to the back of a lane.
+     */
+    void offer(int lane, int slot) {
+        int[] ring = rings[lane];
+        ring[(heads[lane] + counts[lane]) % capacity] = slot;
+        counts[lane]++;
+        live[lane]++;
+        laneOf[slot] = lane;
+    }
+
+    /**
+     * Remove from the front of a lane.
+     *
+     * @return Slot, or {@link #NONE} if lane is empty.
+     */
+    int poll(int lane) {
+        int slot = peek(lane);
+        if (slot != NONE) {
+            heads[lane] = (heads[lane] + 1) % capacity;
+            counts[lane]--;
+            live[lane]--;
+            laneOf[slot] = NONE;
+        }
+        return slot;
+    }
+
+    /**
+     * Front of a lane, without removing it.
+     *
+     * @return Slot, or {@link #NONE} if lane is empty.
+     */
+    int peek(int lane) {
+        // Sweep tombstones off the front.
+        while (counts[lane] != 0) {
+            int slot = rings[lane][heads[lane]];
+            if (!removed[slot]) {
+                return slot;
+            }
+            heads[lane] = (heads[lane] + 1) % capacity;
+            counts[lane]--;
+            release(slot);
+        }
+        return NONE;
+    }
+
+    /**
+     * Remove from the front of the highest priority (lowest numbered) non-empty lane.
+     *
+     * @return Slot, or {@link #NONE} if all lanes are empty.
+     */
+    int poll() {
+        for (int lane = 0; lane < lanes; lane++) {
+            if (live[lane] != 0) {
+                return poll(lane);
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Number of queued slots, across all lanes.
+     */
+    int size() {
+        int total = 0;
+        for (int lane = 0; lane < lanes; lane++) {
+            total += live[lane];
+        }
+        return total;
+    }
+
+    /**
+     * Number of queued slots in a lane.
+     */
+    int size(int lane) {
+        return live[lane];
+    }
+
+    /**
+     * Release all tombstones, wherever they are in their rings. O(capacity), only done when
+     * out of free slots.
+     */
+    private void compact() {
+        for (int lane = 0; lane < lanes; lane++) {
+            int[] ring = rings[lane];
+            int kept = 0;
+            for (int i = 0; i < counts[lane]; i++) {
+                int slot = ring[(heads[lane] + i) % capacity];
+                if (removed[slot]) {
+                    release(slot);
+                } else {
+                    ring[(heads[lane] + kept++) % capacity] = slot;
+                }
+            }
+            counts[lane] = kept;
+        }
+    }
+
+}
@@ -18,6 +18,9 @@ package com.sneakysquid.nova.link;
 
 /**
  * Clients implement this to receive async acknowledgement of command.
+ * <p/>
+ * To find out why a command failed (and whether it's worth retrying), extend
+ * {@link NovaResultCallback} instead.
  *
  * @author Joe Walnes
  */
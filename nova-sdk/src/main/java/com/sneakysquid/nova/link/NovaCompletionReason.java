@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+/**
+ * Why a command completed the way it did.
+ *
+ * @see NovaCompletionResult
+ */
+public enum NovaCompletionReason {
+
+    /**
+     * Device acknowledged the command. The only successful outcome.
+     */
+    Acknowledged,
+
+    /**
+     * Link was not {@link NovaLinkStatus#Ready} when the command was requested.
+     */
+    NotReady,
+
+    /**
+     * Command could not be written to the device.
+     */
+    WriteFailed,
+
+    /**
+     * Link's command queue was full, so the command was rejected without being queued.
+     *
+     * @see NovaQueuePolicy#RejectNew
+     */
+    QueueFull,
+
+    /**
+     * Command was dropped from a full queue to make room for a newer one.
+     *
+     * @see NovaQueuePolicy#DropOldest
+     */
+    Dropped,
+
+    /**
+     * Command was written but the device did not acknowledge it in time.
+     */
+    Timeout,
+
+    /**
+     * Device responded with something that could not be matched to the command (unparseable,
+     * unexpected or wrong request id). The link disconnects after this.
+     */
+    ProtocolError,
+
+    /**
+     * Link was disconnected (or disabled) before the command completed.
+     */
+    Disconnected,
+
+    /**
+     * Command's deadline passed before it could be sent, so it was dropped without being written.
+     */
+    Expired,
+
+    /**
+     * Command was still queued when a newer command made it redundant (e.g. an off queued
+     * behind a new flash, or a {@link NovaQueuePolicy#Coalesce coalesced} duplicate), so it was
+     * dropped without being written.
+     */
+    Superseded,
+
+    /**
+     * Command was cancelled by the caller.
+     *
+     * @see NovaLink#cancel(long)
+     */
+    Cancelled,
+
+    /**
+     * Completed by a caller that only knows success or failure, e.g. a direct call to
+     * {@link NovaResultCallback#onComplete(boolean)}.
+     */
+    Unknown;
+
+    public boolean isSuccessful() {
+        return this == Acknowledged;
+    }
+
+    /**
+     * Whether sending the same command again could reasonably succeed. False for outcomes that
+     * are final (success, or the command being deliberately dropped) and for NotReady, where
+     * retrying before the link reports {@link NovaLinkStatus#Ready} is pointless.
+     */
+    public boolean isRetryable() {
+        switch (this) {
+            case QueueFull:
+            case WriteFailed:
+            case Timeout:
+            case ProtocolError:
+            case Disconnected:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+import java.io.Serializable;
+
+/**
+ * Detailed outcome of a command, passed to {@link NovaResultCallback}.
+ * <p/>
+ * Instances are recycled by the link once the callback returns, so they must not be retained.
+ * Use {@link #copy()} to keep one around.
+ * <p/>
+ * Timestamps are in {@link android.os.SystemClock#elapsedRealtimeNanos()} base, and 0 if that
+ * stage was never reached.
+ */
+public final class NovaCompletionResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private NovaCompletionReason reason;
+    private int requestId;
+    private long enqueuedNanos;
+    private long writtenNanos;
+    private long ackedNanos;
+    private int attempts;
+
+    NovaCompletionResult() {
+    }
+
+    NovaCompletionResult set(NovaCompletionReason reason, int requestId,
+                             long enqueuedNanos, long writtenNanos, long ackedNanos, int attempts) {
+        this.reason = reason;
+        this.requestId = requestId;
+        this.enqueuedNanos = enqueuedNanos;
+        this.writtenNanos = writtenNanos;
+        this.ackedNanos = ackedNanos;
+        this.attempts = attempts;
+        return this;
+    }
+
+    /**
+     * @see NovaCompletionReason
+     */
+    public NovaCompletionReason getReason() {
+        return reason;
+    }
+
+    public boolean isSuccessful() {
+        return reason.isSuccessful();
+    }
+
+    /**
+     * @return Protocol request id the command was sent with (0-254), or -1 if it was never assigned one.
+     */
+    public int getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * @return When the command was requested.
+     */
+    public long getEnqueuedNanos() {
+        return enqueuedNanos;
+    }
+
+    /**
+     * @return When the command was last written to the device, or 0 if it never was.
+     */
+    public long getWrittenNanos() {
+        return writtenNanos;
+    }
+
+    /**
+     * @return When the device's ack arrived, or 0 if it didn't.
+     */
+    public long getAckedNanos() {
+        return ackedNanos;
+    }
+
+    /**
+     * @return How many times the command was written to the device. A sequence sent step by step
+     * counts the writes of the step it finished on, so one acked without retries reports 1,
+     * however many steps it has.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return Time from write to ack in nanos, or -1 if the command was not acknowledged.
+     */
+    public long getRoundTripNanos() {
+        return ackedNanos == 0 || writtenNanos == 0 ? -1 : ackedNanos - writtenNanos;
+    }
+
+    /**
+     * @return A copy that is safe to retain after the callback returns.
+     */
+    public NovaCompletionResult copy() {
+        return new NovaCompletionResult().set(reason, requestId, enqueuedNanos, writtenNanos, ackedNanos, attempts);
+    }
+
+    @Override
+    public String toString() {
+        return "NovaCompletionResult{" +
+                "reason=" + reason +
+                ", requestId=" + requestId +
+                ", enqueuedNanos=" + enqueuedNanos +
+                ", writtenNanos=" + writtenNanos +
+                ", ackedNanos=" + ackedNanos +
+                ", attempts=" + attempts +
+                '}';
+    }
+
+    /**
+     * Free list of results, so completing a command doesn't allocate. Only touched from the
+     * link's thread. Callbacks can trigger further completions before returning, hence more
+     * than one instance.
+     */
+    static final class Pool {
+
+        private final NovaCompletionResult[] free;
+        private int size;
+
+        Pool(int capacity) {
+            free = new NovaCompletionResult[capacity];
+            for (size = 0; size < capacity; size++) {
+                free[size] = new NovaCompletionResult();
+            }
+        }
+
+        NovaCompletionResult obtain() {
+            return size == 0 ? new NovaCompletionResult() : free[--size];
+        }
+
+        void release(NovaCompletionResult result) {
+            if (size < free.length) {
+                free[size++] = result;
+            }
+        }
+    }
+
+}
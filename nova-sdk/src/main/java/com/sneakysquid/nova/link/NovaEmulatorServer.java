@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Set;
+
+import static com.sneakysquid.nova.link.Debug.debug;
+
+/**
+ * Serves virtual Novas (each a {@link NovaSimulatedDevice}) to {@link SocketNovaLink}s: every
+ * connection accepted gets its own device. Runs on a {@link NovaSocketLoop}, so one thread can
+ * serve thousands of links.
+ * <p/>
+ * Runs in process, for soak tests, sharing the loop with the links. For bench rigs, run it
+ * standalone with NovaEmulatorServerTool from the test sources.
+ */
+public final class NovaEmulatorServer {
+
+    public static final int DEFAULT_PORT = 7531;
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private final NovaSocketLoop loop;
+    private final ServerSocketChannel server;
+    private final boolean binaryCapable;
+
+    private final Set<Connection> connections = new HashSet<Connection>();
+    private long requests;
+
+    /**
+     * Start listening. Connections are accepted once the loop runs.
+     *
+     * @param loop          Loop to serve from.
+     * @param port          Port to listen on, or 0 to pick any free port (see {@link #getPort()}).
+     * @param binaryCapable Whether devices support the binary protocol, or play old firmware.
+     */
+    public NovaEmulatorServer(NovaSocketLoop loop, int port, boolean binaryCapable) throws IOException {
+        this.loop = loop;
+        this.binaryCapable = binaryCapable;
+        server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.socket().setReuseAddress(true);
+        server.socket().bind(new InetSocketAddress(port));
+        loop.register(server, SelectionKey.OP_ACCEPT, new NovaSocketLoop.Listener() {
+            @Override
+            public void onSelected(SelectionKey key) {
+                accept();
+            }
+        });
+    }
+
+    /**
+     * @return Port being listened on.
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * @return How many connections are open.
+     */
+    public int getConnections() {
+        return connections.size();
+    }
+
+    /**
+     * @return How many requests have been answered, across all connections.
+     */
+    public long getRequests() {
+        return requests;
+    }
+
+    /**
+     * Stop listening, and drop all connections.
+     */
+    public void close() throws IOException {
+        loop.assertOnLoopThread();
+
+        server.close();
+        // Snapshot, as closing a connection removes it.
+        for (Connection connection : connections.toArray(new Connection[connections.size()])) {
+            connection.close();
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                new Connection(channel);
+            }
+        } catch (IOException e) {
+            // Not fatal to the other connections.
+            debug("Emulator failed to accept: %s", e);
+        }
+    }
+
+    /**
+     * One virtual Nova.
+     */
+    private class Connection implements NovaSocketLoop.Listener {
+
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final NovaSimulatedDevice device = new NovaSimulatedDevice(binaryCapable);
+        private final NovaStreamFraming framing = new NovaStreamFraming();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE); // Ready for writing to.
+
+        Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.key = loop.register(channel, SelectionKey.OP_READ, this);
+            connections.add(this);
+        }
+
+        @Override
+        public void onSelected(SelectionKey key) {
+            try {
+                if (key.isWritable()) {
+                    flush();
+                }
+                if (key.isReadable()) {
+                    if (channel.read(readBuffer) < 0) {
+                        close();
+                        return;
+                    }
+                    readBuffer.flip();
+                    byte[] frame;
+                    while ((frame = framing.next(readBuffer)) != null) {
+                        byte[] response = device.onRequest(frame);
+                        if (response == null) {
+                            continue; // Like firmware, ignore what can't be parsed.
+                        }
+                        requests++;
+                        if (!NovaStreamFraming.put(writeBuffer, response)) {
+                            close(); // Client isn't reading.
+                            return;
+                        }
+                    }
+                    readBuffer.compact();
+                    flush();
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void flush() throws IOException {
+            writeBuffer.flip();
+            channel.write(writeBuffer);
+            boolean more = writeBuffer.hasRemaining();
+            writeBuffer.compact();
+            key.interestOps(more ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        private void close() {
+            if (!channel.isOpen()) {
+                return;
+            }
+            connections.remove(this);
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Closing anyway.
+            }
+        }
+    }
+
+}
@@ -16,14 +16,21 @@
 
 package com.sneakysquid.nova.link;
 
+import android.os.Parcel;
+import android.os.Parcelable;
+
 import java.io.Serializable;
 
 /**
  * Details of flash to send to Nova.
+ * <p/>
+ * A command also packs into a single long (see {@link #pack(int, int, int)}), which is how it's
+ * parceled, and how {@link NovaFlashPresets} stores it. Prefer that to Java serialization for
+ * storing or sending commands.
  *
  * @author Joe Walnes
  */
-public final class NovaFlashCommand implements Serializable {
+public final class NovaFlashCommand implements Serializable, Parcelable {
 
     private final int warmness;
     private final int coolness;
@@ -31,6 +38,26 @@ public final class NovaFlashCommand implements Serializable {
 
     public static final int DEFAULT_DURATION = 1500;
 
+    public static final Parcelable.Creator<NovaFlashCommand> CREATOR = new Parcelable.Creator<NovaFlashCommand>() {
+        @Override
+        public NovaFlashCommand createFromParcel(Parcel source) {
+            return fromPacked(source.readLong());
+        }
+
+        @Override
+        public NovaFlashCommand[] newArray(int size) {
+            return new NovaFlashCommand[size];
+        }
+    };
+
+    // Presets are immutable, so share single instances rather than allocating on every shot.
+    private static final NovaFlashCommand OFF = new NovaFlashCommand();
+    private static final NovaFlashCommand GENTLE = new NovaFlashCommand(31, 31);
+    private static final NovaFlashCommand WARM = new NovaFlashCommand(255, 127);
+    private static final NovaFlashCommand NEUTRAL = new NovaFlashCommand(0, 255);
+    private static final NovaFlashCommand BRIGHT = new NovaFlashCommand(255, 255);
+    private static final NovaFlashCommand[] PRESETS = {OFF, GENTLE, WARM, NEUTRAL, BRIGHT};
+
     /**
      * @param warmness Brightness of warm LEDs (0=off, 255=fullpower)
      * @param coolness Brightness of cool LEDs (0=off, 255=fullpower)
@@ -78,6 +105,75 @@ public final class NovaFlashCommand implements Serializable {
         return duration;
     }
 
+    /**
+     * @return This command packed into a long. See {@link #pack(int, int, int)}.
+     */
+    public long toPacked() {
+        return pack(warmness, coolness, duration);
+    }
+
+    /**
+     * Pack flash settings into a long: warmness in bits 24-31, coolness in bits 16-23 and
+     * duration in bits 0-15. The upper 32 bits are reserved, and zero. Stable across versions,
+     * so safe to store.
+     */
+    public static long pack(int warmness, int coolness, int duration) {
+        // Same checks as the constructor, without the allocation.
+        if ((warmness & ~0xFF) != 0 || (coolness & ~0xFF) != 0 || (duration & ~0xFFFF) != 0) {
+            throw new IllegalArgumentException("warmness, coolness and duration must be in ranges 0 to 255, 0 to 255"
+                    + " and 0 to 65535 (values are " + warmness + ", " + coolness + ", " + duration + ")");
+        }
+        return ((long) warmness << 24) | (coolness << 16) | duration;
+    }
+
+    /**
+     * @return Warmness of a packed command.
+     */
+    public static int packedWarmness(long packed) {
+        return (int) (packed >>> 24) & 0xFF;
+    }
+
+    /**
+     * @return Coolness of a packed command.
+     */
+    public static int packedCoolness(long packed) {
+        return (int) (packed >>> 16) & 0xFF;
+    }
+
+    /**
+     * @return Duration of a packed command.
+     */
+    public static int packedDuration(long packed) {
+        return (int) packed & 0xFFFF;
+    }
+
+    /**
+     * Unpack a command. Presets come back as the shared preset instances.
+     *
+     * @throws IllegalArgumentException if packed is not a packed command.
+     */
+    public static NovaFlashCommand fromPacked(long packed) {
+        if ((packed & ~0xFFFFFFFFL) != 0) {
+            throw new IllegalArgumentException("not a packed command (value is " + Long.toHexString(packed) + ")");
+        }
+        for (NovaFlashCommand preset : PRESETS) {
+            if (preset.toPacked() == packed) {
+                return preset;
+            }
+        }
+        return new NovaFlashCommand(packedWarmness(packed), packedCoolness(packed), packedDuration(packed));
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(toPacked());
+    }
+
     /**
      * Is the flash pointless? i.e. LEDs are off, or duration is 0.
      */
@@ -123,7 +219,7 @@ public final class NovaFlashCommand implements Serializable {
      * Preset settings for flash 'off'. No flash will occur.
      */
     public static NovaFlashCommand off() {
-        return new NovaFlashCommand();
+        return OFF;
     }
 
     /**
@@ -131,7 +227,7 @@ public final class NovaFlashCommand implements Serializable {
      * A slight warm light, ideal for closeup photos.
      */
     public static NovaFlashCommand gentle() {
-        return new NovaFlashCommand(31, 31);
+        return GENTLE;
     }
 
     /**
@@ -139,7 +235,7 @@ public final class NovaFlashCommand implements Serializable {
      * A bright natural looking warm light, ideal for people portraits at night.
      */
     public static NovaFlashCommand warm() {
-        return new NovaFlashCommand(255, 127);
+        return WARM;
     }
 
     /**
@@ -147,7 +243,7 @@ public final class NovaFlashCommand implements Serializable {
      * Cool LEDs for a whiter white.
      */
     public static NovaFlashCommand neutral() {
-        return new NovaFlashCommand(0, 255);
+        return NEUTRAL;
     }
 
     /**
@@ -155,7 +251,7 @@ public final class NovaFlashCommand implements Serializable {
      * The brightest mode, with all LEDs at full brightness.
      */
     public static NovaFlashCommand bright() {
-        return new NovaFlashCommand(255, 255);
+        return BRIGHT;
     }
 
     /**
@@ -173,6 +269,32 @@ public final class NovaFlashCommand implements Serializable {
         return new NovaFlashCommand(warm, cool, duration);
     }
 
+    /**
+     * Flash of a color temperature, using {@link NovaColorCalibration#getDefault()}. Cached, so
+     * cheap enough to call for every frame.
+     *
+     * @param kelvin     Color temperature, e.g. 2700 for incandescent, 5500 for daylight.
+     *                   Clamped to the calibrated range.
+     * @param brightness 0 (off) to 255 (brightest this color temperature allows).
+     */
+    public static NovaFlashCommand fromColorTemperature(int kelvin, int brightness) {
+        return NovaColorCalibration.getDefault().command(kelvin, brightness);
+    }
+
+    /**
+     * Flash matching a camera white balance mode (as set with
+     * {@code android.hardware.Camera.Parameters#setWhiteBalance()}), so flash-lit subjects
+     * and ambient-lit background come out the same color.
+     *
+     * @param brightness 0 (off) to 255 (brightest this color temperature allows).
+     * @return Flash, or null for auto or unknown modes: estimate the scene's color temperature
+     * and use {@link #fromColorTemperature(int, int)} instead.
+     */
+    public static NovaFlashCommand matchingWhiteBalance(String mode, int brightness) {
+        int kelvin = NovaColorCalibration.whiteBalanceKelvin(mode);
+        return kelvin == -1 ? null : fromColorTemperature(kelvin, brightness);
+    }
+
     /**
      * Creates a new instance of this warm/cool config, but with a different duration.
      */
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.Arrays;
+
+/**
+ * Ordered list of flash presets, stored as packed longs (see
+ * {@link NovaFlashCommand#pack(int, int, int)}) rather than as command objects.
+ * <p/>
+ * Parcelable for Bundles and IPC, and {@link #encode()}s to a short string for
+ * SharedPreferences, neither using Java serialization. Settings can be read per preset without
+ * creating commands ({@link #getWarmness(int)} etc).
+ * <p/>
+ * Not thread safe.
+ */
+public final class NovaFlashPresets implements Parcelable {
+
+    public static final Parcelable.Creator<NovaFlashPresets> CREATOR = new Parcelable.Creator<NovaFlashPresets>() {
+        @Override
+        public NovaFlashPresets createFromParcel(Parcel source) {
+            int size = source.readInt();
+            NovaFlashPresets presets = new NovaFlashPresets(size);
+            for (int i = 0; i < size; i++) {
+                presets.addPacked(source.readLong());
+            }
+            return presets;
+        }
+
+        @Override
+        public NovaFlashPresets[] newArray(int size) {
+            return new NovaFlashPresets[size];
+        }
+    };
+
+    private long[] packed;
+    private int size;
+
+    public NovaFlashPresets() {
+        this(8);
+    }
+
+    /**
+     * @param capacity How many presets to make room for up front.
+     */
+    public NovaFlashPresets(int capacity) {
+        packed = new long[Math.max(1, capacity)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void add(NovaFlashCommand cmd) {
+        addPacked(cmd.toPacked());
+    }
+
+    /**
+     * @throws IllegalArgumentException if value is not a packed command.
+     */
+    public void addPacked(long value) {
+        checkPacked(value);
+        if (size == packed.length) {
+            packed = Arrays.copyOf(packed, size * 2);
+        }
+        packed[size++] = value;
+    }
+
+    public void set(int index, NovaFlashCommand cmd) {
+        checkIndex(index);
+        packed[index] = cmd.toPacked();
+    }
+
+    public void remove(int index) {
+        checkIndex(index);
+        System.arraycopy(packed, index + 1, packed, index, size - index - 1);
+        size--;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return Preset as a command. Presets matching the built-in ones (e.g.
+     * {@link NovaFlashCommand#warm()}) return the shared instances; others are created each call.
+     */
+    public NovaFlashCommand get(int index) {
+        return NovaFlashCommand.fromPacked(getPacked(index));
+    }
+
+    public long getPacked(int index) {
+        checkIndex(index);
+        return packed[index];
+    }
+
+    public int getWarmness(int index) {
+        return NovaFlashCommand.packedWarmness(getPacked(index));
+    }
+
+    public int getCoolness(int index) {
+        return NovaFlashCommand.packedCoolness(getPacked(index));
+    }
+
+    public int getDuration(int index) {
+        return NovaFlashCommand.packedDuration(getPacked(index));
+    }
+
+    /**
+     * @return Index of the first preset with the same settings as cmd, or -1 if none.
+     */
+    public int indexOf(NovaFlashCommand cmd) {
+        long value = cmd.toPacked();
+        for (int i = 0; i < size; i++) {
+            if (packed[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return Presets as a string, e.g. for SharedPreferences. Read back with {@link #decode(String)}.
+     */
+    public String encode() {
+        StringBuilder result = new StringBuilder(size * 9);
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                result.append(',');
+            }
+            result.append(Long.toHexString(packed[i]));
+        }
+        return result.toString();
+    }
+
+    /**
+     * @param encoded As returned by {@link #encode()}.
+     * @throws IllegalArgumentException if encoded is malformed.
+     */
+    public static NovaFlashPresets decode(String encoded) {
+        if (encoded.length() == 0) {
+            return new NovaFlashPresets();
+        }
+        String[] values = encoded.split(",");
+        NovaFlashPresets presets = new NovaFlashPresets(values.length);
+        for (String value : values) {
+            try {
+                presets.addPacked(Long.parseLong(value, 16));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("malformed presets (" + encoded + ")", e);
+            }
+        }
+        return presets;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            dest.writeLong(packed[i]);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || this.getClass() != o.getClass()) return false;
+        NovaFlashPresets that = (NovaFlashPresets) o;
+        if (this.size != that.size) return false;
+        for (int i = 0; i < size; i++) {
+            if (this.packed[i] != that.packed[i]) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 1;
+        for (int i = 0; i < size; i++) {
+            result = 31 * result + (int) (packed[i] ^ (packed[i] >>> 32));
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("NovaFlashPresets[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                result.append(", ");
+            }
+            result.append(getWarmness(i)).append('/').append(getCoolness(i)).append('/').append(getDuration(i));
+        }
+        return result.append(']').toString();
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index must be in range 0 to " + (size - 1) + " (value is " + index + ")");
+        }
+    }
+
+    private static void checkPacked(long value) {
+        if ((value & ~0xFFFFFFFFL) != 0) {
+            throw new IllegalArgumentException("not a packed command (value is " + Long.toHexString(value) + ")");
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A series of flash steps sent to Nova as one operation, e.g. a low power pre-flash followed by
+ * the main flash.
+ * <p/>
+ * Each step is a {@link NovaFlashCommand}, sent a given delay after the previous step was
+ * acknowledged. The steps hold the link for the whole sequence, so no other command is sent
+ * in between, and the caller gets a single completion once the last step is acknowledged (or
+ * any step fails).
+ * <p/>
+ * Steps rely on the duration of each command to turn the light off, so a sequence doesn't need
+ * to end with an explicit off. Usually the last step is the main flash, and its completion is
+ * the signal to trigger the camera shutter.
+ * <p/>
+ * Instances are immutable, so a sequence can be built once and reused for every shot.
+ *
+ * @see NovaLink#beginFlashSequence(NovaFlashSequence, NovaCompletionCallback)
+ */
+public final class NovaFlashSequence implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final NovaFlashCommand[] commands;
+    private final int[] delays;
+
+    private NovaFlashSequence(NovaFlashCommand[] commands, int[] delays) {
+        this.commands = commands;
+        this.delays = delays;
+    }
+
+    /**
+     * Start a sequence. The first step is sent as soon as the link is free.
+     */
+    public static NovaFlashSequence start(NovaFlashCommand first) {
+        return new NovaFlashSequence(new NovaFlashCommand[]{first}, new int[]{0});
+    }
+
+    /**
+     * Preset sequence for red-eye reduction: a pre-flash to contract the subject's pupils,
+     * a pause, then the main flash.
+     *
+     * @param preFlash  Pre-flash, typically low power with a short duration.
+     * @param gapMillis Delay between pre-flash being acknowledged and the main flash being sent.
+     * @param mainFlash Main flash.
+     */
+    public static NovaFlashSequence withPreFlash(NovaFlashCommand preFlash, int gapMillis, NovaFlashCommand mainFlash) {
+        return start(preFlash).thenAfter(gapMillis, mainFlash);
+    }
+
+    /**
+     * Creates a new sequence with an extra step, sent delayMillis after the current last step
+     * is acknowledged.
+     */
+    public NovaFlashSequence thenAfter(int delayMillis, NovaFlashCommand next) {
+        if (delayMillis < 0 || delayMillis > 65535) {
+            throw new IllegalArgumentException("delayMillis must be in range 0 to 65535 (value is " + delayMillis + ")");
+        }
+        if (next == null) {
+            throw new IllegalArgumentException("next must not be null");
+        }
+        int count = commands.length;
+        NovaFlashCommand[] newCommands = Arrays.copyOf(commands, count + 1);
+        int[] newDelays = Arrays.copyOf(delays, count + 1);
+        newCommands[count] = next;
+        newDelays[count] = delayMillis;
+        return new NovaFlashSequence(newCommands, newDelays);
+    }
+
+    /**
+     * Creates a new sequence that turns the light off delayMillis after the current last step
+     * is acknowledged, rather than waiting for that step's duration to run out.
+     */
+    public NovaFlashSequence thenOffAfter(int delayMillis) {
+        return thenAfter(delayMillis, NovaFlashCommand.off());
+    }
+
+    /**
+     * @return Number of steps.
+     */
+    public int size() {
+        return commands.length;
+    }
+
+    /**
+     * @return Flash settings of step. An {@link NovaFlashCommand#isPointless() pointless} command
+     *         turns the light off.
+     */
+    public NovaFlashCommand getCommand(int step) {
+        return commands[step];
+    }
+
+    /**
+     * @return Delay, in millis, between the previous step's acknowledgement and this step being sent.
+     *         Always 0 for the first step.
+     */
+    public int getDelay(int step) {
+        return delays[step];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || this.getClass() != o.getClass()) return false;
+        NovaFlashSequence that = (NovaFlashSequence) o;
+        return Arrays.equals(this.commands, that.commands)
+               && Arrays.equals(this.delays, that.delays);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(commands) + Arrays.hashCode(delays);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("NovaFlashSequence{");
+        for (int i = 0; i < commands.length; i++) {
+            if (i > 0) {
+                result.append(", +").append(delays[i]).append("ms ");
+            }
+            result.append(commands[i]);
+        }
+        return result.append('}').toString();
+    }
+
+}
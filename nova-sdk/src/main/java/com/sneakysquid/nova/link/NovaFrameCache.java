@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+import java.nio.charset.Charset;
+
+/**
+ * Encodes request frames in the link's {@link NovaProtocol}, caching them so that repeated
+ * commands do no formatting.
+ * <p/>
+ * Frames are encoded once as templates with a placeholder request id. At send time, only the
+ * request id is patched in with {@link #patchRequestId(byte[], int)}. Templates are shared, so
+ * they must only be patched immediately before being written.
+ * <p/>
+ * Light frames are kept in a small bounded cache, keyed by (warm, cool, duration), with
+ * least-recently-used eviction. It's a linear scan over a few entries, which beats hashing
+ * (and boxing keys) at this size. The last batch frame is kept too, as apps tend to reuse the
+ * same sequence for every shot.
+ * <p/>
+ * Not thread safe. Only used from the link's thread.
+ */
+final class NovaFrameCache {
+
+    private final int[] keys;
+    private final byte[][] frames;
+    private final long[] lastUsed;
+    private int size;
+    private long useCounter;
+
+    private NovaProtocol protocol;
+    private byte[] pingFrame;
+    private byte[] offFrame;
+    private NovaFlashSequence batchSequence;
+    private byte[] batchFrame;
+
+    /**
+     * @param capacity Max number of distinct light frames to keep.
+     */
+    NovaFrameCache(int capacity, NovaProtocol protocol) {
+        keys = new int[capacity];
+        frames = new byte[capacity][];
+        lastUsed = new long[capacity];
+        setProtocol(protocol);
+    }
+
+    NovaProtocol getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * Switch protocol, e.g. after negotiating with a device. Cached frames are discarded.
+     */
+    void setProtocol(NovaProtocol protocol) {
+        if (protocol == this.protocol) {
+            return;
+        }
+        this.protocol = protocol;
+        pingFrame = protocol.encodePing();
+        offFrame = protocol.encodeOff();
+        for (int i = 0; i < size; i++) {
+            frames[i] = null;
+        }
+        size = 0;
+        batchSequence = null;
+        batchFrame = null;
+    }
+
+    byte[] pingFrame() {
+        return pingFrame;
+    }
+
+    byte[] offFrame() {
+        return offFrame;
+    }
+
+    /**
+     * Frame template for a flash. Pointless flashes are sent as off.
+     */
+    byte[] flashFrame(NovaFlashCommand flashCmd) {
+        if (flashCmd.isPointless()) {
+            // settings say that flash is effectively off
+            return offFrame;
+        }
+        return lightFrame(flashCmd.getWarmness(), flashCmd.getCoolness(), flashCmd.getDuration());
+    }
+
+    byte[] lightFrame(int warmPwm, int coolPwm, int timeoutMillis) {
+        int key = (warmPwm << 24) | (coolPwm << 16) | timeoutMillis;
+        long now = ++useCounter;
+
+        int victim = 0;
+        for (int i = 0; i < size; i++) {
+            if (keys[i] == key) {
+                lastUsed[i] = now;
+                return frames[i];
+            }
+            if (lastUsed[i] < lastUsed[victim]) {
+                victim = i;
+            }
+        }
+
+        if (size < keys.length) {
+            victim = size++;
+        }
+        keys[victim] = key;
+        frames[victim] = protocol.encodeLight(warmPwm, coolPwm, timeoutMillis);
+        lastUsed[victim] = now;
+        return frames[victim];
+    }
+
+    /**
+     * Frame template for a whole sequence in one frame.
+     *
+     * @return null if the protocol can't batch it, in which case steps are sent one at a time.
+     */
+    byte[] batchFrame(NovaFlashSequence sequence) {
+        if (sequence != batchSequence) {
+            batchSequence = sequence;
+            batchFrame = protocol.encodeBatch(sequence);
+        }
+        return batchFrame;
+    }
+
+    /**
+     * Write requestId into the id placeholder of a frame template.
+     */
+    void patchRequestId(byte[] frame, int requestId) {
+        protocol.patchRequestId(frame, requestId);
+    }
+
+    /**
+     * Human readable frame, for logging.
+     */
+    String toString(byte[] frame, int requestId) {
+        return protocol.toString(frame, requestId);
+    }
+
+}
@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Lightweight single-threaded future, used by {@link NovaAsyncLink}.
+ * <p/>
+ * Like the rest of NovaLink, this is designed to be used on a single thread only. Listeners
+ * and combinators run synchronously on whichever thread completes the future (for NovaLink
+ * operations, the link's thread), or immediately if the future is already done. Nothing is
+ * ever posted to another thread.
+ * <p/>
+ * Cancelling a chained future (directly, or via a timeout) also cancels the future it is
+ * waiting on, so e.g. a timeout over a whole chain cancels whichever command is in flight.
+ * <p/>
+ * <h2>Usage:</h2>
+ * <pre>
+ * async.beginFlash(NovaFlashCommand.warm())
+ *     .then(new NovaFuture.Continuation&lt;NovaCompletionResult, Photo&gt;() {
+ *         public NovaFuture&lt;Photo&gt; then(NovaCompletionResult lit) {
+ *             return capturePhoto(); // complete this future from the camera callback
+ *         }
+ *     })
+ *     .withTimeout(3000)
+ *     .ensure(new NovaFuture.Action() {
+ *         public NovaFuture&lt;?&gt; run() {
+ *             return async.endFlash();
+ *         }
+ *     });
+ * </pre>
+ */
+public class NovaFuture<T> {
+
+    /**
+     * Notified once, when the future completes.
+     */
+    public interface Listener<T> {
+        void onSuccess(T value);
+
+        void onFailure(Throwable error);
+    }
+
+    /**
+     * Starts the next asynchronous step from the result of the previous one.
+     */
+    public interface Continuation<T, U> {
+        NovaFuture<U> then(T value) throws Exception;
+    }
+
+    /**
+     * Synchronously converts a result.
+     */
+    public interface Transform<T, U> {
+        U apply(T value) throws Exception;
+    }
+
+    /**
+     * Starts a step whose result doesn't matter, only its completion.
+     */
+    public interface Action {
+        NovaFuture<?> run() throws Exception;
+    }
+
+    private final NovaClock clock; // Link's timers, or null if not from a link.
+    private boolean done;
+    private T value;
+    private Throwable error;
+    private List<Listener<? super T>> listeners;
+    private NovaFuture<?> upstream; // What this is waiting on, cancelled along with it.
+
+    public NovaFuture() {
+        this(null);
+    }
+
+    /**
+     * @param clock Link's clock, so timeouts run on the link's thread.
+     */
+    NovaFuture(NovaClock clock) {
+        this.clock = clock;
+    }
+
+    public static <T> NovaFuture<T> succeeded(T value) {
+        NovaFuture<T> future = new NovaFuture<T>();
+        future.complete(value);
+        return future;
+    }
+
+    public static <T> NovaFuture<T> failed(Throwable error) {
+        NovaFuture<T> future = new NovaFuture<T>();
+        future.fail(error);
+        return future;
+    }
+
+    /**
+     * Complete successfully. Ignored if already done.
+     *
+     * @return Whether this call completed the future.
+     */
+    public boolean complete(T value) {
+        if (done) {
+            return false;
+        }
+        this.value = value;
+        return finish();
+    }
+
+    /**
+     * Complete with an error. Ignored if already done.
+     *
+     * @return Whether this call completed the future.
+     */
+    public boolean fail(Throwable error) {
+        if (done) {
+            return false;
+        }
+        this.error = error;
+        return finish();
+    }
+
+    /**
+     * Fail with a {@link CancellationException}, so nothing chained after this future runs.
+     * Futures from {@link NovaAsyncLink} also cancel their command, and chained futures cancel
+     * the one they are waiting on.
+     */
+    public boolean cancel() {
+        return abandon(new CancellationException());
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    public boolean isSuccessful() {
+        return done && error == null;
+    }
+
+    /**
+     * @return Value if completed successfully, otherwise null.
+     */
+    public T getValue() {
+        return value;
+    }
+
+    /**
+     * @return Error if failed, otherwise null.
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    /**
+     * Listener is called when the future completes, or immediately if it already has.
+     */
+    public NovaFuture<T> addListener(Listener<? super T> listener) {
+        if (done) {
+            notify(listener);
+        } else {
+            if (listeners == null) {
+                listeners = new ArrayList<Listener<? super T>>(2);
+            }
+            listeners.add(listener);
+        }
+        return this;
+    }
+
+    /**
+     * Chain the next asynchronous step. If this future fails, the step is skipped and the
+     * returned future fails with the same error.
+     */
+    public <U> NovaFuture<U> then(final Continuation<? super T, U> continuation) {
+        final NovaFuture<U> next = chain();
+        addListener(new Listener<T>() {
+            @Override
+            public void onSuccess(T value) {
+                if (next.done) {
+                    return; // Cancelled or timed out, so don't start the step.
+                }
+                NovaFuture<U> step;
+                try {
+                    step = continuation.then(value);
+                } catch (Exception e) {
+                    next.fail(e);
+                    return;
+                }
+                next.follow(step);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                next.fail(error);
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Chain a synchronous conversion of the result.
+     */
+    public <U> NovaFuture<U> map(final Transform<? super T, U> transform) {
+        final NovaFuture<U> next = chain();
+        addListener(new Listener<T>() {
+            @Override
+            public void onSuccess(T value) {
+                U converted;
+                try {
+                    converted = transform.apply(value);
+                } catch (Exception e) {
+                    next.fail(e);
+                    return;
+                }
+                next.complete(converted);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                next.fail(error);
+            }
+        });
+        return next;
+    }
+
+    /**
+     * If this future fails, continue with a fallback step instead. Successful results pass
+     * straight through.
+     */
+    public NovaFuture<T> recover(final Continuation<? super Throwable, T> fallback) {
+        final NovaFuture<T> next = chain();
+        addListener(new Listener<T>() {
+            @Override
+            public void onSuccess(T value) {
+                next.complete(value);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                if (next.done) {
+                    return; // Cancelled or timed out, so don't start the fallback.
+                }
+                NovaFuture<T> step;
+                try {
+                    step = fallback.then(error);
+                } catch (Exception e) {
+                    next.fail(e);
+                    return;
+                }
+                next.follow(step);
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Run a step whether this future succeeds or fails (e.g. turning the flash off after a
+     * capture). The returned future completes with this future's outcome once the step is done.
+     * If the step itself fails, that error is only reported when this future succeeded.
+     */
+    public NovaFuture<T> ensure(final Action action) {
+        final NovaFuture<T> next = chain();
+        addListener(new Listener<T>() {
+            @Override
+            public void onSuccess(T value) {
+                runThenPropagate(value, null);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                runThenPropagate(null, error);
+            }
+
+            private void runThenPropagate(final T value, final Throwable error) {
+                NovaFuture<?> step;
+                try {
+                    step = action.run();
+                } catch (Exception e) {
+                    step = failed(e);
+                }
+                if (step == null) {
+                    step = succeeded(null);
+                }
+                step.addListener(new Listener<Object>() {
+                    @Override
+                    public void onSuccess(Object ignored) {
+                        next.propagate(value, error);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable stepError) {
+                        next.propagate(value, error != null ? error : stepError);
+                    }
+                });
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Fail with a {@link TimeoutException} if not completed within the timeout, cancelling
+     * whatever it is waiting on. For futures from {@link NovaAsyncLink}, and those chained from
+     * them, the timer runs on the link's thread. Otherwise it runs on the calling thread's
+     * Looper.
+     */
+    public NovaFuture<T> withTimeout(long timeoutMillis) {
+        if (done) {
+            return this;
+        }
+        final NovaClock timer = clock != null ? clock : NovaClock.of(new Handler());
+        final Runnable expire = new Runnable() {
+            @Override
+            public void run() {
+                abandon(new TimeoutException("NovaFuture timed out"));
+            }
+        };
+        timer.postDelayed(expire, timeoutMillis);
+        addListener(new Listener<T>() {
+            @Override
+            public void onSuccess(T value) {
+                timer.removeCallbacks(expire);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                timer.removeCallbacks(expire);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Complete this future with the same outcome as another.
+     */
+    void follow(NovaFuture<T> other) {
+        if (other == null) {
+            fail(new NullPointerException("Continuation returned null future"));
+            return;
+        }
+        upstream = other;
+        other.addListener(new Listener<T>() {
+            @Override
+            public void onSuccess(T value) {
+                complete(value);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                fail(error);
+            }
+        });
+    }
+
+    /**
+     * @return New future waiting on this one, with the same clock.
+     */
+    private <U> NovaFuture<U> chain() {
+        NovaFuture<U> next = new NovaFuture<U>(clock);
+        next.upstream = this;
+        return next;
+    }
+
+    /**
+     * Fail with error, and cancel what this future was waiting on, as its result is no longer
+     * wanted.
+     */
+    private boolean abandon(Throwable error) {
+        NovaFuture<?> waitingOn = upstream;
+        if (!fail(error)) {
+            return false;
+        }
+        if (waitingOn != null) {
+            waitingOn.cancel();
+        }
+        return true;
+    }
+
+    private void propagate(T value, Throwable error) {
+        if (error == null) {
+            complete(value);
+        } else {
+            fail(error);
+        }
+    }
+
+    private boolean finish() {
+        done = true;
+        upstream = null;
+        List<Listener<? super T>> toNotify = listeners;
+        listeners = null;
+        if (toNotify != null) {
+            for (Listener<? super T> listener : toNotify) {
+                notify(listener);
+            }
+        }
+        return true;
+    }
+
+    private void notify(Listener<? super T> listener) {
+        if (error == null) {
+            listener.onSuccess(value);
+        } else {
+            listener.onFailure(error);
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+/**
+ * Trade-off between command latency and power use, for the BluetoothLE connection to Nova.
+ * Most of the time from sending a command to the flash firing is spent waiting for the next
+ * connection event, so a shorter connection interval means a quicker flash, at the cost of
+ * battery life on both the phone and Nova.
+ * <p/>
+ * Only has an effect on Android 5.0 onwards. Earlier versions always use the system default.
+ *
+ * @see NovaLink#setLatencyMode(NovaLatencyMode)
+ * @see NovaLink#setPreviewActive(boolean)
+ */
+public enum NovaLatencyMode {
+
+    /**
+     * Shortest connection interval. For when a shot is imminent.
+     */
+    LowLatency(1 /* BluetoothGatt.CONNECTION_PRIORITY_HIGH */),
+
+    /**
+     * System default.
+     */
+    Balanced(0 /* BluetoothGatt.CONNECTION_PRIORITY_BALANCED */),
+
+    /**
+     * Longest connection interval. For keeping a link around while nothing much is happening.
+     */
+    LowPower(2 /* BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER */);
+
+    final int connectionPriority;
+
+    NovaLatencyMode(int connectionPriority) {
+        this.connectionPriority = connectionPriority;
+    }
+
+}
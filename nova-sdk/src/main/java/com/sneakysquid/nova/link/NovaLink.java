@@ -69,13 +69,31 @@ package com.sneakysquid.nova.link;
  *
  * <h2>Callbacks and threading</h2>
  * <p>NovaLink is designed to be used on a single thread only. All the callbacks will also be
- * dispatched on the same thread. On Android this is the main/UI thread.</p>
+ * dispatched on the same thread. On Android this is the main/UI thread, unless the link was
+ * given a Looper of its own (see {@link BluetoothLENovaLink#BluetoothLENovaLink(android.content.Context,
+ * android.os.Looper)}).</p>
+ * <p>The exceptions are the commands (beginFlash(), beginFlashSequence(), endFlash() and ping()),
+ * cancel() and getStatus(), which may be called from any thread, e.g. a camera capture thread.
+ * Commands and cancels called from another thread are handed over to the link's thread without
+ * waiting, and are acted on once that thread is free (e.g. once the main thread finishes its
+ * current work). Their callbacks are still dispatched on the link's thread.</p>
  * </pre>
  *
  * @author Joe Walnes
  */
 public interface NovaLink {
 
+    /**
+     * Deadline value meaning the command may wait in the queue indefinitely.
+     */
+    long NO_DEADLINE = 0;
+
+    /**
+     * Token returned when a command completed immediately (e.g. link not Ready), so there's
+     * nothing to cancel.
+     */
+    long NO_TOKEN = -1;
+
     /**
      * Enable Nova. This will activate BluetoothLE, begin scanning and attempt to connect.
      */
@@ -100,21 +118,46 @@ public interface NovaLink {
      * asynchronous, and you pass a callback to get notification of result. Only when the callback
      * is triggered should you activate the camera shutter.
      * <p/>
-     * The callback will occur on the main/UI thread. The callback may be null.
+     * The callback will occur on the link's thread. The callback may be null.
      * <p/>
      * The flash will remain lit until endFlash() is called, or the duration (in NovaFlashCommand)
      * expires, or the BluetoothLE connection is terminated.
+     * <p/>
+     * All commands return a token that can be passed to {@link #cancel(long)}.
      *
      * @see NovaFlashCommand
      * @see #endFlash(NovaCompletionCallback)
      * @see NovaCompletionCallback
      */
-    void beginFlash(NovaFlashCommand flashCmd, NovaCompletionCallback callback);
+    long beginFlash(NovaFlashCommand flashCmd, NovaCompletionCallback callback);
+
+    /**
+     * As {@link #beginFlash(NovaFlashCommand, NovaCompletionCallback)}, but the command is dropped
+     * without being sent if it's still queued at the deadline. The callback then completes with
+     * {@link NovaCompletionReason#Expired} (see {@link NovaResultCallback}).
+     * <p/>
+     * Flashes are always sent ahead of queued offs and pings.
+     *
+     * @param deadline Time, in {@link android.os.SystemClock#uptimeMillis()} base, after which the
+     *                 flash is no longer worth sending, or {@link #NO_DEADLINE}.
+     */
+    long beginFlash(NovaFlashCommand flashCmd, long deadline, NovaCompletionCallback callback);
 
     /**
      * @see #beginFlash(NovaFlashCommand, NovaCompletionCallback)
      */
-    void beginFlash(NovaFlashCommand flashCmd);
+    long beginFlash(NovaFlashCommand flashCmd);
+
+    /**
+     * Run a {@link NovaFlashSequence}: its steps are sent back-to-back, with nothing else sent in
+     * between, and the callback is triggered once, when the last step is acknowledged or any step
+     * fails. The sequence is queued with flash priority.
+     * <p/>
+     * The callback will occur on the link's thread. The callback may be null.
+     *
+     * @see NovaFlashSequence
+     */
+    long beginFlashSequence(NovaFlashSequence sequence, NovaCompletionCallback callback);
 
     /**
      * Tell Nova to end a flash that was previously started with beginFlash(). The flash
@@ -123,17 +166,62 @@ public interface NovaLink {
      *
      * @see #beginFlash(NovaFlashCommand, NovaCompletionCallback)
      */
-    void endFlash(NovaCompletionCallback callback);
+    long endFlash(NovaCompletionCallback callback);
+
+    /**
+     * As {@link #endFlash(NovaCompletionCallback)}, but dropped without being sent if it's still
+     * queued at the deadline.
+     *
+     * @param deadline Time, in {@link android.os.SystemClock#uptimeMillis()} base, after which the
+     *                 command is no longer worth sending, or {@link #NO_DEADLINE}.
+     * @see #beginFlash(NovaFlashCommand, long, NovaCompletionCallback)
+     */
+    long endFlash(long deadline, NovaCompletionCallback callback);
 
     /**
      * @see #endFlash(NovaCompletionCallback)
      */
-    void endFlash();
+    long endFlash();
 
     /**
      * Ping the Nova device. Can be useful for diagnostics.
+     * <p/>
+     * Pings have the lowest priority: any queued flash or off is sent first.
+     */
+    long ping(NovaCompletionCallback callback);
+
+    /**
+     * Cancel a command, e.g. a flash for a shot the user has abandoned. Its callback completes
+     * with {@link NovaCompletionReason#Cancelled} before this returns.
+     * <p/>
+     * A queued command is removed without being sent. A command already sent can't be recalled,
+     * but its ack is ignored. Remaining steps of a {@link NovaFlashSequence} are not sent.
+     * <p/>
+     * Called from another thread, the cancel is handed over to the link's thread like a command,
+     * so it returns before the outcome is known. The callback then completes with Cancelled,
+     * unless the command completed first.
+     *
+     * @param token As returned by beginFlash(), endFlash(), ping(), etc.
+     * @return true if cancelled, false if the command had already completed (or been cancelled).
+     * From another thread, true if the cancel was handed over.
+     */
+    boolean cancel(long token);
+
+    /**
+     * Set the latency mode used while the camera preview isn't active (or has been idle for a
+     * while). Default is {@link NovaLatencyMode#Balanced}.
+     *
+     * @see #setPreviewActive(boolean)
+     */
+    void setLatencyMode(NovaLatencyMode mode);
+
+    /**
+     * Tell the link whether the camera preview is showing, i.e. whether a shot may be imminent.
+     * While it is, the link switches to {@link NovaLatencyMode#LowLatency}, dropping back to the
+     * mode set by {@link #setLatencyMode(NovaLatencyMode)} if no flash is requested for a while,
+     * and switching back again on the next one.
      */
-    void ping(NovaCompletionCallback callback);
+    void setPreviewActive(boolean active);
 
     /**
      * Gets current status of Nova connection.
@@ -148,7 +236,7 @@ public interface NovaLink {
     /**
      * Register callback for notifiaction when the {@link NovaLinkStatus} changes.
      * <p/>
-     * Callback will be run on the main/UI thread.
+     * Callback will be run on the link's thread.
      *
      * @see #getStatus()
      * @see #unregisterStatusCallback(NovaLinkStatusCallback)
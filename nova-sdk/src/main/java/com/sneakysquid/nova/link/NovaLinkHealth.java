@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+/**
+ * Rolling link quality score, from signal strength and how promptly commands are acked.
+ * <p/>
+ * Each is an exponentially weighted moving average scaled 0-100. The overall quality is the
+ * worse of the two, as either a weak signal or a device that stops answering is enough to lose
+ * a flash.
+ */
+class NovaLinkHealth {
+
+    static final int PERFECT = 100;
+
+    private static final int RSSI_WORST = -100; // dBm that scores 0.
+    private static final int RSSI_BEST = -55; // dBm that scores 100.
+    private static final long PROMPT_ACK_NANOS = 250 * 1000000L; // Acks quicker than this score 100.
+    private static final int WEIGHT = 4; // Each sample counts for 1/WEIGHT of the average.
+
+    private final long ackTimeoutNanos;
+    private int signalScore = PERFECT;
+    private int ackScore = PERFECT;
+    private int rssi = 0;
+
+    /**
+     * @param ackTimeoutMillis Acks this slow (or slower) score 0.
+     */
+    NovaLinkHealth(int ackTimeoutMillis) {
+        this.ackTimeoutNanos = ackTimeoutMillis * 1000000L;
+    }
+
+    /**
+     * Start afresh, e.g. for a new connection.
+     */
+    void reset() {
+        signalScore = PERFECT;
+        ackScore = PERFECT;
+        rssi = 0;
+    }
+
+    void onRssi(int rssi) {
+        this.rssi = rssi;
+        int clamped = Math.max(RSSI_WORST, Math.min(RSSI_BEST, rssi));
+        signalScore = average(signalScore, (clamped - RSSI_WORST) * PERFECT / (RSSI_BEST - RSSI_WORST));
+    }
+
+    void onAck(long roundTripNanos) {
+        int score;
+        if (roundTripNanos <= PROMPT_ACK_NANOS) {
+            score = PERFECT;
+        } else if (roundTripNanos >= ackTimeoutNanos) {
+            score = 0;
+        } else {
+            score = (int) ((ackTimeoutNanos - roundTripNanos) * PERFECT / (ackTimeoutNanos - PROMPT_ACK_NANOS));
+        }
+        ackScore = average(ackScore, score);
+    }
+
+    void onTimeout() {
+        ackScore = average(ackScore, 0);
+    }
+
+    /**
+     * @return 0 (dead) to 100 (perfect).
+     */
+    int getQuality() {
+        return Math.min(signalScore, ackScore);
+    }
+
+    /**
+     * @return Last signal strength read, in dBm, or 0 if not known.
+     */
+    int getRssi() {
+        return rssi;
+    }
+
+    private static int average(int current, int sample) {
+        return current + (sample - current) / WEIGHT;
+    }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+/**
+ * Notified when a Ready link's quality drops, so apps can react (e.g. warn the user, or
+ * {@link NovaLink#refresh()} the link) before a flash is lost, rather than after.
+ * <p/>
+ * Callbacks run on the link's thread.
+ *
+ * @see BluetoothLENovaLink#setHealthMonitorEnabled(boolean)
+ * @see BluetoothLENovaLink#setHealthListener(NovaLinkHealthListener)
+ */
+public interface NovaLinkHealthListener {
+
+    /**
+     * Link quality has dropped below the degraded threshold.
+     *
+     * @param quality Link quality, 0 (dead) to 100 (perfect).
+     * @param rssi    Last signal strength read, in dBm, or 0 if not known.
+     */
+    void onLinkDegraded(int quality, int rssi);
+
+    /**
+     * Link quality has recovered after being degraded.
+     *
+     * @param quality Link quality, 0 (dead) to 100 (perfect).
+     * @param rssi    Last signal strength read, in dBm, or 0 if not known.
+     */
+    void onLinkHealthy(int quality, int rssi);
+
+}
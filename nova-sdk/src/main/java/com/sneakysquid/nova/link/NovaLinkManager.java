@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import static com.sneakysquid.nova.link.Debug.assertOnUiThread;
+import static com.sneakysquid.nova.link.Debug.debug;
+
+/**
+ * One {@link NovaLink} shared by the whole app, bound to the application context rather than an
+ * Activity, so the connection survives Activity recreation (rotation) and switching between
+ * screens.
+ * <p/>
+ * Each user of the link (typically an Activity, from onResume() to onPause()) calls
+ * {@link #acquire()} and later {@link #release()}. The link is enabled on the first acquire.
+ * After the last release it lingers, still connected, for a while before being disabled, so
+ * moving to the next screen finds it already Ready.
+ * <p/>
+ * <h2>Usage:</h2>
+ * <pre>
+ * protected void onResume() {
+ *     super.onResume();
+ *     nova = NovaLinkManager.getInstance(this).acquire();
+ * }
+ *
+ * protected void onPause() {
+ *     NovaLinkManager.getInstance(this).release();
+ *     super.onPause();
+ * }
+ * </pre>
+ * Like NovaLink, this is for use on the main/UI thread only.
+ */
+public final class NovaLinkManager {
+
+    public static final long DEFAULT_LINGER = 5000;
+
+    private static NovaLinkManager instance;
+
+    private final NovaLink link;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable lingerExpired = new Runnable() {
+        @Override
+        public void run() {
+            if (refCount == 0) {
+                debug("linger expired, disabling shared link");
+                link.disable();
+            }
+        }
+    };
+
+    private int refCount = 0;
+    private long lingerMillis = DEFAULT_LINGER;
+
+    /**
+     * @param context Any context. Only its application context is kept.
+     */
+    public static NovaLinkManager getInstance(Context context) {
+        assertOnUiThread();
+
+        if (instance == null) {
+            instance = new NovaLinkManager(new BluetoothLENovaLink(context.getApplicationContext()));
+        }
+        return instance;
+    }
+
+    /**
+     * For apps that provide their own link (e.g. for testing). Most apps should use
+     * {@link #getInstance(Context)}.
+     */
+    public NovaLinkManager(NovaLink link) {
+        this.link = link;
+    }
+
+    /**
+     * Start using the shared link, enabling it if necessary. Must be balanced by a call to
+     * {@link #release()}.
+     */
+    public NovaLink acquire() {
+        assertOnUiThread();
+
+        handler.removeCallbacks(lingerExpired);
+        if (refCount++ == 0) {
+            debug("first acquire, enabling shared link");
+            link.enable(); // No-op if still enabled from lingering.
+        }
+        return link;
+    }
+
+    /**
+     * Stop using the shared link. When nothing is using it, it's disabled after the linger period.
+     */
+    public void release() {
+        assertOnUiThread();
+
+        if (refCount == 0) {
+            throw new IllegalStateException("release() without matching acquire()");
+        }
+        if (--refCount == 0) {
+            if (lingerMillis == 0) {
+                lingerExpired.run();
+            } else {
+                handler.postDelayed(lingerExpired, lingerMillis);
+            }
+        }
+    }
+
+    /**
+     * How long the link stays enabled after the last release. Default {@link #DEFAULT_LINGER}.
+     * 0 disables it immediately.
+     */
+    public void setLingerMillis(long lingerMillis) {
+        if (lingerMillis < 0) {
+            throw new IllegalArgumentException("lingerMillis must not be negative (value is " + lingerMillis + ")");
+        }
+        this.lingerMillis = lingerMillis;
+    }
+
+    public long getLingerMillis() {
+        return lingerMillis;
+    }
+
+    /**
+     * The shared link, without acquiring it (e.g. to register status callbacks).
+     */
+    public NovaLink getLink() {
+        return link;
+    }
+
+    /**
+     * @return Number of outstanding acquires.
+     */
+    public int getRefCount() {
+        return refCount;
+    }
+
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+import java.util.Arrays;
+
+/**
+ * Live statistics for a link. Values are updated on the link's thread as the link runs,
+ * and should be read from there too.
+ *
+ * @see BluetoothLENovaLink#getMetrics()
+ */
+public final class NovaLinkMetrics {
+
+    private int queueDepth;
+    private int queueHighWaterMark;
+    private long queueRejected;
+    private long queueDropped;
+    private long queueCoalesced;
+    private long linkLosses;
+    private long reconnectAttempts;
+    private long linkRecoveries;
+    private long lastRecoveryNanos = -1;
+    private long maxRecoveryNanos = -1;
+    private int linkQuality = NovaLinkHealth.PERFECT;
+    private int rssi;
+    private long linkDegradations;
+    private long keepAlivePings;
+    private long acksWithResponse;
+    private long roundTripWithResponseNanos;
+    private long acksWithoutResponse;
+    private long roundTripWithoutResponseNanos;
+    private NovaLatencyMode latencyMode;
+    private long latencyModeChanges;
+    private final long[] acksByLatencyMode = new long[NovaLatencyMode.values().length];
+    private final long[] roundTripByLatencyModeNanos = new long[NovaLatencyMode.values().length];
+    private int requestIdsQuarantined;
+    private long requestIdExhaustions;
+
+    NovaLinkMetrics() {
+    }
+
+    /**
+     * @return Number of commands currently queued, not counting the one awaiting ack.
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return Highest queue depth seen since creation or last {@link #reset()}.
+     */
+    public int getQueueHighWaterMark() {
+        return queueHighWaterMark;
+    }
+
+    /**
+     * @return Commands rejected because the queue was full.
+     */
+    public long getQueueRejected() {
+        return queueRejected;
+    }
+
+    /**
+     * @return Commands dropped to make room for newer ones ({@link NovaQueuePolicy#DropOldest}).
+     */
+    public long getQueueDropped() {
+        return queueDropped;
+    }
+
+    /**
+     * @return Commands replaced by newer ones of the same kind ({@link NovaQueuePolicy#Coalesce}).
+     */
+    public long getQueueCoalesced() {
+        return queueCoalesced;
+    }
+
+    /**
+     * @return Times a Ready link was unexpectedly disconnected.
+     */
+    public long getLinkLosses() {
+        return linkLosses;
+    }
+
+    /**
+     * @return Direct reconnects attempted after link losses.
+     */
+    public long getReconnectAttempts() {
+        return reconnectAttempts;
+    }
+
+    /**
+     * @return Times the link got back to Ready after a loss, by reconnecting or rescanning.
+     */
+    public long getLinkRecoveries() {
+        return linkRecoveries;
+    }
+
+    /**
+     * @return Time from the last link loss to being Ready again, in nanos, or -1 if none yet.
+     */
+    public long getLastRecoveryNanos() {
+        return lastRecoveryNanos;
+    }
+
+    /**
+     * @return Longest time from a link loss to being Ready again, in nanos, or -1 if none yet.
+     */
+    public long getMaxRecoveryNanos() {
+        return maxRecoveryNanos;
+    }
+
+    /**
+     * @return Rolling quality of the current link, 0 (dead) to 100 (perfect).
+     */
+    public int getLinkQuality() {
+        return linkQuality;
+    }
+
+    /**
+     * @return Last signal strength read by the health monitor, in dBm, or 0 if not known.
+     */
+    public int getRssi() {
+        return rssi;
+    }
+
+    /**
+     * @return Times link quality dropped below the degraded threshold.
+     */
+    public long getLinkDegradations() {
+        return linkDegradations;
+    }
+
+    /**
+     * @return Pings sent by the health monitor because the link was idle.
+     */
+    public long getKeepAlivePings() {
+        return keepAlivePings;
+    }
+
+    /**
+     * @return Cmds acked that were written with a write response.
+     */
+    public long getAcksWithResponse() {
+        return acksWithResponse;
+    }
+
+    /**
+     * @return Mean time from writing a cmd (with a write response) to its ack, in nanos, or -1
+     * if none yet.
+     */
+    public long getMeanRoundTripWithResponseNanos() {
+        return acksWithResponse == 0 ? -1 : roundTripWithResponseNanos / acksWithResponse;
+    }
+
+    /**
+     * @return Cmds acked that were written without a write response.
+     * @see BluetoothLENovaLink#setWriteWithoutResponse(boolean)
+     */
+    public long getAcksWithoutResponse() {
+        return acksWithoutResponse;
+    }
+
+    /**
+     * @return Mean time from writing a cmd (without a write response) to its ack, in nanos, or
+     * -1 if none yet.
+     * @see BluetoothLENovaLink#setWriteWithoutResponse(boolean)
+     */
+    public long getMeanRoundTripWithoutResponseNanos() {
+        return acksWithoutResponse == 0 ? -1 : roundTripWithoutResponseNanos / acksWithoutResponse;
+    }
+
+    /**
+     * @return Latency mode last requested of the connection, or null if none (e.g. before
+     * Android 5.0).
+     */
+    public NovaLatencyMode getLatencyMode() {
+        return latencyMode;
+    }
+
+    /**
+     * @return Times the connection's latency mode was changed.
+     */
+    public long getLatencyModeChanges() {
+        return latencyModeChanges;
+    }
+
+    /**
+     * @return Cmds acked while the connection was in the given latency mode.
+     */
+    public long getAcks(NovaLatencyMode mode) {
+        return acksByLatencyMode[mode.ordinal()];
+    }
+
+    /**
+     * @return Mean time from writing a cmd to its ack while the connection was in the given
+     * latency mode, in nanos, or -1 if none yet.
+     */
+    public long getMeanRoundTripNanos(NovaLatencyMode mode) {
+        long acks = acksByLatencyMode[mode.ordinal()];
+        return acks == 0 ? -1 : roundTripByLatencyModeNanos[mode.ordinal()] / acks;
+    }
+
+    /**
+     * @return Request ids held back from reuse because their cmds were never acked, so a late
+     * ack could still arrive.
+     */
+    public int getRequestIdsQuarantined() {
+        return requestIdsQuarantined;
+    }
+
+    /**
+     * @return Times a cmd had to wait for a request id because all were in use or quarantined.
+     */
+    public long getRequestIdExhaustions() {
+        return requestIdExhaustions;
+    }
+
+    /**
+     * Reset high-water marks and counters. Live values (e.g. queue depth) are kept.
+     */
+    public void reset() {
+        queueHighWaterMark = queueDepth;
+        queueRejected = 0;
+        queueDropped = 0;
+        queueCoalesced = 0;
+        linkLosses = 0;
+        reconnectAttempts = 0;
+        linkRecoveries = 0;
+        lastRecoveryNanos = -1;
+        maxRecoveryNanos = -1;
+        linkDegradations = 0;
+        keepAlivePings = 0;
+        acksWithResponse = 0;
+        roundTripWithResponseNanos = 0;
+        acksWithoutResponse = 0;
+        roundTripWithoutResponseNanos = 0;
+        latencyModeChanges = 0;
+        Arrays.fill(acksByLatencyMode, 0);
+        Arrays.fill(roundTripByLatencyModeNanos, 0);
+        requestIdExhaustions = 0;
+    }
+
+    void onQueueDepth(int depth) {
+        queueDepth = depth;
+        if (depth > queueHighWaterMark) {
+            queueHighWaterMark = depth;
+        }
+    }
+
+    void onQueueRejected() {
+        queueRejected++;
+    }
+
+    void onQueueDropped() {
+        queueDropped++;
+    }
+
+    void onQueueCoalesced() {
+        queueCoalesced++;
+    }
+
+    void onLinkLost() {
+        linkLosses++;
+    }
+
+    void onReconnectAttempt() {
+        reconnectAttempts++;
+    }
+
+    void onLinkRecovered(long nanos) {
+        linkRecoveries++;
+        lastRecoveryNanos = nanos;
+        if (nanos > maxRecoveryNanos) {
+            maxRecoveryNanos = nanos;
+        }
+    }
+
+    void onLinkHealth(int quality, int rssi) {
+        this.linkQuality = quality;
+        this.rssi = rssi;
+    }
+
+    void onLinkDegraded() {
+        linkDegradations++;
+    }
+
+    void onKeepAlivePing() {
+        keepAlivePings++;
+    }
+
+    void onAck(boolean withoutResponse, NovaLatencyMode mode, long roundTripNanos) {
+        if (withoutResponse) {
+            acksWithoutResponse++;
+            roundTripWithoutResponseNanos += roundTripNanos;
+        } else {
+            acksWithResponse++;
+            roundTripWithResponseNanos += roundTripNanos;
+        }
+        if (mode != null) {
+            acksByLatencyMode[mode.ordinal()]++;
+            roundTripByLatencyModeNanos[mode.ordinal()] += roundTripNanos;
+        }
+    }
+
+    void onLatencyModeChanged(NovaLatencyMode mode) {
+        latencyMode = mode;
+        latencyModeChanges++;
+    }
+
+    void onRequestIdsQuarantined(int quarantined) {
+        requestIdsQuarantined = quarantined;
+    }
+
+    void onRequestIdsExhausted() {
+        requestIdExhaustions++;
+    }
+
+    @Override
+    public String toString() {
+        return "NovaLinkMetrics{" +
+                "queueDepth=" + queueDepth +
+                ", queueHighWaterMark=" + queueHighWaterMark +
+                ", queueRejected=" + queueRejected +
+                ", queueDropped=" + queueDropped +
+                ", queueCoalesced=" + queueCoalesced +
+                ", linkLosses=" + linkLosses +
+                ", reconnectAttempts=" + reconnectAttempts +
+                ", linkRecoveries=" + linkRecoveries +
+                ", lastRecoveryNanos=" + lastRecoveryNanos +
+                ", maxRecoveryNanos=" + maxRecoveryNanos +
+                ", linkQuality=" + linkQuality +
+                ", rssi=" + rssi +
+                ", linkDegradations=" + linkDegradations +
+                ", keepAlivePings=" + keepAlivePings +
+                ", acksWithResponse=" + acksWithResponse +
+                ", meanRoundTripWithResponseNanos=" + getMeanRoundTripWithResponseNanos() +
+                ", acksWithoutResponse=" + acksWithoutResponse +
+                ", meanRoundTripWithoutResponseNanos=" + getMeanRoundTripWithoutResponseNanos() +
+                ", latencyMode=" + latencyMode +
+                ", latencyModeChanges=" + latencyModeChanges +
+                ", acksByLatencyMode=" + Arrays.toString(acksByLatencyMode) +
+                ", roundTripByLatencyModeNanos=" + Arrays.toString(roundTripByLatencyModeNanos) +
+                ", requestIdsQuarantined=" + requestIdsQuarantined +
+                ", requestIdExhaustions=" + requestIdExhaustions +
+                '}';
+    }
+
+}
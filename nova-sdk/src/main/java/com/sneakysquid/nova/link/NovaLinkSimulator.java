@@ -0,0 +1,490 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+import java.util.Random;
+
+/**
+ * Discrete-event simulation of shooting with Novas, for capacity planning: e.g. how do links
+ * hold up at 10 shots/s, with 3 devices, 5% ack loss and 80ms round trips?
+ * <p/>
+ * Each simulated link runs the real command logic ({@link NovaCommandEngine}: queueing,
+ * priorities, supersession, deadlines, ack timeouts) against a {@link NovaSimulatedDevice},
+ * with a lossy, delayed radio in between. Everything runs on one {@link NovaVirtualClock}, so
+ * hours of shooting take seconds, and a given seed always gives the same results.
+ * <p/>
+ * Each shot fires every device: a flash, then an off after the exposure. Shots arrive at
+ * random (Poisson). Links are lost at random too, coming back after a scan and reconnect.
+ * <p/>
+ * Off-device, call {@link Debug#setEnabled(boolean) Debug.setEnabled(false)} first, as Android
+ * logging is not available. NovaLinkSimulatorTool, in the test sources, runs a parameter sweep
+ * standalone.
+ * <p/>
+ * Not thread safe.
+ */
+public final class NovaLinkSimulator {
+
+    public static final String CSV_HEADER = "devices,shotsPerSecond,rttMillis,ackLoss,"
+            + "ackedPerSecond,p50Millis,p90Millis,p99Millis,maxMillis,timeoutRate,failedRate,"
+            + "meanQueueDepth,maxQueueDepth,availability";
+
+    private static final int HISTOGRAM_MILLIS = 10000; // Latencies are bucketed by milli up to this, then lumped.
+
+    // Parameters.
+    private int devices = 1;
+    private double shotsPerSecond = 1;
+    private int roundTripMillis = 80;
+    private int jitterMillis = 20;
+    private double ackLoss = 0;
+    private int exposureMillis = 100;
+    private int shotDeadlineMillis = 0;
+    private NovaProtocol protocol = NovaProtocol.Binary;
+    private int queueLimit = NovaCommandEngine.QUEUE_CAPACITY - 1;
+    private NovaQueuePolicy queuePolicy = NovaQueuePolicy.RejectNew;
+    private double linkLossesPerHour = 0;
+    private int reconnectMillis = 3000;
+    private long seed = 1;
+
+    // State.
+    private NovaVirtualClock clock;
+    private Random random;
+    private Device[] rig;
+    private long endNanos;
+    private boolean ran;
+
+    // Results.
+    private final int[] completions = new int[NovaCompletionReason.values().length];
+    private final int[] latencyHistogram = new int[HISTOGRAM_MILLIS + 1];
+    private long durationNanos;
+    private long shots;
+    private long flashes;
+    private long flashesAcked;
+    private long maxLatencyNanos;
+    private long writes;
+    private long queueDepthSamples;
+    private long queueDepthSum;
+    private long readyNanos;
+
+    // ----------
+    // Parameters
+    // ----------
+
+    /**
+     * Devices fired by each shot. Default 1.
+     */
+    public void setDevices(int devices) {
+        if (devices < 1) {
+            throw new IllegalArgumentException("devices must be at least 1 (value is " + devices + ")");
+        }
+        this.devices = devices;
+    }
+
+    /**
+     * Mean shot rate. Default 1.
+     */
+    public void setShotsPerSecond(double shotsPerSecond) {
+        if (!(shotsPerSecond > 0)) {
+            throw new IllegalArgumentException("shotsPerSecond must be positive (value is " + shotsPerSecond + ")");
+        }
+        this.shotsPerSecond = shotsPerSecond;
+    }
+
+    /**
+     * Time from writing a cmd to receiving its ack, give or take up to jitter. Default 80ms,
+     * give or take 20ms.
+     */
+    public void setRoundTrip(int roundTripMillis, int jitterMillis) {
+        if (roundTripMillis < 0 || jitterMillis < 0 || jitterMillis > roundTripMillis) {
+            throw new IllegalArgumentException("need 0 <= jitter <= roundTrip (values are " + jitterMillis
+                    + ", " + roundTripMillis + ")");
+        }
+        this.roundTripMillis = roundTripMillis;
+        this.jitterMillis = jitterMillis;
+    }
+
+    /**
+     * Chance of each ack being lost, 0 to 1. Default 0.
+     */
+    public void setAckLoss(double ackLoss) {
+        if (!(ackLoss >= 0 && ackLoss <= 1)) {
+            throw new IllegalArgumentException("ackLoss must be in range 0 to 1 (value is " + ackLoss + ")");
+        }
+        this.ackLoss = ackLoss;
+    }
+
+    /**
+     * Time between a shot's flash and off requests. 0 to send no off, leaving the flash to time
+     * out on the device. Default 100ms.
+     */
+    public void setExposureMillis(int exposureMillis) {
+        if (exposureMillis < 0) {
+            throw new IllegalArgumentException("exposureMillis must not be negative (value is " + exposureMillis + ")");
+        }
+        this.exposureMillis = exposureMillis;
+    }
+
+    /**
+     * Deadline for a shot's flash to be sent, after which it's dropped as too late. 0 for none
+     * (the default).
+     */
+    public void setShotDeadlineMillis(int shotDeadlineMillis) {
+        if (shotDeadlineMillis < 0) {
+            throw new IllegalArgumentException("shotDeadlineMillis must not be negative (value is "
+                    + shotDeadlineMillis + ")");
+        }
+        this.shotDeadlineMillis = shotDeadlineMillis;
+    }
+
+    /**
+     * Protocol devices speak. Default {@link NovaProtocol#Binary}.
+     */
+    public void setBinaryProtocol(boolean binary) {
+        this.protocol = binary ? NovaProtocol.Binary : NovaProtocol.Text;
+    }
+
+    /**
+     * @see BluetoothLENovaLink#setQueueLimit(int, NovaQueuePolicy)
+     */
+    public void setQueueLimit(int limit, NovaQueuePolicy policy) {
+        // Validated by the engine on run().
+        this.queueLimit = limit;
+        this.queuePolicy = policy;
+    }
+
+    /**
+     * Mean rate of each link being lost, and how long a scan and reconnect then takes. Default
+     * no losses, 3000ms.
+     */
+    public void setLinkLosses(double perHour, int reconnectMillis) {
+        if (perHour < 0 || reconnectMillis < 0) {
+            throw new IllegalArgumentException("perHour and reconnectMillis must not be negative (values are "
+                    + perHour + ", " + reconnectMillis + ")");
+        }
+        this.linkLossesPerHour = perHour;
+        this.reconnectMillis = reconnectMillis;
+    }
+
+    /**
+     * Seed for all randomness. Same seed and parameters, same results. Default 1.
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    // ----------
+    // Simulation
+    // ----------
+
+    /**
+     * Simulate shooting for duration (virtual time). Can only be run once.
+     */
+    public void run(long durationMillis) {
+        if (ran) {
+            throw new IllegalStateException("Already run");
+        }
+        ran = true;
+
+        random = new Random(seed);
+        clock = new NovaVirtualClock(0, 0);
+        endNanos = durationMillis * 1000000;
+        rig = new Device[devices];
+        for (int i = 0; i < devices; i++) {
+            rig[i] = new Device();
+            rig[i].connected();
+            rig[i].scheduleLoss();
+        }
+        scheduleShot();
+
+        clock.advanceTo(endNanos);
+        durationNanos = endNanos;
+
+        for (Device device : rig) {
+            if (device.ready) {
+                readyNanos += endNanos - device.readySinceNanos;
+            }
+        }
+    }
+
+    private void scheduleShot() {
+        long delay = Math.round(exponential(1000.0 / shotsPerSecond));
+        clock.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                shoot();
+                scheduleShot();
+            }
+        }, delay);
+    }
+
+    private void shoot() {
+        shots++;
+        long deadline = shotDeadlineMillis == 0 ? NovaLink.NO_DEADLINE : clock.uptimeMillis() + shotDeadlineMillis;
+        for (final Device device : rig) {
+            queueDepthSamples++;
+            queueDepthSum += device.metrics.getQueueDepth();
+
+            flashes++;
+            device.engine.beginFlash(NovaFlashCommand.warm(), deadline, device.flashCallback);
+            if (exposureMillis > 0) {
+                clock.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        device.engine.endFlash(NovaLink.NO_DEADLINE, device.offCallback);
+                    }
+                }, exposureMillis);
+            }
+        }
+    }
+
+    private double exponential(double mean) {
+        return -mean * Math.log(1 - random.nextDouble());
+    }
+
+    /**
+     * A link, its device, and the radio between them.
+     */
+    private class Device implements NovaCommandEngine.Host {
+
+        final NovaSimulatedDevice firmware = new NovaSimulatedDevice(protocol == NovaProtocol.Binary);
+        final NovaLinkMetrics metrics = new NovaLinkMetrics();
+        final NovaCommandEngine engine = new NovaCommandEngine(this, clock, metrics);
+        boolean ready;
+        long readySinceNanos;
+        int connection; // Bumped on loss, so acks sent on an earlier connection are dropped.
+
+        final NovaCompletionCallback flashCallback = new Callback(true);
+        final NovaCompletionCallback offCallback = new Callback(false);
+
+        Device() {
+            engine.setProtocol(protocol);
+            engine.setQueueLimit(queueLimit, queuePolicy);
+        }
+
+        void connected() {
+            ready = true;
+            readySinceNanos = clock.elapsedRealtimeNanos();
+        }
+
+        void scheduleLoss() {
+            if (linkLossesPerHour == 0) {
+                return;
+            }
+            clock.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    lost();
+                }
+            }, Math.round(exponential(3600000.0 / linkLossesPerHour)));
+        }
+
+        void lost() {
+            readyNanos += clock.elapsedRealtimeNanos() - readySinceNanos;
+            ready = false;
+            connection++;
+            engine.failAll(NovaCompletionReason.Disconnected);
+            clock.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    connected();
+                    scheduleLoss();
+                }
+            }, reconnectMillis);
+        }
+
+        @Override
+        public boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public boolean isWriteHeld() {
+            return false;
+        }
+
+        @Override
+        public boolean write(byte[] frame) {
+            writes++;
+            final byte[] response = firmware.onRequest(frame);
+            if (response == null || random.nextDouble() < ackLoss) {
+                return true; // Lost. The engine times it out.
+            }
+            final int sentOn = connection;
+            int jitter = jitterMillis == 0 ? 0 : random.nextInt(2 * jitterMillis + 1) - jitterMillis;
+            clock.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    if (sentOn == connection && !engine.onResponse(response)) {
+                        lost(); // The link disconnects on a protocol error.
+                    }
+                }
+            }, roundTripMillis + jitter);
+            return true;
+        }
+
+        @Override
+        public void onFlashRequested() {
+            // No latency modes.
+        }
+
+        @Override
+        public void onAck(long roundTripNanos) {
+            metrics.onAck(false, null, roundTripNanos);
+        }
+
+        @Override
+        public void onAckTimeout() {
+            // Counted as a Timeout completion.
+        }
+
+        /**
+         * Tallies completions of this device's flashes or offs.
+         */
+        private class Callback extends NovaResultCallback {
+            private final boolean flash;
+
+            Callback(boolean flash) {
+                this.flash = flash;
+            }
+
+            @Override
+            public void onResult(NovaCompletionResult result) {
+                NovaCompletionReason reason = result.getReason();
+                completions[reason.ordinal()]++;
+                if (flash && reason == NovaCompletionReason.Acknowledged) {
+                    long latency = result.getAckedNanos() - result.getEnqueuedNanos();
+                    flashesAcked++;
+                    latencyHistogram[(int) Math.min(HISTOGRAM_MILLIS, latency / 1000000)]++;
+                    maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+                }
+            }
+        }
+    }
+
+    // -------
+    // Results
+    // -------
+
+    public long getShots() {
+        return shots;
+    }
+
+    /**
+     * @return How many cmds (flashes and offs) completed for reason.
+     */
+    public int getCompletions(NovaCompletionReason reason) {
+        return completions[reason.ordinal()];
+    }
+
+    /**
+     * @return Flashes acked per second of simulated time, across all devices.
+     */
+    public double getAckedFlashesPerSecond() {
+        return durationNanos == 0 ? 0 : flashesAcked * 1e9 / durationNanos;
+    }
+
+    /**
+     * @return Fraction of flashes (across all devices) that didn't complete successfully.
+     */
+    public double getFailedFlashRate() {
+        return flashes == 0 ? 0 : 1 - (double) flashesAcked / flashes;
+    }
+
+    /**
+     * @param percentile 0 to 100.
+     * @return Time from requesting a flash to its ack, to the milli, for acked flashes. Latencies
+     * over 10s are reported as 10s.
+     */
+    public long getFlashLatencyMillis(double percentile) {
+        long rank = (long) Math.ceil(percentile / 100 * flashesAcked);
+        long seen = 0;
+        for (int millis = 0; millis <= HISTOGRAM_MILLIS; millis++) {
+            seen += latencyHistogram[millis];
+            if (seen >= Math.max(1, rank)) {
+                return millis;
+            }
+        }
+        return 0;
+    }
+
+    public long getMaxFlashLatencyNanos() {
+        return maxLatencyNanos;
+    }
+
+    /**
+     * @return Fraction of cmds written that timed out waiting for their ack.
+     */
+    public double getTimeoutRate() {
+        return writes == 0 ? 0 : (double) getCompletions(NovaCompletionReason.Timeout) / writes;
+    }
+
+    /**
+     * @return Mean queue depth (cmds waiting to be sent) seen by each shot as it arrives at a
+     * device.
+     */
+    public double getMeanQueueDepth() {
+        return queueDepthSamples == 0 ? 0 : (double) queueDepthSum / queueDepthSamples;
+    }
+
+    /**
+     * @return Deepest any device's queue got.
+     */
+    public int getMaxQueueDepth() {
+        int max = 0;
+        for (Device device : rig) {
+            max = Math.max(max, device.metrics.getQueueHighWaterMark());
+        }
+        return max;
+    }
+
+    /**
+     * @return Fraction of time links were Ready, averaged over devices.
+     */
+    public double getAvailability() {
+        return durationNanos == 0 ? 0 : (double) readyNanos / durationNanos / devices;
+    }
+
+    /**
+     * @return Metrics of one simulated link.
+     */
+    public NovaLinkMetrics getMetrics(int device) {
+        return rig[device].metrics;
+    }
+
+    /**
+     * @return Results as a row to go with {@link #CSV_HEADER}.
+     */
+    public String toCsv() {
+        return String.format("%d,%.2f,%d,%.3f,%.2f,%d,%d,%d,%.1f,%.4f,%.4f,%.2f,%d,%.4f", devices, shotsPerSecond,
+                roundTripMillis, ackLoss, getAckedFlashesPerSecond(), getFlashLatencyMillis(50),
+                getFlashLatencyMillis(90), getFlashLatencyMillis(99), maxLatencyNanos / 1e6, getTimeoutRate(),
+                getFailedFlashRate(), getMeanQueueDepth(), getMaxQueueDepth(), getAvailability());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d shots on %d device(s): %.2f flashes acked/s, latency p50 %dms p90 %dms p99 %dms,"
+                        + " %.2f%% timeouts, %.2f%% flashes failed, queue depth mean %.2f max %d",
+                shots, devices, getAckedFlashesPerSecond(), getFlashLatencyMillis(50), getFlashLatencyMillis(90),
+                getFlashLatencyMillis(99), getTimeoutRate() * 100, getFailedFlashRate() * 100, getMeanQueueDepth(),
+                getMaxQueueDepth());
+    }
+
+    /**
+     * Sweep shot rates for a rig, printing a CSV row per rate.
+     */
+
+}
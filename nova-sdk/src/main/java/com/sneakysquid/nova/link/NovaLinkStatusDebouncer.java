@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+import android.os.Handler;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Filters a {@link NovaLink}'s status changes down to the ones an app usually cares about.
+ * <p/>
+ * While no Nova is in range, the link cycles Idle, Scanning (and sometimes Connecting) about
+ * once a second. This collapses those into a single stable searching state, reported as
+ * {@link NovaLinkStatus#Scanning}, so callbacks only see:
+ * <ul>
+ * <li>{@link NovaLinkStatus#Disabled}</li>
+ * <li>{@link NovaLinkStatus#Scanning} (searching: Idle, Scanning or Connecting)</li>
+ * <li>{@link NovaLinkStatus#Ready}</li>
+ * </ul>
+ * Reaching or leaving Ready, and being disabled, are reported immediately, so the app never
+ * flashes on a link it thinks is Ready when it isn't. Only starting to search (e.g. once
+ * enabled) waits for the hysteresis period, so a link that gets to Ready within it goes straight
+ * from Disabled to Ready.
+ * <p/>
+ * <h2>Usage:</h2>
+ * <pre>
+ * NovaLinkStatusDebouncer debouncer = new NovaLinkStatusDebouncer(nova, 1500);
+ * debouncer.registerStatusCallback(cameraControls); // instead of nova.registerStatusCallback()
+ * debouncer.start();
+ * </pre>
+ * Like NovaLink, this is for use on the main/UI thread only.
+ */
+public class NovaLinkStatusDebouncer {
+
+    public static final long DEFAULT_HYSTERESIS = 1500;
+
+    private final NovaLink link;
+    private final long hysteresisMillis;
+    private final Handler handler = new Handler();
+    private final Set<NovaLinkStatusCallback> callbacks = new HashSet<NovaLinkStatusCallback>();
+
+    private boolean started = false;
+    private NovaLinkStatus reported;
+    private NovaLinkStatus pending;
+
+    private final NovaLinkStatusCallback linkCallback = new NovaLinkStatusCallback() {
+        @Override
+        public void onNovaLinkStatusChange(NovaLinkStatus status) {
+            onLinkStatus(status);
+        }
+    };
+
+    private final Runnable settle = new Runnable() {
+        @Override
+        public void run() {
+            if (pending != null) {
+                NovaLinkStatus status = pending;
+                pending = null;
+                report(status);
+            }
+        }
+    };
+
+    public NovaLinkStatusDebouncer(NovaLink link) {
+        this(link, DEFAULT_HYSTERESIS);
+    }
+
+    /**
+     * @param hysteresisMillis How long the link must stay searching, other than after dropping
+     *                         out of Ready, before it's reported.
+     */
+    public NovaLinkStatusDebouncer(NovaLink link, long hysteresisMillis) {
+        if (hysteresisMillis < 0) {
+            throw new IllegalArgumentException("hysteresisMillis must not be negative (value is " + hysteresisMillis + ")");
+        }
+        this.link = link;
+        this.hysteresisMillis = hysteresisMillis;
+    }
+
+    /**
+     * Start following the link. The current (collapsed) status is reported straight away.
+     */
+    public void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        reported = null;
+        link.registerStatusCallback(linkCallback);
+        report(collapse(link.getStatus()));
+    }
+
+    /**
+     * Stop following the link. Any unreported change is discarded.
+     */
+    public void stop() {
+        if (!started) {
+            return;
+        }
+        started = false;
+        link.unregisterStatusCallback(linkCallback);
+        handler.removeCallbacks(settle);
+        pending = null;
+    }
+
+    /**
+     * @return Last reported status. Disabled, Scanning or Ready; null before {@link #start()}.
+     */
+    public NovaLinkStatus getStatus() {
+        return reported;
+    }
+
+    /**
+     * Callback will be run on the main/UI thread, only for debounced changes.
+     */
+    public void registerStatusCallback(NovaLinkStatusCallback callback) {
+        callbacks.add(callback);
+    }
+
+    public void unregisterStatusCallback(NovaLinkStatusCallback callback) {
+        callbacks.remove(callback);
+    }
+
+    private void onLinkStatus(NovaLinkStatus status) {
+        NovaLinkStatus collapsed = collapse(status);
+
+        if (collapsed == reported) {
+            // Back where we were (or never left, e.g. Idle to Scanning). Drop any pending change.
+            pending = null;
+            handler.removeCallbacks(settle);
+            return;
+        }
+
+        if (collapsed != NovaLinkStatus.Scanning || reported == NovaLinkStatus.Ready || hysteresisMillis == 0) {
+            pending = null;
+            handler.removeCallbacks(settle);
+            report(collapsed);
+            return;
+        }
+
+        if (collapsed != pending) {
+            // Restart the clock for the new candidate.
+            pending = collapsed;
+            handler.removeCallbacks(settle);
+            handler.postDelayed(settle, hysteresisMillis);
+        }
+    }
+
+    private void report(NovaLinkStatus status) {
+        if (status == reported) {
+            return;
+        }
+        reported = status;
+        NovaLinkStatusCallback[] snapshot = callbacks.toArray(new NovaLinkStatusCallback[callbacks.size()]);
+        for (NovaLinkStatusCallback callback : snapshot) {
+            callback.onNovaLinkStatusChange(status);
+        }
+    }
+
+    private static NovaLinkStatus collapse(NovaLinkStatus status) {
+        switch (status) {
+            case Idle:
+            case Scanning:
+            case Connecting:
+                return NovaLinkStatus.Scanning;
+            default:
+                return status;
+        }
+    }
+
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+import java.nio.charset.Charset;
+
+/**
+ * Wire formats for talking to a Nova. Which one a device speaks is negotiated when connecting
+ * (see {@link #capabilityFrame()}). Old firmware only speaks {@link #Text}.
+ * <p/>
+ * Encoders produce frame templates with a placeholder request id, which is patched in at send
+ * time with {@link #patchRequestId(byte[], int)}.
+ */
+enum NovaProtocol {
+
+    /**
+     * Original ASCII protocol. Requests are framed "(xx:yy)" where xx is 2 digit hex requestId
+     * and yy is body string, e.g. "(00:P)" or "(4A:L,00,FF,05DC)". Acks are "(xx:A)".
+     */
+    Text {
+        @Override
+        byte[] encodePing() {
+            return encodeText("P");
+        }
+
+        @Override
+        byte[] encodeOff() {
+            return encodeText("O");
+        }
+
+        @Override
+        byte[] encodeLight(int warmPwm, int coolPwm, int timeoutMillis) {
+            // Light cmd is formatted "L,w,c,t" where w and c are warm/cool pwm duty cycles as 2 digit hex
+            // and t is 4 digit hex timeout.
+            // e.g. "L,00,FF,05DC" (means light with warm=0, cool=255, timeout=1500ms)
+            return encodeText(String.format("L,%02X,%02X,%04X", warmPwm, coolPwm, timeoutMillis));
+        }
+
+        @Override
+        void patchRequestId(byte[] frame, int requestId) {
+            frame[1] = HEX[(requestId >> 4) & 0xF];
+            frame[2] = HEX[requestId & 0xF];
+        }
+
+        @Override
+        int parseAck(byte[] frame) {
+            // Parses "(xx:A)" packet where xx is hex value for resultId.
+            // Done by hand rather than with a regex, as it's on every ack.
+            if (frame == null || frame.length != 6
+                    || frame[0] != '(' || frame[3] != ':' || frame[4] != 'A' || frame[5] != ')') {
+                return PARSE_FAILED;
+            }
+            return parseHexId(frame);
+        }
+
+        @Override
+        String describe(byte[] frame) {
+            return new String(frame, ASCII);
+        }
+    },
+
+    /**
+     * Compact protocol (v2). Requests are [id, opcode, args...]:
+     * <pre>
+     * ping:  [id, 0x01]
+     * off:   [id, 0x02]
+     * light: [id, 0x03, warm, cool, timeout hi, timeout lo]
+     * batch: [id, 0x04, n, op 1, args 1..., op n, args n...]
+     * </pre>
+     * A batch carries several ops (light, off, or delay: [0x05, millis hi, millis lo]) without
+     * their own ids, run in order by the device and acked once. Acks are [id, 0x80].
+     */
+    Binary {
+        @Override
+        byte[] encodePing() {
+            return new byte[]{0, OP_PING};
+        }
+
+        @Override
+        byte[] encodeOff() {
+            return new byte[]{0, OP_OFF};
+        }
+
+        @Override
+        byte[] encodeLight(int warmPwm, int coolPwm, int timeoutMillis) {
+            return new byte[]{0, OP_LIGHT, (byte) warmPwm, (byte) coolPwm,
+                    (byte) (timeoutMillis >> 8), (byte) timeoutMillis};
+        }
+
+        @Override
+        byte[] encodeBatch(NovaFlashSequence sequence) {
+            int length = 3;
+            for (int step = 0; step < sequence.size(); step++) {
+                length += (sequence.getDelay(step) == 0 ? 0 : 3)
+                        + (sequence.getCommand(step).isPointless() ? 1 : 5);
+            }
+            if (length > MAX_FRAME_LENGTH) {
+                return null;
+            }
+
+            byte[] frame = new byte[length];
+            frame[1] = OP_BATCH;
+            int ops = 0;
+            int i = 3;
+            for (int step = 0; step < sequence.size(); step++) {
+                int delay = sequence.getDelay(step);
+                if (delay != 0) {
+                    frame[i++] = OP_DELAY;
+                    frame[i++] = (byte) (delay >> 8);
+                    frame[i++] = (byte) delay;
+                    ops++;
+                }
+                NovaFlashCommand cmd = sequence.getCommand(step);
+                if (cmd.isPointless()) {
+                    frame[i++] = OP_OFF;
+                } else {
+                    frame[i++] = OP_LIGHT;
+                    frame[i++] = (byte) cmd.getWarmness();
+                    frame[i++] = (byte) cmd.getCoolness();
+                    frame[i++] = (byte) (cmd.getDuration() >> 8);
+                    frame[i++] = (byte) cmd.getDuration();
+                }
+                ops++;
+            }
+            frame[2] = (byte) ops;
+            return frame;
+        }
+
+        @Override
+        void patchRequestId(byte[] frame, int requestId) {
+            frame[0] = (byte) requestId;
+        }
+
+        @Override
+        int parseAck(byte[] frame) {
+            if (frame == null || frame.length != 2 || frame[1] != OP_ACK) {
+                return PARSE_FAILED;
+            }
+            return frame[0] & 0xFF;
+        }
+
+        @Override
+        String describe(byte[] frame) {
+            StringBuilder result = new StringBuilder(frame.length * 3 + 1).append('[');
+            for (int i = 0; i < frame.length; i++) {
+                if (i > 0) {
+                    result.append(' ');
+                }
+                result.append((char) HEX[(frame[i] >> 4) & 0xF]).append((char) HEX[frame[i] & 0xF]);
+            }
+            return result.append(']').toString();
+        }
+    };
+
+    static final Charset ASCII = Charset.forName("US-ASCII");
+
+    static final int PARSE_FAILED = -1;
+
+    /**
+     * Request id used only for capability pings. Cmds wrap before reaching it, so a late reply
+     * can't be mistaken for a cmd's ack.
+     */
+    static final int CAPABILITY_ID = 0xFF;
+
+    /**
+     * Largest frame that fits in one packet with the default ATT MTU.
+     */
+    static final int MAX_FRAME_LENGTH = 20;
+
+    static final byte OP_PING = 0x01;
+    static final byte OP_OFF = 0x02;
+    static final byte OP_LIGHT = 0x03;
+    static final byte OP_BATCH = 0x04;
+    static final byte OP_DELAY = 0x05;
+    static final byte OP_ACK = (byte) 0x80;
+
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(ASCII);
+
+    abstract byte[] encodePing();
+
+    abstract byte[] encodeOff();
+
+    abstract byte[] encodeLight(int warmPwm, int coolPwm, int timeoutMillis);
+
+    /**
+     * Encode a whole sequence as one frame, so the device times the steps itself.
+     *
+     * @return null if this protocol can't, or the sequence doesn't fit in one frame.
+     */
+    byte[] encodeBatch(NovaFlashSequence sequence) {
+        return null;
+    }
+
+    /**
+     * Write requestId into the id placeholder of a frame template.
+     */
+    abstract void patchRequestId(byte[] frame, int requestId);
+
+    /**
+     * @return Request id acked by frame, or PARSE_FAILED if it's not an ack.
+     */
+    abstract int parseAck(byte[] frame);
+
+    /**
+     * Human readable frame, for logging.
+     */
+    abstract String describe(byte[] frame);
+
+    /**
+     * Human readable frame with requestId patched in, for logging.
+     */
+    String toString(byte[] frame, int requestId) {
+        patchRequestId(frame, requestId);
+        return describe(frame);
+    }
+
+    /**
+     * Capability ping, sent in the text protocol so any firmware can parse it: "(FF:V)".
+     * Firmware that speaks the binary protocol replies "(FF:V,02)". Older firmware either
+     * acks it like any other cmd, or ignores it.
+     */
+    static byte[] capabilityFrame() {
+        byte[] frame = encodeText("V");
+        Text.patchRequestId(frame, CAPABILITY_ID);
+        return frame;
+    }
+
+    /**
+     * @return Protocol to use given the reply to {@link #capabilityFrame()}, or null if it
+     * isn't a reply to one.
+     */
+    static NovaProtocol parseCapability(byte[] frame) {
+        if (frame == null || frame.length < 6 || frame[0] != '(' || frame[3] != ':'
+                || parseHexId(frame) != CAPABILITY_ID) {
+            return null;
+        }
+        if (frame.length == 9 && frame[4] == 'V' && frame[5] == ',' && frame[8] == ')') {
+            int high = Character.digit(frame[6], 16);
+            int low = Character.digit(frame[7], 16);
+            if (high >= 0 && low >= 0 && ((high << 4) | low) >= 2) {
+                return Binary;
+            }
+        }
+        return Text;
+    }
+
+    private static byte[] encodeText(String msg) {
+        return String.format("(%02X:%s)", 0, msg).getBytes(ASCII);
+    }
+
+    private static int parseHexId(byte[] frame) {
+        int high = Character.digit(frame[1], 16);
+        int low = Character.digit(frame[2], 16);
+        if (high < 0 || low < 0) {
+            return PARSE_FAILED;
+        }
+        return (high << 4) | low;
+    }
+
+}
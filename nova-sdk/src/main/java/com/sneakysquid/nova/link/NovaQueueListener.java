@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+/**
+ * Notified when a link's outbound queue fills up and empties again, so apps can throttle
+ * input (e.g. disable the shutter button) rather than queueing commands that will be late.
+ * <p/>
+ * Callbacks run on the link's thread.
+ *
+ * @see BluetoothLENovaLink#setQueueListener(NovaQueueListener)
+ */
+public interface NovaQueueListener {
+
+    /**
+     * Queue has reached its limit. Further commands are subject to the {@link NovaQueuePolicy}.
+     *
+     * @param depth Number of queued commands.
+     */
+    void onQueueSaturated(int depth);
+
+    /**
+     * Queue has emptied after being saturated.
+     */
+    void onQueueDrained();
+
+}
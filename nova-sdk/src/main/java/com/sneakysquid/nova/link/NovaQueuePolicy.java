@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+/**
+ * What a link does with a new command when its outbound queue is at its limit.
+ *
+ * @see BluetoothLENovaLink#setQueueLimit(int, NovaQueuePolicy)
+ */
+public enum NovaQueuePolicy {
+
+    /**
+     * New command is rejected with {@link NovaCompletionReason#QueueFull}.
+     */
+    RejectNew,
+
+    /**
+     * Oldest queued command of the same or lower priority is dropped with
+     * {@link NovaCompletionReason#Dropped} to make room, so a ping never displaces a flash. If
+     * there are none, the new command is rejected as with {@link #RejectNew}.
+     */
+    DropOldest,
+
+    /**
+     * Queued commands of the same kind (flashes, offs or pings) are replaced by the new one, and
+     * complete with {@link NovaCompletionReason#Superseded}. e.g. repeated shutter presses while
+     * the device is stalled only send the latest flash. If there are none to replace, the new
+     * command is rejected as with {@link #RejectNew}.
+     */
+    Coalesce
+
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+import java.util.Arrays;
+
+/**
+ * Allocates the 8-bit request ids that match acks to cmds. Ids are handed out in turn, but an
+ * id is only reused once its cmd has been acked, or, if it wasn't (timed out, or abandoned on a
+ * protocol error), once a quarantine window has passed. A late ack can then never be matched to
+ * a newer cmd that was given the same id.
+ * <p/>
+ * Ids are 0 to 254. 255 ({@link NovaProtocol#CAPABILITY_ID}) is reserved for negotiation.
+ * <p/>
+ * Unavailable ids are tracked in a bitmap, so finding a free one is a few word operations.
+ * <p/>
+ * Not thread safe.
+ */
+final class NovaRequestIds {
+
+    static final int NONE = -1;
+    static final int COUNT = NovaProtocol.CAPABILITY_ID; // Ids 0 to COUNT - 1.
+
+    private static final int WORDS = (COUNT + 63) / 64;
+
+    private final long quarantineNanos;
+    private final long[] unavailable = new long[WORDS]; // Bit set while in use or quarantined.
+    private final long[] releaseNanos = new long[COUNT]; // When quarantine ends, or 0 if in use/free.
+    private int next = 1; // Start where the old counter did, so the first cmd is id 1.
+    private int quarantined;
+
+    /**
+     * @param quarantineMillis How long an id that wasn't acked stays out of use.
+     */
+    NovaRequestIds(long quarantineMillis) {
+        this.quarantineNanos = quarantineMillis * 1000000;
+    }
+
+    /**
+     * Take the next available id.
+     *
+     * @return Id, or {@link #NONE} if all are in use or quarantined.
+     */
+    int allocate(long nowNanos) {
+        int id = findAvailable(next);
+        if (id == NONE && quarantined > 0) {
+            releaseExpired(nowNanos);
+            id = findAvailable(next);
+        }
+        if (id == NONE) {
+            return NONE;
+        }
+        set(id);
+        next = id + 1 == COUNT ? 0 : id + 1;
+        return id;
+    }
+
+    /**
+     * Id's cmd was acked, so no more acks are expected for it. It can be reused straight away.
+     */
+    void release(int id) {
+        if (releaseNanos[id] != 0) {
+            return; // Already quarantined.
+        }
+        clear(id);
+    }
+
+    /**
+     * Id's cmd was given up on, but its ack may yet turn up. Keep it out of use for a while.
+     */
+    void quarantine(int id, long nowNanos) {
+        if (releaseNanos[id] == 0) {
+            quarantined++;
+        }
+        set(id);
+        releaseNanos[id] = Math.max(1, nowNanos + quarantineNanos);
+    }
+
+    /**
+     * The late ack for quarantined id turned up, so no more are expected for it. It can be
+     * reused straight away rather than when its quarantine ends.
+     */
+    void releaseQuarantined(int id) {
+        if (releaseNanos[id] == 0) {
+            return; // Not quarantined.
+        }
+        releaseNanos[id] = 0;
+        quarantined--;
+        clear(id);
+    }
+
+    /**
+     * Free all ids, e.g. on a new connection, when acks from the old one can't arrive.
+     */
+    void reset() {
+        Arrays.fill(unavailable, 0);
+        Arrays.fill(releaseNanos, 0);
+        quarantined = 0;
+    }
+
+    /**
+     * @return Whether an id could be allocated now.
+     */
+    boolean isAvailable(long nowNanos) {
+        if (findAvailable(0) != NONE) {
+            return true;
+        }
+        releaseExpired(nowNanos);
+        return findAvailable(0) != NONE;
+    }
+
+    /**
+     * @return When the next quarantined id is released, or -1 if none are quarantined.
+     */
+    long nextReleaseNanos() {
+        long earliest = -1;
+        for (int id = 0; id < COUNT && quarantined > 0; id++) {
+            long release = releaseNanos[id];
+            if (release != 0 && (earliest == -1 || release < earliest)) {
+                earliest = release;
+            }
+        }
+        return earliest;
+    }
+
+    /**
+     * @return Whether id was given up on and is waiting out its quarantine.
+     */
+    boolean isQuarantined(int id) {
+        return id >= 0 && id < COUNT && releaseNanos[id] != 0;
+    }
+
+    /**
+     * @return How many ids are quarantined (some may be due for release).
+     */
+    int getQuarantined() {
+        return quarantined;
+    }
+
+    /**
+     * @return First available id, searching upwards from start and wrapping, or NONE.
+     */
+    private int findAvailable(int start) {
+        int word = start >>> 6;
+        long free = ~unavailable[word] & (-1L << (start & 63)); // Ids >= start in the first word.
+        for (int i = 0; i <= WORDS; i++) {
+            if (free != 0) {
+                int id = (word << 6) + Long.numberOfTrailingZeros(free);
+                if (id < COUNT) {
+                    return id;
+                }
+            }
+            word = word + 1 == WORDS ? 0 : word + 1;
+            free = ~unavailable[word];
+        }
+        return NONE;
+    }
+
+    private void releaseExpired(long nowNanos) {
+        for (int id = 0; id < COUNT && quarantined > 0; id++) {
+            if (releaseNanos[id] != 0 && releaseNanos[id] <= nowNanos) {
+                releaseNanos[id] = 0;
+                quarantined--;
+                clear(id);
+            }
+        }
+    }
+
+    private void set(int id) {
+        unavailable[id >>> 6] |= 1L << id;
+    }
+
+    private void clear(int id) {
+        unavailable[id >>> 6] &= ~(1L << id);
+    }
+
+}
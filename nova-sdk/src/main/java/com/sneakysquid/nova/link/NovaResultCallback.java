@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+/**
+ * A {@link NovaCompletionCallback} that receives the full {@link NovaCompletionResult}: why the
+ * command completed, its request id, timings and attempt count. Pass it anywhere a
+ * NovaCompletionCallback is accepted.
+ * <p/>
+ * The link calls {@link #onResult(NovaCompletionResult)} instead of {@link #onComplete(boolean)}.
+ */
+public abstract class NovaResultCallback implements NovaCompletionCallback {
+
+    /**
+     * @param result Outcome of the command. Only valid for the duration of this call.
+     */
+    public abstract void onResult(NovaCompletionResult result);
+
+    /**
+     * Bridge for code that only knows success or failure. The result has reason
+     * {@link NovaCompletionReason#Acknowledged} or {@link NovaCompletionReason#Unknown}.
+     */
+    @Override
+    public final void onComplete(boolean successful) {
+        onResult(new NovaCompletionResult().set(
+                successful ? NovaCompletionReason.Acknowledged : NovaCompletionReason.Unknown,
+                -1, 0, 0, 0, 0));
+    }
+
+}
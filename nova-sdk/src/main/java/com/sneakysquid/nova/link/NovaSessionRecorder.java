@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Records what a {@link BluetoothLENovaLink} sees of a session: frames written and notified,
+ * GATT callbacks, status changes, and the commands asked of it, each with a nanosecond
+ * timestamp. Replay a recording with {@link NovaSessionReplayer} to reproduce the session's
+ * timing and failures without a device.
+ * <p/>
+ * Events are encoded compactly (varints, time deltas) into memory as they happen, so recording
+ * does no I/O and, until the buffer has to grow, no allocation. Once full, recording stops and
+ * the recording is marked truncated.
+ * <p/>
+ * <h2>Usage:</h2>
+ * <pre>
+ * NovaSessionRecorder recorder = new NovaSessionRecorder(256 * 1024);
+ * nova.setSessionRecorder(recorder);
+ * ...
+ * recorder.writeTo(new FileOutputStream(file)); // e.g. attach to a bug report
+ * </pre>
+ * <p/>
+ * Not thread safe. Use from the link's thread.
+ *
+ * <h2>File format</h2>
+ * <pre>
+ * header: "NVRC", version (1 byte), flags (1 byte, bit 0 = truncated),
+ *         start uptimeMillis (8 bytes), start elapsedRealtimeNanos (8 bytes)
+ * event:  type (1 byte), nanos since previous event (varint), payload (by type)
+ * </pre>
+ * Varints are unsigned LEB128. Signed values are zigzag encoded first.
+ */
+public final class NovaSessionRecorder {
+
+    static final int MAGIC = 0x4e565243; // "NVRC"
+    static final int VERSION = 1;
+    static final int FLAG_TRUNCATED = 1;
+
+    // Event types, and their payloads.
+    static final int EVENT_STATUS = 1; // NovaLinkStatus ordinal.
+    static final int EVENT_COMMAND = 2; // Queue type | COMMAND_DEADLINE, [deadline - start uptime (zigzag)], then
+                                        // packed (light), or steps and (packed, delay) per step (sequence).
+    static final int EVENT_CANCEL = 3; // Token (zigzag).
+    static final int EVENT_WRITE = 4; // WRITE_* flags, length, bytes.
+    static final int EVENT_NOTIFY = 5; // Length, bytes.
+    static final int EVENT_GATT = 6; // GATT_* callback, status (zigzag), value (zigzag).
+    static final int EVENT_WRITE_HELD = 7; // 1 or 0.
+    static final int EVENT_PROTOCOL = 8; // NovaProtocol ordinal.
+    static final int EVENT_QUEUE_LIMIT = 9; // Limit, NovaQueuePolicy ordinal.
+    static final int EVENT_COMPLETE = 10; // NovaCompletionReason ordinal, nanos since enqueued.
+
+    static final int COMMAND_DEADLINE = 0x80;
+
+    static final int WRITE_OK = 1; // Write was started.
+    static final int WRITE_CONTROL = 2; // Written by the link itself (e.g. capability ping), not a cmd.
+
+    // GATT callbacks. Value is newState for connection state, rssi for RSSI reads, otherwise 0.
+    static final int GATT_CONNECTION_STATE = 1;
+    static final int GATT_SERVICES_DISCOVERED = 2;
+    static final int GATT_DESCRIPTOR_WRITE = 3;
+    static final int GATT_CHARACTERISTIC_WRITE = 4;
+    static final int GATT_READ_RSSI = 5;
+
+    private static final int INITIAL_SIZE = 4096;
+    private static final int MAX_EVENT_OVERHEAD = 32; // Type, time and fixed fields, excluding frame bytes.
+
+    private final int maxBytes;
+    private byte[] buffer;
+    private int length;
+    private boolean truncated;
+    private NovaClock clock;
+    private long startUptimeMillis;
+    private long startNanos;
+    private long lastNanos;
+
+    /**
+     * @param maxBytes Most memory to use for events. Recording stops when it's full.
+     */
+    public NovaSessionRecorder(int maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("maxBytes must be positive (value is " + maxBytes + ")");
+        }
+        this.maxBytes = maxBytes;
+        this.buffer = new byte[Math.min(maxBytes, INITIAL_SIZE)];
+    }
+
+    /**
+     * @return Size of the recorded events, in bytes.
+     */
+    public int size() {
+        return length;
+    }
+
+    /**
+     * @return Whether recording stopped because the buffer was full.
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Discard everything recorded so far, and start again from now.
+     */
+    public void clear() {
+        length = 0;
+        truncated = false;
+        if (clock != null) {
+            start();
+        }
+    }
+
+    /**
+     * Write the recording (header and events so far). Recording carries on afterwards.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeByte(VERSION);
+        data.writeByte(truncated ? FLAG_TRUNCATED : 0);
+        data.writeLong(startUptimeMillis);
+        data.writeLong(startNanos);
+        data.write(buffer, 0, length);
+        data.flush();
+    }
+
+    /**
+     * Start timing with the link's clock. Called when attached to a link.
+     */
+    void attach(NovaClock clock) {
+        if (this.clock == null) {
+            this.clock = clock;
+            start();
+        }
+    }
+
+    private void start() {
+        startUptimeMillis = clock.uptimeMillis();
+        startNanos = clock.elapsedRealtimeNanos();
+        lastNanos = startNanos;
+    }
+
+    // -------------
+    // Record events
+    // -------------
+
+    void onStatus(NovaLinkStatus status) {
+        if (begin(EVENT_STATUS, 0)) {
+            putVarint(status.ordinal());
+        }
+    }
+
+    void onCommand(byte type, int packed, NovaFlashSequence sequence, long deadline) {
+        int steps = sequence == null ? 0 : sequence.size();
+        if (!begin(EVENT_COMMAND, steps * 10)) {
+            return;
+        }
+        if (deadline == NovaLink.NO_DEADLINE) {
+            putByte(type);
+        } else {
+            putByte(type | COMMAND_DEADLINE);
+            putVarint(zigzag(deadline - startUptimeMillis));
+        }
+        if (type == NovaCommandQueue.TYPE_LIGHT) {
+            putVarint(packed & 0xFFFFFFFFL);
+        } else if (type == NovaCommandQueue.TYPE_SEQUENCE) {
+            putVarint(steps);
+            for (int step = 0; step < steps; step++) {
+                NovaFlashCommand cmd = sequence.getCommand(step);
+                putVarint(NovaCommandQueue.pack(cmd.getWarmness(), cmd.getCoolness(), cmd.getDuration())
+                        & 0xFFFFFFFFL);
+                putVarint(sequence.getDelay(step));
+            }
+        }
+    }
+
+    void onCancel(long token) {
+        if (begin(EVENT_CANCEL, 0)) {
+            putVarint(zigzag(token));
+        }
+    }
+
+    void onWrite(byte[] frame, boolean ok, boolean control) {
+        if (begin(EVENT_WRITE, frame.length)) {
+            putByte((ok ? WRITE_OK : 0) | (control ? WRITE_CONTROL : 0));
+            putBytes(frame);
+        }
+    }
+
+    void onNotify(byte[] frame) {
+        if (frame != null && begin(EVENT_NOTIFY, frame.length)) {
+            putBytes(frame);
+        }
+    }
+
+    void onGatt(int callback, int status, int value) {
+        if (begin(EVENT_GATT, 0)) {
+            putByte(callback);
+            putVarint(zigzag(status));
+            putVarint(zigzag(value));
+        }
+    }
+
+    void onWriteHeld(boolean held) {
+        if (begin(EVENT_WRITE_HELD, 0)) {
+            putByte(held ? 1 : 0);
+        }
+    }
+
+    void onProtocol(NovaProtocol protocol) {
+        if (begin(EVENT_PROTOCOL, 0)) {
+            putVarint(protocol.ordinal());
+        }
+    }
+
+    void onQueueLimit(int limit, NovaQueuePolicy policy) {
+        if (begin(EVENT_QUEUE_LIMIT, 0)) {
+            putVarint(limit);
+            putVarint(policy.ordinal());
+        }
+    }
+
+    void onComplete(NovaCompletionReason reason, long enqueuedNanos) {
+        if (begin(EVENT_COMPLETE, 0)) {
+            putVarint(reason.ordinal());
+            putVarint(Math.max(0, clock.elapsedRealtimeNanos() - enqueuedNanos));
+        }
+    }
+
+    // --------
+    // Encoding
+    // --------
+
+    /**
+     * Start an event, if there's room for it (and variable part of up to extra bytes).
+     *
+     * @return false if recording has stopped.
+     */
+    private boolean begin(int type, int extra) {
+        if (clock == null || truncated) {
+            return false;
+        }
+        int needed = length + MAX_EVENT_OVERHEAD + extra;
+        if (needed > maxBytes) {
+            truncated = true;
+            return false;
+        }
+        if (needed > buffer.length) {
+            byte[] grown = new byte[(int) Math.min(maxBytes, Math.max(needed, 2L * buffer.length))];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+
+        long now = clock.elapsedRealtimeNanos();
+        putByte(type);
+        putVarint(Math.max(0, now - lastNanos));
+        lastNanos = Math.max(lastNanos, now);
+        return true;
+    }
+
+    private void putByte(int value) {
+        buffer[length++] = (byte) value;
+    }
+
+    private void putBytes(byte[] bytes) {
+        putVarint(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void putVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[length++] = (byte) value;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+}
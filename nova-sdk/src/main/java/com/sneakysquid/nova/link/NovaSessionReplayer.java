@@ -0,0 +1,489 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Replays a {@link NovaSessionRecorder} recording through the link's real command logic, under
+ * a virtual clock. Commands, notifications, status changes and held writes are fed in at their
+ * recorded times; timers (ack timeouts, sequence delays) fire when they would have. The writes
+ * and completions that result are checked against those recorded, so a customer's session can
+ * be reproduced exactly, latencies and all, in CI without a device.
+ * <p/>
+ * A divergence means the command logic no longer behaves as it did when recorded: the first is
+ * described by {@link #getFirstDivergence()}.
+ * <p/>
+ * Off-device, call {@link Debug#setEnabled(boolean) Debug.setEnabled(false)} first, as Android
+ * logging is not available. NovaSessionReplayerTool, in the test sources, replays a recording
+ * file standalone.
+ * <p/>
+ * Not thread safe.
+ */
+public final class NovaSessionReplayer {
+
+    private static final long LATENCY_TOLERANCE_NANOS = 1000000; // Timers are in millis, so allow 1ms.
+
+    /**
+     * One decoded event.
+     */
+    private static class Event {
+        final int type;
+        final long nanos; // elapsedRealtimeNanos.
+        int value; // Status, cmd type, flags, callback, protocol, limit or reason.
+        int extra; // GATT status, queue policy.
+        long number; // Deadline, token, GATT value, or latency.
+        Object data; // Frame, NovaFlashCommand or NovaFlashSequence.
+
+        Event(int type, long nanos) {
+            this.type = type;
+            this.nanos = nanos;
+        }
+    }
+
+    private final List<Event> events = new ArrayList<Event>();
+    private final List<Event> expectedWrites = new ArrayList<Event>();
+    private final List<Event> expectedCompletions = new ArrayList<Event>();
+    private final boolean truncated;
+    private final long startUptimeMillis;
+    private final long startNanos;
+
+    private final NovaLinkMetrics metrics = new NovaLinkMetrics();
+    private final int[] completions = new int[NovaCompletionReason.values().length];
+    private NovaVirtualClock clock;
+    private NovaCommandEngine engine;
+    private boolean ran;
+    private NovaLinkStatus status = NovaLinkStatus.Disabled;
+    private boolean writeHeld;
+    private boolean negotiating;
+    private int writeIndex;
+    private int completionIndex;
+    private int gattCallbacks;
+    private long acked;
+    private long latencySumNanos;
+    private long maxLatencyNanos;
+    private long recordedAcked;
+    private long recordedLatencySumNanos;
+    private int divergences;
+    private String firstDivergence;
+
+    /**
+     * Read a recording, as written by {@link NovaSessionRecorder#writeTo(java.io.OutputStream)}.
+     *
+     * @throws IOException if it can't be read, or isn't a recording.
+     */
+    public NovaSessionReplayer(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != NovaSessionRecorder.MAGIC) {
+            throw new IOException("Not a Nova session recording");
+        }
+        int version = data.readUnsignedByte();
+        if (version != NovaSessionRecorder.VERSION) {
+            throw new IOException("Unsupported recording version " + version);
+        }
+        truncated = (data.readUnsignedByte() & NovaSessionRecorder.FLAG_TRUNCATED) != 0;
+        startUptimeMillis = data.readLong();
+        startNanos = data.readLong();
+
+        long nanos = startNanos;
+        int type;
+        while ((type = data.read()) != -1) {
+            nanos += readVarint(data);
+            Event event = new Event(type, nanos);
+            readPayload(data, event);
+            events.add(event);
+            if (type == NovaSessionRecorder.EVENT_WRITE
+                    && (event.value & NovaSessionRecorder.WRITE_CONTROL) == 0) {
+                expectedWrites.add(event);
+            } else if (type == NovaSessionRecorder.EVENT_COMPLETE) {
+                expectedCompletions.add(event);
+                if (event.value == NovaCompletionReason.Acknowledged.ordinal()) {
+                    recordedAcked++;
+                    recordedLatencySumNanos += event.number;
+                }
+            }
+        }
+    }
+
+    private void readPayload(DataInputStream data, Event event) throws IOException {
+        switch (event.type) {
+            case NovaSessionRecorder.EVENT_STATUS:
+            case NovaSessionRecorder.EVENT_PROTOCOL:
+                event.value = (int) readVarint(data);
+                break;
+            case NovaSessionRecorder.EVENT_WRITE_HELD:
+                event.value = data.readUnsignedByte();
+                break;
+            case NovaSessionRecorder.EVENT_COMMAND:
+                int flags = data.readUnsignedByte();
+                event.value = flags & ~NovaSessionRecorder.COMMAND_DEADLINE;
+                event.number = (flags & NovaSessionRecorder.COMMAND_DEADLINE) == 0 ? NovaLink.NO_DEADLINE
+                        : startUptimeMillis + unzigzag(readVarint(data));
+                if (event.value == NovaCommandQueue.TYPE_LIGHT) {
+                    event.data = unpack((int) readVarint(data));
+                } else if (event.value == NovaCommandQueue.TYPE_SEQUENCE) {
+                    int steps = (int) readVarint(data);
+                    NovaFlashSequence sequence = null;
+                    for (int step = 0; step < steps; step++) {
+                        NovaFlashCommand cmd = unpack((int) readVarint(data));
+                        int delay = (int) readVarint(data);
+                        sequence = sequence == null ? NovaFlashSequence.start(cmd) : sequence.thenAfter(delay, cmd);
+                    }
+                    event.data = sequence;
+                }
+                break;
+            case NovaSessionRecorder.EVENT_CANCEL:
+                event.number = unzigzag(readVarint(data));
+                break;
+            case NovaSessionRecorder.EVENT_WRITE:
+                event.value = data.readUnsignedByte();
+                event.data = readFrame(data);
+                break;
+            case NovaSessionRecorder.EVENT_NOTIFY:
+                event.data = readFrame(data);
+                break;
+            case NovaSessionRecorder.EVENT_GATT:
+                event.value = data.readUnsignedByte();
+                event.extra = (int) unzigzag(readVarint(data));
+                event.number = unzigzag(readVarint(data));
+                break;
+            case NovaSessionRecorder.EVENT_QUEUE_LIMIT:
+            case NovaSessionRecorder.EVENT_COMPLETE:
+                event.value = (int) readVarint(data);
+                if (event.type == NovaSessionRecorder.EVENT_QUEUE_LIMIT) {
+                    event.extra = (int) readVarint(data);
+                } else {
+                    event.number = readVarint(data);
+                }
+                break;
+            default:
+                throw new IOException("Unknown event type " + event.type);
+        }
+    }
+
+    /**
+     * Replay the whole recording. Can only be run once.
+     */
+    public void run() {
+        if (ran) {
+            throw new IllegalStateException("Already run");
+        }
+        ran = true;
+
+        clock = new NovaVirtualClock(startUptimeMillis, startNanos);
+        engine = new NovaCommandEngine(new ReplayHost(), clock, metrics);
+        ReplayCallback callback = new ReplayCallback();
+
+        for (Event event : events) {
+            clock.advanceTo(event.nanos);
+            switch (event.type) {
+                case NovaSessionRecorder.EVENT_STATUS:
+                    NovaLinkStatus previous = status;
+                    status = NovaLinkStatus.values()[event.value];
+                    if (previous == NovaLinkStatus.Ready && status != NovaLinkStatus.Ready) {
+                        // The link fails everything outstanding as it disconnects.
+                        engine.failAll(NovaCompletionReason.Disconnected);
+                    }
+                    break;
+                case NovaSessionRecorder.EVENT_COMMAND:
+                    command(event, callback);
+                    break;
+                case NovaSessionRecorder.EVENT_CANCEL:
+                    engine.cancel(event.number);
+                    break;
+                case NovaSessionRecorder.EVENT_WRITE:
+                    if ((event.value & NovaSessionRecorder.WRITE_CONTROL) != 0) {
+                        negotiating = true; // Capability ping. The link handles the reply itself.
+                    }
+                    break;
+                case NovaSessionRecorder.EVENT_NOTIFY:
+                    if (!negotiating) {
+                        // If this breaks the protocol, the link disconnects, which is recorded next.
+                        engine.onResponse((byte[]) event.data);
+                    }
+                    break;
+                case NovaSessionRecorder.EVENT_GATT:
+                    gattCallbacks++;
+                    break;
+                case NovaSessionRecorder.EVENT_WRITE_HELD:
+                    writeHeld = event.value != 0;
+                    if (!writeHeld) {
+                        engine.processSendQueue();
+                    }
+                    break;
+                case NovaSessionRecorder.EVENT_PROTOCOL:
+                    negotiating = false;
+                    engine.setProtocol(NovaProtocol.values()[event.value]);
+                    break;
+                case NovaSessionRecorder.EVENT_QUEUE_LIMIT:
+                    engine.setQueueLimit(event.value, NovaQueuePolicy.values()[event.extra]);
+                    break;
+                default:
+                    // Expected results, checked as the replay produces them.
+                    break;
+            }
+        }
+
+        if (writeIndex < expectedWrites.size()) {
+            diverged(expectedWrites.get(writeIndex).nanos, "recorded " + (expectedWrites.size() - writeIndex)
+                    + " more write(s) than replayed");
+        }
+        if (completionIndex < expectedCompletions.size()) {
+            diverged(expectedCompletions.get(completionIndex).nanos, "recorded "
+                    + (expectedCompletions.size() - completionIndex) + " more completion(s) than replayed");
+        }
+    }
+
+    private void command(Event event, NovaCompletionCallback callback) {
+        switch (event.value) {
+            case NovaCommandQueue.TYPE_LIGHT:
+                engine.beginFlash((NovaFlashCommand) event.data, event.number, callback);
+                break;
+            case NovaCommandQueue.TYPE_OFF:
+                engine.endFlash(event.number, callback);
+                break;
+            case NovaCommandQueue.TYPE_SEQUENCE:
+                engine.beginFlashSequence((NovaFlashSequence) event.data, callback);
+                break;
+            default:
+                engine.ping(callback);
+                break;
+        }
+    }
+
+    private void diverged(long nanos, String description) {
+        divergences++;
+        if (firstDivergence == null) {
+            firstDivergence = String.format("at %.3fms: %s", (nanos - startNanos) / 1e6, description);
+        }
+    }
+
+    // -------
+    // Results
+    // -------
+
+    /**
+     * @return Whether the recording was cut short because the recorder's buffer filled. The
+     * replay stops where the recording does.
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public int getEventCount() {
+        return events.size();
+    }
+
+    /**
+     * @return Time from the start of the recording to its last event.
+     */
+    public long getDurationNanos() {
+        return events.isEmpty() ? 0 : events.get(events.size() - 1).nanos - startNanos;
+    }
+
+    /**
+     * @return How many GATT callbacks were recorded. They're not replayed as such; their effects
+     * on the link (status changes, held writes) are recorded and replayed separately.
+     */
+    public int getGattCallbacks() {
+        return gattCallbacks;
+    }
+
+    /**
+     * @return How many replayed commands completed for reason.
+     */
+    public int getCompletions(NovaCompletionReason reason) {
+        return completions[reason.ordinal()];
+    }
+
+    /**
+     * @return Mean time from request to ack of replayed commands, or 0 if none were acked.
+     */
+    public long getMeanLatencyNanos() {
+        return acked == 0 ? 0 : latencySumNanos / acked;
+    }
+
+    public long getMaxLatencyNanos() {
+        return maxLatencyNanos;
+    }
+
+    /**
+     * @return Mean time from request to ack of commands as recorded, or 0 if none were acked.
+     */
+    public long getRecordedMeanLatencyNanos() {
+        return recordedAcked == 0 ? 0 : recordedLatencySumNanos / recordedAcked;
+    }
+
+    /**
+     * @return How many writes or completions differed from the recording.
+     */
+    public int getDivergences() {
+        return divergences;
+    }
+
+    /**
+     * @return Description of the first divergence, or null if none.
+     */
+    public String getFirstDivergence() {
+        return firstDivergence;
+    }
+
+    /**
+     * @return Metrics of the replayed link. Round trips are recorded as "with response".
+     */
+    public NovaLinkMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("%d events over %.3fms%s, %d GATT callbacks%n", events.size(),
+                getDurationNanos() / 1e6, truncated ? " (truncated)" : "", gattCallbacks));
+        for (NovaCompletionReason reason : NovaCompletionReason.values()) {
+            if (completions[reason.ordinal()] != 0) {
+                result.append(String.format("  %-14s %d%n", reason, completions[reason.ordinal()]));
+            }
+        }
+        result.append(String.format("latency: mean %.3fms (recorded %.3fms), max %.3fms%n",
+                getMeanLatencyNanos() / 1e6, getRecordedMeanLatencyNanos() / 1e6, maxLatencyNanos / 1e6));
+        result.append(divergences == 0 ? "replay matches recording"
+                : divergences + " divergence(s), first " + firstDivergence);
+        return result.toString();
+    }
+
+    // --------
+    // Decoding
+    // --------
+
+    private static long readVarint(DataInputStream data) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = data.read();
+            if (b == -1) {
+                throw new EOFException("Recording ends mid event");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static byte[] readFrame(DataInputStream data) throws IOException {
+        byte[] frame = new byte[(int) readVarint(data)];
+        data.readFully(frame);
+        return frame;
+    }
+
+    private static NovaFlashCommand unpack(int packed) {
+        return NovaFlashCommand.custom(NovaCommandQueue.warm(packed), NovaCommandQueue.cool(packed),
+                NovaCommandQueue.duration(packed));
+    }
+
+    /**
+     * Plays the link, as recorded.
+     */
+    private class ReplayHost implements NovaCommandEngine.Host {
+
+        @Override
+        public boolean isReady() {
+            return status == NovaLinkStatus.Ready;
+        }
+
+        @Override
+        public boolean isWriteHeld() {
+            return writeHeld;
+        }
+
+        @Override
+        public boolean write(byte[] frame) {
+            if (writeIndex >= expectedWrites.size()) {
+                diverged(clock.elapsedRealtimeNanos(), "replayed write of "
+                        + engine.getProtocol().describe(frame) + " not in recording");
+                return true;
+            }
+            Event expected = expectedWrites.get(writeIndex++);
+            byte[] recorded = (byte[]) expected.data;
+            if (!Arrays.equals(frame, recorded)) {
+                diverged(clock.elapsedRealtimeNanos(), "replayed write of " + engine.getProtocol().describe(frame)
+                        + ", recorded " + engine.getProtocol().describe(recorded));
+            }
+            return (expected.value & NovaSessionRecorder.WRITE_OK) != 0;
+        }
+
+        @Override
+        public void onFlashRequested() {
+            // No latency modes to manage.
+        }
+
+        @Override
+        public void onAck(long roundTripNanos) {
+            metrics.onAck(false, null, roundTripNanos);
+        }
+
+        @Override
+        public void onAckTimeout() {
+            // Counted as a Timeout completion.
+        }
+    }
+
+    /**
+     * Collects results of replayed commands, and checks them against those recorded.
+     */
+    private class ReplayCallback extends NovaResultCallback {
+
+        @Override
+        public void onResult(NovaCompletionResult result) {
+            NovaCompletionReason reason = result.getReason();
+            long now = clock.elapsedRealtimeNanos();
+            long latency = Math.max(0, now - result.getEnqueuedNanos());
+            completions[reason.ordinal()]++;
+            if (reason == NovaCompletionReason.Acknowledged) {
+                acked++;
+                latencySumNanos += latency;
+                maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+            }
+
+            if (completionIndex >= expectedCompletions.size()) {
+                diverged(now, "replayed completion " + reason + " not in recording");
+                return;
+            }
+            Event expected = expectedCompletions.get(completionIndex++);
+            NovaCompletionReason recorded = NovaCompletionReason.values()[expected.value];
+            if (reason != recorded) {
+                diverged(now, "replayed completion " + reason + ", recorded " + recorded);
+            } else if (Math.abs(latency - expected.number) > LATENCY_TOLERANCE_NANOS) {
+                diverged(now, String.format("replayed %s after %.3fms, recorded %.3fms",
+                        reason, latency / 1e6, expected.number / 1e6));
+            }
+        }
+    }
+
+}
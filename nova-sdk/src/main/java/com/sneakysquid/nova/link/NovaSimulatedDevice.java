@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+/**
+ * Software stand-in for a Nova's firmware, for exercising the wire protocols off-device.
+ * Feed it request frames as they'd be written to the request characteristic, and it returns
+ * the frame the device would notify on the response characteristic.
+ * <p/>
+ * It can play old firmware (text protocol only) or current firmware (text, plus the compact
+ * binary protocol once negotiated). Like real firmware, it ignores frames it can't parse.
+ * <p/>
+ * Delays within batches aren't waited out; the light state reflects the end of the batch.
+ * <p/>
+ * Not thread safe.
+ */
+public final class NovaSimulatedDevice {
+
+    private final boolean binaryCapable;
+
+    private int warmness;
+    private int coolness;
+    private int duration;
+    private int requests;
+    private long bytesReceived;
+
+    /**
+     * @param binaryCapable Whether to play firmware that supports the binary protocol.
+     */
+    public NovaSimulatedDevice(boolean binaryCapable) {
+        this.binaryCapable = binaryCapable;
+    }
+
+    /**
+     * Handle a request frame.
+     *
+     * @return Response frame, or null if the device wouldn't respond.
+     */
+    public byte[] onRequest(byte[] frame) {
+        bytesReceived += frame.length;
+        byte[] response = null;
+        if (frame.length > 0 && frame[0] == '(') {
+            response = onTextRequest(frame);
+        }
+        if (response == null) {
+            response = onBinaryRequest(frame); // Binary frames with id 0x28 start with '(' too.
+        }
+        if (response != null) {
+            requests++;
+        }
+        return response;
+    }
+
+    /**
+     * @return Whether the light is on (as of the last request).
+     */
+    public boolean isLit() {
+        return duration != 0 && (warmness != 0 || coolness != 0);
+    }
+
+    public int getWarmness() {
+        return warmness;
+    }
+
+    public int getCoolness() {
+        return coolness;
+    }
+
+    public int getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return Number of requests handled (not counting ignored frames).
+     */
+    public int getRequests() {
+        return requests;
+    }
+
+    /**
+     * @return Total size of all frames received, handled or not.
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    private byte[] onTextRequest(byte[] frame) {
+        // "(xx:P)", "(xx:O)", "(xx:V)" or "(xx:L,ww,cc,tttt)".
+        int length = frame.length;
+        if (length < 6 || frame[3] != ':' || frame[length - 1] != ')') {
+            return null;
+        }
+        int id = hex(frame, 1, 2);
+        if (id < 0) {
+            return null;
+        }
+
+        byte op = frame[4];
+        if (length == 6 && op == 'P') {
+            return textAck(id);
+        } else if (length == 6 && op == 'O') {
+            light(0, 0, 0);
+            return textAck(id);
+        } else if (length == 6 && op == 'V') {
+            if (!binaryCapable) {
+                return textAck(id); // Old firmware acks anything it doesn't understand.
+            }
+            return String.format("(%02X:V,02)", id).getBytes(NovaProtocol.ASCII);
+        } else if (length == 17 && op == 'L' && frame[5] == ',' && frame[8] == ',' && frame[11] == ',') {
+            int warm = hex(frame, 6, 2);
+            int cool = hex(frame, 9, 2);
+            int timeout = hex(frame, 12, 4);
+            if (warm < 0 || cool < 0 || timeout < 0) {
+                return null;
+            }
+            light(warm, cool, timeout);
+            return textAck(id);
+        }
+        return null;
+    }
+
+    private byte[] onBinaryRequest(byte[] frame) {
+        if (!binaryCapable || frame.length < 2) {
+            return null;
+        }
+        int i = 1;
+        int ops = 1;
+        if (frame[1] == NovaProtocol.OP_BATCH) {
+            if (frame.length < 3) {
+                return null;
+            }
+            ops = frame[2] & 0xFF;
+            i = 3;
+        }
+
+        // Validate before applying anything, so a bad batch has no effect.
+        int end = i;
+        for (int op = 0; op < ops; op++) {
+            end = skipOp(frame, end);
+            if (end < 0) {
+                return null;
+            }
+        }
+        if (end != frame.length) {
+            return null;
+        }
+
+        while (i < end) {
+            switch (frame[i]) {
+                case NovaProtocol.OP_OFF:
+                    light(0, 0, 0);
+                    break;
+                case NovaProtocol.OP_LIGHT:
+                    light(frame[i + 1] & 0xFF, frame[i + 2] & 0xFF, ((frame[i + 3] & 0xFF) << 8) | (frame[i + 4] & 0xFF));
+                    break;
+                default:
+                    // Ping, or delay.
+            }
+            i = skipOp(frame, i);
+        }
+        return new byte[]{frame[0], NovaProtocol.OP_ACK};
+    }
+
+    /**
+     * @return Index of the op after the one at i, or -1 if it's invalid.
+     */
+    private static int skipOp(byte[] frame, int i) {
+        if (i >= frame.length) {
+            return -1;
+        }
+        int next;
+        switch (frame[i]) {
+            case NovaProtocol.OP_PING:
+            case NovaProtocol.OP_OFF:
+                next = i + 1;
+                break;
+            case NovaProtocol.OP_LIGHT:
+                next = i + 5;
+                break;
+            case NovaProtocol.OP_DELAY:
+                next = i + 3;
+                break;
+            default:
+                return -1;
+        }
+        return next <= frame.length ? next : -1;
+    }
+
+    private void light(int warm, int cool, int timeout) {
+        warmness = warm;
+        coolness = cool;
+        duration = timeout;
+    }
+
+    private static byte[] textAck(int id) {
+        return String.format("(%02X:A)", id).getBytes(NovaProtocol.ASCII);
+    }
+
+    private static int hex(byte[] frame, int offset, int digits) {
+        int value = 0;
+        for (int i = offset; i < offset + digits; i++) {
+            int digit = Character.digit(frame[i], 16);
+            if (digit < 0) {
+                return -1;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Single threaded event loop for {@link SocketNovaLink}s: one Selector for all their sockets,
+ * plus the timers their command engines need. Plain Java, so links can run off-device, many to
+ * a thread.
+ * <p/>
+ * The thread that calls {@link #run()} (or {@link #runOnce(long)}) is the loop's thread. Links
+ * on this loop must only be used from it, and their callbacks are triggered on it. Use
+ * {@link #execute(Runnable)} to get there from other threads.
+ * <p/>
+ * <h2>Usage:</h2>
+ * <pre>
+ * Debug.setEnabled(false); // Android logging is not available off-device.
+ * NovaSocketLoop loop = new NovaSocketLoop();
+ * SocketNovaLink nova = new SocketNovaLink(loop, new InetSocketAddress("localhost", 7531));
+ * nova.enable();
+ * loop.run(); // Until loop.stop()
+ * </pre>
+ */
+public final class NovaSocketLoop {
+
+    /**
+     * Notified when a registered channel is ready.
+     */
+    interface Listener {
+        void onSelected(SelectionKey key);
+    }
+
+    private static final class Timer implements Comparable<Timer> {
+        final Runnable task;
+        final long when;
+        final long sequence; // Timers due at the same time run in the order posted.
+        Timer nextForTask; // Earlier posts of the same task.
+        boolean dead; // Cancelled, or already run.
+
+        Timer(Runnable task, long when, long sequence) {
+            this.task = task;
+            this.when = when;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Timer that) {
+            if (when != that.when) {
+                return when < that.when ? -1 : 1;
+            }
+            return sequence < that.sequence ? -1 : (sequence == that.sequence ? 0 : 1);
+        }
+    }
+
+    private final Selector selector;
+    private final long startNanos = System.nanoTime();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+    private final IdentityHashMap<Runnable, Timer> timersByTask = new IdentityHashMap<Runnable, Timer>();
+    private final ConcurrentLinkedQueue<Runnable> executeQueue = new ConcurrentLinkedQueue<Runnable>();
+    private final NovaClock clock = new NovaClock() {
+        @Override
+        long uptimeMillis() {
+            return NovaSocketLoop.this.uptimeMillis();
+        }
+
+        @Override
+        long elapsedRealtimeNanos() {
+            return System.nanoTime();
+        }
+
+        @Override
+        void postDelayed(Runnable task, long delayMillis) {
+            NovaSocketLoop.this.postDelayed(task, delayMillis);
+        }
+
+        @Override
+        void removeCallbacks(Runnable task) {
+            NovaSocketLoop.this.removeCallbacks(task);
+        }
+    };
+    private long timerSequence;
+    private volatile Thread thread;
+    private volatile boolean stopped;
+
+    public NovaSocketLoop() throws IOException {
+        selector = Selector.open();
+    }
+
+    /**
+     * Run until {@link #stop()}.
+     */
+    public void run() throws IOException {
+        while (!stopped) {
+            runOnce(Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Wait for and handle socket events and due timers, once.
+     *
+     * @param maxWaitMillis Longest to wait for something to happen. 0 doesn't wait at all.
+     */
+    public void runOnce(long maxWaitMillis) throws IOException {
+        thread = Thread.currentThread();
+
+        long wait = maxWaitMillis;
+        Timer next = timers.peek();
+        if (next != null) {
+            wait = Math.min(wait, Math.max(0, next.when - uptimeMillis()));
+        }
+        if (!executeQueue.isEmpty()) {
+            wait = 0;
+        }
+
+        if (wait == 0) {
+            selector.selectNow();
+        } else {
+            selector.select(wait == Long.MAX_VALUE ? 0 /* forever */ : wait);
+        }
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            if (key.isValid()) {
+                ((Listener) key.attachment()).onSelected(key);
+            }
+        }
+
+        Runnable task;
+        while ((task = executeQueue.poll()) != null) {
+            task.run();
+        }
+
+        runDueTimers();
+    }
+
+    /**
+     * Make {@link #run()} return. Any thread.
+     */
+    public void stop() {
+        stopped = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Run task on the loop's thread. Any thread.
+     */
+    public void execute(Runnable task) {
+        executeQueue.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * @return Millis since the loop was created. Deadlines for commands on this loop's links
+     * are in this base.
+     */
+    public long uptimeMillis() {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    /**
+     * @throws IllegalThreadStateException if the loop is running, and this isn't its thread.
+     */
+    void assertOnLoopThread() throws IllegalThreadStateException {
+        Thread loopThread = thread;
+        if (loopThread != null && loopThread != Thread.currentThread()) {
+            throw new IllegalThreadStateException("Not on loop thread (on thread "
+                    + Thread.currentThread().getName() + ")");
+        }
+    }
+
+    NovaClock getClock() {
+        return clock;
+    }
+
+    SelectionKey register(SelectableChannel channel, int ops, Listener listener) throws IOException {
+        return channel.register(selector, ops, listener);
+    }
+
+    private void postDelayed(Runnable task, long delayMillis) {
+        Timer timer = new Timer(task, uptimeMillis() + delayMillis, timerSequence++);
+        timer.nextForTask = liveOnly(timersByTask.get(task));
+        timersByTask.put(task, timer);
+        timers.add(timer);
+    }
+
+    /**
+     * Unlink timers that have run from a task's chain, so a task re-posted while an earlier post
+     * is pending (e.g. a repeating one) doesn't drag along every post it ever made.
+     *
+     * @return New head of the chain, or null if no posts are pending.
+     */
+    private static Timer liveOnly(Timer timer) {
+        while (timer != null && timer.dead) {
+            timer = timer.nextForTask;
+        }
+        for (Timer live = timer; live != null; live = live.nextForTask) {
+            Timer next = live.nextForTask;
+            while (next != null && next.dead) {
+                next = next.nextForTask;
+            }
+            live.nextForTask = next;
+        }
+        return timer;
+    }
+
+    private void removeCallbacks(Runnable task) {
+        // Dead timers are skipped when they come due, rather than searched for in the heap now.
+        for (Timer timer = timersByTask.remove(task); timer != null; timer = timer.nextForTask) {
+            timer.dead = true;
+        }
+    }
+
+    private void runDueTimers() {
+        long now = uptimeMillis();
+        Timer timer;
+        while ((timer = timers.peek()) != null && timer.when <= now) {
+            timers.poll();
+            if (timer.dead) {
+                continue;
+            }
+            timer.dead = true;
+            if (timersByTask.get(timer.task) == timer && timer.nextForTask == null) {
+                timersByTask.remove(timer.task);
+            }
+            timer.task.run();
+        }
+    }
+
+}
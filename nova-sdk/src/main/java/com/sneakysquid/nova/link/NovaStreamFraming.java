@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Carries Nova frames over a byte stream (e.g. TCP), where a BluetoothLE characteristic write
+ * would have kept them apart. Each frame is preceded by its length, as one unsigned byte.
+ * <p/>
+ * Frames are read into arrays cached by length, so steady state reading does no allocation.
+ * The arrays are reused, so a frame is only valid until the next frame of the same length is
+ * read.
+ */
+final class NovaStreamFraming {
+
+    static final int MAX_FRAME_LENGTH = 255;
+
+    private final byte[][] frames = new byte[MAX_FRAME_LENGTH + 1][];
+
+    /**
+     * Take the next whole frame from in, which is ready for reading (flipped).
+     *
+     * @return null if in doesn't hold a whole frame yet, in which case it's left as it was.
+     */
+    byte[] next(ByteBuffer in) {
+        if (!in.hasRemaining()) {
+            return null;
+        }
+        int length = in.get(in.position()) & 0xFF;
+        if (in.remaining() < 1 + length) {
+            return null;
+        }
+        byte[] frame = frames[length];
+        if (frame == null) {
+            frame = frames[length] = new byte[length];
+        }
+        in.get();
+        in.get(frame);
+        return frame;
+    }
+
+    /**
+     * Append frame to out, which is ready for writing.
+     *
+     * @return false if out doesn't have room, in which case it's unchanged.
+     */
+    static boolean put(ByteBuffer out, byte[] frame) {
+        if (frame.length > MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("frame must be at most " + MAX_FRAME_LENGTH
+                    + " bytes (length is " + frame.length + ")");
+        }
+        if (out.remaining() < 1 + frame.length) {
+            return false;
+        }
+        out.put((byte) frame.length);
+        out.put(frame);
+        return true;
+    }
+
+}
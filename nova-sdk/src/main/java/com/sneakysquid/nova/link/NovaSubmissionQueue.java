@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.sneakysquid.nova.link.NovaLink.NO_TOKEN;
+
+/**
+ * Commands handed to the link from other threads, waiting for the link's thread to pick them up.
+ * <p/>
+ * Lock-free, multi-producer single-consumer: any thread may {@link #offer(Submission)}, but only
+ * the link's thread may {@link #poll()}. Producers only contend on one atomic swap, and never
+ * wait for the consumer or each other. Submissions are the queue nodes themselves, so there's
+ * one allocation per command.
+ * <p/>
+ * Each command gets a token up front, from a range of its own, so it can be cancelled before
+ * the link's thread has seen it. Once the link's thread has handed the command to the engine, it
+ * {@link #resolve(long, long) records} the engine's token for it. Only the most recent
+ * {@link #RESOLVABLE} are kept, which is far more than can be queued at once.
+ * <p/>
+ * (After Dmitry Vyukov's intrusive MPSC node-based queue.)
+ */
+final class NovaSubmissionQueue {
+
+    static final byte BEGIN_FLASH = 0;
+    static final byte BEGIN_FLASH_SEQUENCE = 1;
+    static final byte END_FLASH = 2;
+    static final byte PING = 3;
+    static final byte CANCEL = 4;
+
+    static final int RESOLVABLE = 256; // Power of 2.
+    private static final long RESERVED = 1L << 62; // Set in reserved tokens. Engine tokens are far smaller.
+
+    /**
+     * A call to one of the link's command methods.
+     */
+    static final class Submission {
+
+        final byte kind;
+        NovaFlashCommand flashCmd;
+        NovaFlashSequence sequence;
+        final long deadline;
+        NovaCompletionCallback callback;
+        final long token; // Reserved for this command, or the one to cancel.
+
+        private volatile Submission next;
+
+        Submission(byte kind, NovaFlashCommand flashCmd, NovaFlashSequence sequence, long deadline,
+                   NovaCompletionCallback callback, long token) {
+            this.kind = kind;
+            this.flashCmd = flashCmd;
+            this.sequence = sequence;
+            this.deadline = deadline;
+            this.callback = callback;
+            this.token = token;
+        }
+
+        /**
+         * Drop references once handled, as the last node polled stays in the queue.
+         */
+        void clear() {
+            flashCmd = null;
+            sequence = null;
+            callback = null;
+        }
+    }
+
+    private final AtomicReference<Submission> head; // Most recently offered. Producers swap in here.
+    private Submission tail; // Last polled (or stub). Consumer only.
+
+    private final AtomicLong reserved = new AtomicLong();
+    private final long[] resolvedTokens = new long[RESOLVABLE]; // Consumer only, as are engineTokens.
+    private final long[] engineTokens = new long[RESOLVABLE];
+
+    NovaSubmissionQueue() {
+        Submission stub = new Submission(PING, null, null, 0, null, NO_TOKEN);
+        head = new AtomicReference<Submission>(stub);
+        tail = stub;
+    }
+
+    /**
+     * Add a submission. Any thread.
+     */
+    void offer(Submission submission) {
+        Submission previous = head.getAndSet(submission);
+        // Volatile write publishes the submission's fields to the consumer. Until it happens,
+        // the consumer sees the queue end at previous, so the producer must make sure the
+        // consumer looks again after offer() returns.
+        previous.next = submission;
+    }
+
+    /**
+     * Take the oldest submission. Link's thread only.
+     *
+     * @return null if empty, or a submission is only part way through being offered.
+     */
+    Submission poll() {
+        Submission next = tail.next;
+        if (next == null) {
+            return null;
+        }
+        tail = next;
+        return next;
+    }
+
+    /**
+     * Token for a command about to be offered. Any thread.
+     */
+    long reserveToken() {
+        return RESERVED | reserved.getAndIncrement();
+    }
+
+    static boolean isReserved(long token) {
+        return token >= 0 && (token & RESERVED) != 0;
+    }
+
+    /**
+     * The engine accepted a reserved token's command as engineToken. Link's thread only.
+     */
+    void resolve(long token, long engineToken) {
+        int index = (int) token & (RESOLVABLE - 1);
+        resolvedTokens[index] = token;
+        engineTokens[index] = engineToken;
+    }
+
+    /**
+     * Link's thread only.
+     *
+     * @return Engine token for a reserved token, {@link NovaLink#NO_TOKEN} if its command isn't
+     * known (not yet polled, or too long ago), or token itself if it wasn't reserved.
+     */
+    long engineToken(long token) {
+        if (!isReserved(token)) {
+            return token;
+        }
+        int index = (int) token & (RESOLVABLE - 1);
+        return resolvedTokens[index] == token ? engineTokens[index] : NO_TOKEN;
+    }
+
+}
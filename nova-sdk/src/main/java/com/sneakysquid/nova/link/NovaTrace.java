@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+import android.os.Trace;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Marks the link's work in system traces (systrace/Perfetto), so flash latency can be lined up
+ * with camera events on one timeline.
+ * <p/>
+ * Sections (on the link's thread) cover callback dispatch. Async events cover spans that cross
+ * callbacks: scan windows, each connection phase, and each command from request to completion.
+ * Async events need Android 10 onwards, or the hidden equivalents on earlier versions, found by
+ * reflection; where neither is available, only sections are traced.
+ * <p/>
+ * Off by default, in which case each trace point costs a static field read.
+ */
+public final class NovaTrace {
+
+    private static volatile boolean enabled = false;
+
+    private NovaTrace() {
+    }
+
+    /**
+     * Turn tracing on or off (default off). Traces are only recorded while a system trace is
+     * being captured anyway, but this avoids even asking.
+     */
+    public static void setEnabled(boolean enabled) {
+        NovaTrace.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Begin a section on the current thread.
+     *
+     * @return Whether a section was begun, in which case it must be ended on the same thread
+     * with {@link #end()}.
+     */
+    static boolean begin(String name) {
+        if (!enabled) {
+            return false;
+        }
+        Trace.beginSection(name);
+        return true;
+    }
+
+    /**
+     * End the section most recently begun on the current thread.
+     */
+    static void end() {
+        Trace.endSection();
+    }
+
+    /**
+     * Begin an async event. Must be ended with the same name and cookie, from any callback.
+     */
+    static void beginAsync(String name, int cookie) {
+        if (enabled && Async.BEGIN != null) {
+            Async.invoke(Async.BEGIN, name, cookie);
+        }
+    }
+
+    static void endAsync(String name, int cookie) {
+        if (enabled && Async.END != null) {
+            Async.invoke(Async.END, name, cookie);
+        }
+    }
+
+    /**
+     * Async trace methods, looked up on first use rather than when NovaTrace is loaded, so links
+     * that never trace don't touch android.os.Trace (e.g. off-device, see SocketNovaLink).
+     */
+    private static final class Async {
+
+        static final long TRACE_TAG_APP = 1L << 12; // Trace.TRACE_TAG_APP, hidden before Android 10.
+
+        static final Method BEGIN;
+        static final Method END;
+        static final boolean TAGGED; // Hidden methods take a leading trace tag.
+
+        static {
+            Method begin = null;
+            Method end = null;
+            boolean tagged = false;
+            try {
+                begin = Trace.class.getMethod("beginAsyncSection", String.class, int.class);
+                end = Trace.class.getMethod("endAsyncSection", String.class, int.class);
+            } catch (NoSuchMethodException e) {
+                try {
+                    begin = Trace.class.getMethod("asyncTraceBegin", long.class, String.class, int.class);
+                    end = Trace.class.getMethod("asyncTraceEnd", long.class, String.class, int.class);
+                    tagged = true;
+                } catch (NoSuchMethodException e2) {
+                    begin = null;
+                    end = null;
+                }
+            }
+            BEGIN = begin;
+            END = end;
+            TAGGED = tagged;
+        }
+
+        static void invoke(Method method, String name, int cookie) {
+            try {
+                if (TAGGED) {
+                    method.invoke(null, TRACE_TAG_APP, name, cookie);
+                } else {
+                    method.invoke(null, name, cookie);
+                }
+            } catch (IllegalAccessException e) {
+                // Tracing is best effort.
+            } catch (InvocationTargetException e) {
+                // Tracing is best effort.
+            }
+        }
+    }
+
+}
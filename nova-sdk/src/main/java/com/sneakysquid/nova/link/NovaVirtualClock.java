@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * {@link NovaClock} whose time only moves when told to, for replaying and simulating links
+ * deterministically. Timers run, in due order, as time is advanced past them.
+ * <p/>
+ * Not thread safe.
+ */
+final class NovaVirtualClock extends NovaClock {
+
+    private static class Timer implements Comparable<Timer> {
+        final Runnable task;
+        final long dueNanos;
+        final long order; // Tie-break, so timers due together run in the order posted.
+
+        Timer(Runnable task, long dueNanos, long order) {
+            this.task = task;
+            this.dueNanos = dueNanos;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(Timer that) {
+            if (dueNanos != that.dueNanos) {
+                return dueNanos < that.dueNanos ? -1 : 1;
+            }
+            return order < that.order ? -1 : order == that.order ? 0 : 1;
+        }
+    }
+
+    private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+    private final long startUptimeMillis;
+    private final long startNanos;
+    private long nowNanos;
+    private long posted;
+
+    /**
+     * @param startUptimeMillis {@link #uptimeMillis()} at the start.
+     * @param startNanos        {@link #elapsedRealtimeNanos()} at the start.
+     */
+    NovaVirtualClock(long startUptimeMillis, long startNanos) {
+        this.startUptimeMillis = startUptimeMillis;
+        this.startNanos = startNanos;
+        this.nowNanos = startNanos;
+    }
+
+    @Override
+    long uptimeMillis() {
+        return startUptimeMillis + (nowNanos - startNanos) / 1000000;
+    }
+
+    @Override
+    long elapsedRealtimeNanos() {
+        return nowNanos;
+    }
+
+    @Override
+    void postDelayed(Runnable task, long delayMillis) {
+        timers.add(new Timer(task, nowNanos + Math.max(0, delayMillis) * 1000000, posted++));
+    }
+
+    @Override
+    void removeCallbacks(Runnable task) {
+        for (Iterator<Timer> i = timers.iterator(); i.hasNext(); ) {
+            if (i.next().task == task) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Move time forward to nanos (in {@link #elapsedRealtimeNanos()} base), running timers due
+     * by then at their due times. Timers they post are run too, if due in time.
+     */
+    void advanceTo(long nanos) {
+        Timer next;
+        while ((next = timers.peek()) != null && next.dueNanos <= nanos) {
+            timers.poll();
+            nowNanos = Math.max(nowNanos, next.dueNanos);
+            next.task.run();
+        }
+        nowNanos = Math.max(nowNanos, nanos);
+    }
+
+    /**
+     * @return When the next timer is due, or -1 if none are pending.
+     */
+    long nextDueNanos() {
+        Timer next = timers.peek();
+        return next == null ? -1 : next.dueNanos;
+    }
+
+}
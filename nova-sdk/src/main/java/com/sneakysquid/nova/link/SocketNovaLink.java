@@ -0,0 +1,491 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Set;
+
+import static com.sneakysquid.nova.link.Debug.debug;
+
+/**
+ * Implementation of {@link NovaLink} that talks to a Nova emulator (see
+ * {@link NovaEmulatorServer}) over a non-blocking TCP socket, rather than BluetoothLE. It runs
+ * the same command engine and protocols as {@link BluetoothLENovaLink}, so it's for soak and
+ * load testing the SDK off-device, with many links to a {@link NovaSocketLoop}.
+ * <p/>
+ * Frames are as written to the BluetoothLE characteristics, each preceded by a length byte.
+ * Buffers are allocated up front, so steady state sending and receiving does no allocation.
+ * <p/>
+ * Unlike BluetoothLENovaLink, it's confined to its loop's thread: all methods must be called
+ * there, and callbacks are triggered there. Command deadlines are in
+ * {@link NovaSocketLoop#uptimeMillis()} base. There's no connection interval, so latency modes
+ * have no effect.
+ *
+ * @see NovaSocketLoop
+ */
+public class SocketNovaLink implements NovaLink {
+
+    private static final int RECONNECT_DELAY = 1000; // How long after a failed or lost connection to try again, in millis.
+    private static final int NEGOTIATE_TIMEOUT = 1000; // How long to wait for a capability reply, in millis.
+    private static final int BUFFER_SIZE = 4096;
+
+    private final NovaSocketLoop loop;
+    private final SocketAddress address;
+    private final Set<NovaLinkStatusCallback> linkStatusCallbacks = new HashSet<NovaLinkStatusCallback>();
+    private final NovaLinkMetrics metrics = new NovaLinkMetrics();
+    private final NovaCommandEngine engine;
+    private final NovaStreamFraming framing = new NovaStreamFraming();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE); // Ready for writing to.
+    private final NovaSocketLoop.Listener selectListener = new NovaSocketLoop.Listener() {
+        @Override
+        public void onSelected(SelectionKey key) {
+            SocketNovaLink.this.onSelected(key);
+        }
+    };
+    private final Runnable reconnectTimer = new Runnable() {
+        @Override
+        public void run() {
+            if (enabled && channel == null) {
+                connect();
+            }
+        }
+    };
+    private final Runnable negotiateTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (negotiating) {
+                debug("no capability reply, assuming text protocol");
+                negotiatedProtocol = NovaProtocol.Text;
+                onLinkReady(NovaProtocol.Text);
+            }
+        }
+    };
+    private final Runnable disconnectTask = new Runnable() {
+        @Override
+        public void run() {
+            disconnect();
+        }
+    };
+
+    private boolean enabled = false;
+    private boolean binaryProtocolEnabled = true;
+    private boolean negotiating = false;
+    private NovaProtocol negotiatedProtocol; // Emulator's reply, or Text if it gave none. Not asked again then.
+    private NovaLinkStatus status = NovaLinkStatus.Disabled;
+    private SocketChannel channel;
+    private SelectionKey key;
+
+    /**
+     * @param loop    Event loop to run on.
+     * @param address Where the emulator is listening.
+     */
+    public SocketNovaLink(NovaSocketLoop loop, SocketAddress address) {
+        this.loop = loop;
+        this.address = address;
+        this.engine = new NovaCommandEngine(new CommandHost(), loop.getClock(), metrics);
+    }
+
+    @Override
+    public NovaLinkStatus getStatus() {
+        return status;
+    }
+
+    private void setStatus(NovaLinkStatus newStatus) {
+        if (newStatus != status) {
+            status = newStatus;
+            // Snapshot, as callbacks may register/unregister callbacks.
+            NovaLinkStatusCallback[] callbacks =
+                    linkStatusCallbacks.toArray(new NovaLinkStatusCallback[linkStatusCallbacks.size()]);
+            for (NovaLinkStatusCallback linkStatusCallback : callbacks) {
+                linkStatusCallback.onNovaLinkStatusChange(newStatus);
+            }
+        }
+    }
+
+    @Override
+    public void registerStatusCallback(NovaLinkStatusCallback callback) {
+        loop.assertOnLoopThread();
+
+        linkStatusCallbacks.add(callback);
+    }
+
+    @Override
+    public void unregisterStatusCallback(NovaLinkStatusCallback callback) {
+        loop.assertOnLoopThread();
+
+        linkStatusCallbacks.remove(callback);
+    }
+
+    /**
+     * @see BluetoothLENovaLink#setQueueLimit(int, NovaQueuePolicy)
+     */
+    public void setQueueLimit(int limit, NovaQueuePolicy policy) {
+        loop.assertOnLoopThread();
+
+        engine.setQueueLimit(limit, policy);
+    }
+
+    /**
+     * @see BluetoothLENovaLink#setQueueListener(NovaQueueListener)
+     */
+    public void setQueueListener(NovaQueueListener listener) {
+        loop.assertOnLoopThread();
+
+        engine.setQueueListener(listener);
+    }
+
+    /**
+     * @see BluetoothLENovaLink#setBinaryProtocolEnabled(boolean)
+     */
+    public void setBinaryProtocolEnabled(boolean enabled) {
+        loop.assertOnLoopThread();
+
+        this.binaryProtocolEnabled = enabled;
+    }
+
+    /**
+     * @return Whether the current connection uses the compact binary protocol.
+     */
+    public boolean isBinaryProtocol() {
+        return engine.getProtocol() == NovaProtocol.Binary;
+    }
+
+    /**
+     * Live statistics for this link. Ack round trips are recorded as "with response".
+     */
+    public NovaLinkMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return Clock whose timers run on this link's thread, e.g. for {@link NovaFuture} timeouts.
+     */
+    NovaClock getClock() {
+        return loop.getClock();
+    }
+
+    @Override
+    public void enable() {
+        loop.assertOnLoopThread();
+
+        if (enabled) {
+            return;
+        }
+        enabled = true;
+        setStatus(NovaLinkStatus.Idle);
+        connect();
+    }
+
+    @Override
+    public void disable() {
+        loop.assertOnLoopThread();
+
+        if (!enabled) {
+            return;
+        }
+        enabled = false;
+        loop.getClock().removeCallbacks(reconnectTimer);
+        disconnect();
+        setStatus(NovaLinkStatus.Disabled);
+    }
+
+    @Override
+    public void refresh() {
+        loop.assertOnLoopThread();
+
+        if (enabled) {
+            disable();
+            enable();
+        }
+    }
+
+    /**
+     * No connection interval to tune over a socket, so ignored.
+     */
+    @Override
+    public void setLatencyMode(NovaLatencyMode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("mode must not be null");
+        }
+    }
+
+    /**
+     * No connection interval to tune over a socket, so ignored.
+     */
+    @Override
+    public void setPreviewActive(boolean active) {
+    }
+
+
+    // -------------------
+    // Socket connection
+    // -------------------
+
+    private void connect() {
+        debug("connect() " + address);
+        readBuffer.clear();
+        writeBuffer.clear();
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true); // Frames are tiny, and latency is the point.
+            if (channel.connect(address)) {
+                key = loop.register(channel, SelectionKey.OP_READ, selectListener);
+                onConnected();
+            } else {
+                key = loop.register(channel, SelectionKey.OP_CONNECT, selectListener);
+                setStatus(NovaLinkStatus.Connecting);
+            }
+        } catch (IOException e) {
+            debug("failed to connect: " + e);
+            disconnect();
+        }
+    }
+
+    private void onConnected() {
+        debug("connected to " + address);
+        setStatus(NovaLinkStatus.Connecting);
+
+        if (!binaryProtocolEnabled || negotiatedProtocol == NovaProtocol.Text) {
+            onLinkReady(NovaProtocol.Text);
+            return;
+        }
+
+        // Same capability ping as over BluetoothLE.
+        negotiating = true;
+        loop.getClock().postDelayed(negotiateTimeout, NEGOTIATE_TIMEOUT);
+        if (!writeFrame(NovaProtocol.capabilityFrame())) {
+            disconnect();
+        }
+    }
+
+    private void onLinkReady(NovaProtocol protocol) {
+        negotiating = false;
+        loop.getClock().removeCallbacks(negotiateTimeout);
+        engine.setProtocol(protocol);
+        debug("using %s protocol", protocol);
+        setStatus(NovaLinkStatus.Ready);
+    }
+
+    private void onSelected(SelectionKey key) {
+        try {
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+                onConnected();
+                return;
+            }
+            if (key.isWritable()) {
+                flush();
+            }
+            if (key.isReadable()) {
+                read();
+            }
+        } catch (IOException e) {
+            debug("connection failed: " + e);
+            disconnect();
+        }
+    }
+
+    private void read() throws IOException {
+        if (channel.read(readBuffer) < 0) {
+            debug("connection closed by emulator");
+            disconnect();
+            return;
+        }
+
+        readBuffer.flip();
+        byte[] frame;
+        while (channel != null && (frame = framing.next(readBuffer)) != null) {
+            if (negotiating) {
+                NovaProtocol negotiated = NovaProtocol.parseCapability(frame);
+                if (negotiated != null) {
+                    negotiatedProtocol = negotiated;
+                    onLinkReady(negotiated);
+                }
+            } else if (!engine.onResponse(frame)) {
+                disconnect();
+            }
+        }
+        if (channel != null) {
+            readBuffer.compact();
+        }
+    }
+
+    /**
+     * Queue frame for writing, and write as much as the socket will take.
+     *
+     * @return false if it couldn't be written.
+     */
+    private boolean writeFrame(byte[] frame) {
+        if (!NovaStreamFraming.put(writeBuffer, frame)) {
+            debug("write buffer full");
+            return false;
+        }
+        try {
+            flush();
+            return true;
+        } catch (IOException e) {
+            debug("failed to write: " + e);
+            return false;
+        }
+    }
+
+    private void flush() throws IOException {
+        writeBuffer.flip();
+        channel.write(writeBuffer);
+        boolean more = writeBuffer.hasRemaining();
+        writeBuffer.compact();
+        key.interestOps(more ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    private void disconnect() {
+        loop.getClock().removeCallbacks(disconnectTask);
+        negotiating = false;
+        loop.getClock().removeCallbacks(negotiateTimeout);
+
+        if (channel != null) {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                debug("failed to close: " + e);
+            }
+            channel = null;
+            key = null;
+        }
+
+        if (!enabled) {
+            return;
+        }
+
+        // Not Ready any more, so callbacks below can't queue further requests.
+        setStatus(NovaLinkStatus.Idle);
+        engine.failAll(NovaCompletionReason.Disconnected);
+
+        loop.getClock().removeCallbacks(reconnectTimer);
+        loop.getClock().postDelayed(reconnectTimer, RECONNECT_DELAY);
+    }
+
+
+    // -----------------------
+    // Send commands to device
+    // -----------------------
+
+    @Override
+    public long beginFlash(NovaFlashCommand flashCmd, NovaCompletionCallback callback) {
+        return beginFlash(flashCmd, NO_DEADLINE, callback);
+    }
+
+    @Override
+    public long beginFlash(NovaFlashCommand flashCmd, long deadline, NovaCompletionCallback callback) {
+        loop.assertOnLoopThread();
+
+        return engine.beginFlash(flashCmd, deadline, callback);
+    }
+
+    @Override
+    public long beginFlash(NovaFlashCommand flashCmd) {
+        return beginFlash(flashCmd, null);
+    }
+
+    @Override
+    public long beginFlashSequence(NovaFlashSequence sequence, NovaCompletionCallback callback) {
+        loop.assertOnLoopThread();
+
+        return engine.beginFlashSequence(sequence, callback);
+    }
+
+    @Override
+    public long endFlash(NovaCompletionCallback callback) {
+        return endFlash(NO_DEADLINE, callback);
+    }
+
+    @Override
+    public long endFlash(long deadline, NovaCompletionCallback callback) {
+        loop.assertOnLoopThread();
+
+        return engine.endFlash(deadline, callback);
+    }
+
+    @Override
+    public long endFlash() {
+        return endFlash(null);
+    }
+
+    @Override
+    public long ping(NovaCompletionCallback callback) {
+        loop.assertOnLoopThread();
+
+        return engine.ping(callback);
+    }
+
+    @Override
+    public boolean cancel(long token) {
+        loop.assertOnLoopThread();
+
+        return engine.cancel(token);
+    }
+
+    /**
+     * Connects the command engine to the socket.
+     */
+    private class CommandHost implements NovaCommandEngine.Host {
+
+        @Override
+        public boolean isReady() {
+            return status == NovaLinkStatus.Ready;
+        }
+
+        @Override
+        public boolean isWriteHeld() {
+            return false;
+        }
+
+        @Override
+        public boolean write(byte[] frame) {
+            if (!writeFrame(frame)) {
+                // Can't disconnect here, in the middle of the engine sending.
+                loop.getClock().postDelayed(disconnectTask, 0);
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void onFlashRequested() {
+            // No latency modes.
+        }
+
+        @Override
+        public void onAck(long roundTripNanos) {
+            metrics.onAck(false, null, roundTripNanos);
+        }
+
+        @Override
+        public void onAckTimeout() {
+            // Nothing to do.
+        }
+    }
+
+}
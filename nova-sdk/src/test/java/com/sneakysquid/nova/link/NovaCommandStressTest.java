@@ -0,0 +1,506 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static com.sneakysquid.nova.link.NovaLink.NO_DEADLINE;
+import static com.sneakysquid.nova.link.NovaLink.NO_TOKEN;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Randomized stress run of the command/ack state machine ({@link NovaCommandEngine}), checking
+ * invariants as it goes. Each seed drives one engine under a {@link NovaVirtualClock} through a
+ * random interleaving of requests, cancels, acks (on time, late, duplicated, with the wrong id,
+ * or lost), write failures, held writes, disconnects and reconnects.
+ * <p/>
+ * Invariants:
+ * <ul>
+ * <li>Every callback fires exactly once, and no command is lost: all have completed once the
+ * link is disconnected and the engine is idle.</li>
+ * <li>Nothing stalls: while the link is Ready and writes aren't held, the engine never has cmds
+ * queued without one of its timers pending (or an ack awaited) to move them along.</li>
+ * <li>Only one cmd is written at a time: nothing is written while awaiting an ack.</li>
+ * <li>Ack timeouts only fire for the cmd in flight, and only once it's had the full
+ * {@link NovaCommandEngine#ACK_TIMEOUT} (e.g. not left over from an earlier cmd).</li>
+ * <li>An ack arriving after its cmd timed out is ignored, rather than taken as a protocol error
+ * that drops the link.</li>
+ * <li>Results are consistent: timestamps in order, no cmd written after its deadline, no flash
+ * dropped to make room for an off or ping, and {@link NovaLink#cancel(long)} succeeds exactly
+ * for cmds not yet completed.</li>
+ * <li>Flashes complete within a latency bound: at most a full queue ahead, each step taking at
+ * most the ack timeout plus its delay. Held writes don't count against this: as with the link's
+ * RSSI reads, a hold gives way as soon as a flash or off is requested.</li>
+ * </ul>
+ * Each seed is a test case of its own. A failing seed replays exactly, so can be debugged by
+ * running that seed alone.
+ */
+@RunWith(Parameterized.class)
+public final class NovaCommandStressTest {
+
+    private static final int SEEDS = 200;
+    private static final int STEPS = 2000; // Random actions per seed.
+
+    private static final long MILLIS = 1000000; // In nanos.
+    private static final long ACK_TIMEOUT_NANOS = NovaCommandEngine.ACK_TIMEOUT * MILLIS;
+    private static final int MAX_SEQUENCE_STEPS = 3;
+    private static final int MAX_STEP_DELAY = 100;
+    private static final long FLASH_LATENCY_BOUND_NANOS = (long) NovaCommandEngine.QUEUE_CAPACITY
+            * MAX_SEQUENCE_STEPS * (NovaCommandEngine.ACK_TIMEOUT + MAX_STEP_DELAY) * MILLIS;
+
+    /**
+     * An invariant was broken.
+     */
+    private static class Violation extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Violation(String message) {
+            super(message);
+        }
+    }
+
+    private final Random random;
+    private final NovaVirtualClock clock = new NovaVirtualClock(0, 0); // So uptimeMillis = nanos / MILLIS.
+    private final EngineClock engineClock = new EngineClock();
+    private final NovaSimulatedDevice device = new NovaSimulatedDevice(true);
+    private final NovaCommandEngine engine;
+    private final List<Tracker> commands = new ArrayList<Tracker>();
+
+    private boolean ready;
+    private boolean reconnecting;
+    private boolean held;
+    private boolean inFlight;
+    private long lastWriteNanos;
+    private int connection; // Bumped on disconnect, so responses from earlier connections are dropped.
+    private boolean requestingFlash; // Lane of the cmd being requested.
+
+    @Parameterized.Parameters(name = "seed {0}")
+    public static Collection<Object[]> seeds() {
+        List<Object[]> seeds = new ArrayList<Object[]>();
+        for (long seed = 1; seed <= SEEDS; seed++) {
+            seeds.add(new Object[]{seed});
+        }
+        return seeds;
+    }
+
+    public NovaCommandStressTest(long seed) {
+        this.random = new Random(seed);
+        this.engine = new NovaCommandEngine(new StressHost(), engineClock, new NovaLinkMetrics());
+    }
+
+    @Test
+    public void invariantsHold() {
+        Debug.setEnabled(false); // Android logging is not available off-device.
+        assertNull(run(STEPS));
+    }
+
+    /**
+     * Run steps random actions, then disconnect and check everything completed.
+     *
+     * @return Description of the first broken invariant, or null if none.
+     */
+    private String run(int steps) {
+        try {
+            connect();
+            for (int step = 0; step < steps; step++) {
+                act();
+                checkNotStalled();
+                advance(random.nextInt(300) * MILLIS);
+            }
+
+            // Quiesce: nothing should survive a disconnect, or be left in the engine.
+            disconnect();
+            advance(10 * ACK_TIMEOUT_NANOS);
+            if (!engine.isIdle()) {
+                throw new Violation("engine not idle after disconnect");
+            }
+            for (Tracker command : commands) {
+                if (command.calls != 1) {
+                    throw new Violation(command + " callback fired " + command.calls + " times");
+                }
+            }
+            return null;
+        } catch (Violation e) {
+            return String.format("at %.3fms: %s", clock.elapsedRealtimeNanos() / 1e6, e.getMessage());
+        } catch (RuntimeException e) {
+            return String.format("at %.3fms: engine threw %s", clock.elapsedRealtimeNanos() / 1e6, e);
+        }
+    }
+
+    private void act() {
+        int action = random.nextInt(100);
+        if (action < 30) {
+            NovaFlashCommand flash = randomFlash();
+            long deadline = random.nextInt(4) == 0 ? clock.uptimeMillis() + random.nextInt(3000) : NO_DEADLINE;
+            Tracker tracker = track("flash " + flash, true, deadline);
+            tracker.token = engine.beginFlash(flash, deadline, tracker);
+        } else if (action < 40) {
+            long deadline = random.nextInt(4) == 0 ? clock.uptimeMillis() + random.nextInt(3000) : NO_DEADLINE;
+            Tracker tracker = track("off", false, deadline);
+            tracker.token = engine.endFlash(deadline, tracker);
+        } else if (action < 50) {
+            Tracker tracker = track("ping", false, NO_DEADLINE);
+            tracker.token = engine.ping(tracker);
+        } else if (action < 60) {
+            NovaFlashSequence sequence = NovaFlashSequence.start(randomFlash());
+            int steps = 1 + random.nextInt(MAX_SEQUENCE_STEPS);
+            for (int step = 1; step < steps; step++) {
+                sequence = sequence.thenAfter(random.nextInt(MAX_STEP_DELAY + 1), randomFlash());
+            }
+            Tracker tracker = track("sequence " + sequence, true, NO_DEADLINE);
+            tracker.token = engine.beginFlashSequence(sequence, tracker);
+        } else if (action < 70) {
+            if (!commands.isEmpty()) {
+                cancel(commands.get(commands.size() - 1 - random.nextInt(Math.min(8, commands.size()))));
+            }
+        } else if (action < 72) {
+            if (ready) {
+                disconnect();
+            }
+        } else if (action < 76) {
+            if (!held && engine.isIdle()) {
+                hold(random.nextInt(500)); // As the link does for RSSI reads, only when idle.
+            }
+        } else if (action < 78) {
+            engine.setQueueLimit(1 + random.nextInt(NovaCommandEngine.QUEUE_CAPACITY - 1),
+                    NovaQueuePolicy.values()[random.nextInt(NovaQueuePolicy.values().length)]);
+        }
+        // Otherwise, just let time pass.
+    }
+
+    /**
+     * Advance time by nanos, checking between timers that the engine hasn't stalled.
+     */
+    private void advance(long nanos) {
+        long until = clock.elapsedRealtimeNanos() + nanos;
+        long next;
+        while ((next = clock.nextDueNanos()) != -1 && next <= until) {
+            clock.advanceTo(next);
+            checkNotStalled();
+        }
+        clock.advanceTo(until);
+    }
+
+    private void checkNotStalled() {
+        if (ready && !held && !engine.isIdle() && !engineClock.hasPending()) {
+            throw new Violation("engine stalled with cmds queued");
+        }
+    }
+
+    private NovaFlashCommand randomFlash() {
+        return NovaFlashCommand.custom(random.nextInt(256), random.nextInt(256), 1 + random.nextInt(2000));
+    }
+
+    private Tracker track(String description, boolean flashLane, long deadline) {
+        Tracker tracker = new Tracker(commands.size() + " " + description, flashLane, deadline);
+        requestingFlash = flashLane;
+        commands.add(tracker);
+        return tracker;
+    }
+
+    private void cancel(Tracker command) {
+        boolean expected = command.token != NO_TOKEN && command.calls == 0;
+        if (engine.cancel(command.token) != expected) {
+            throw new Violation("cancel(" + command + ") returned " + !expected);
+        }
+        if (expected && (command.calls != 1 || command.reason != NovaCompletionReason.Cancelled)) {
+            throw new Violation(command + " not completed as Cancelled on cancel()");
+        }
+    }
+
+    private void connect() {
+        ready = true;
+        reconnecting = false;
+        engine.setProtocol(random.nextBoolean() ? NovaProtocol.Binary : NovaProtocol.Text);
+    }
+
+    /**
+     * As the link does: not Ready, then fail everything.
+     */
+    private void disconnect() {
+        ready = false;
+        connection++;
+        engine.failAll(NovaCompletionReason.Disconnected);
+        inFlight = false;
+        if (!reconnecting) {
+            reconnecting = true;
+            clock.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    connect();
+                }
+            }, random.nextInt(2000));
+        }
+    }
+
+    private final Runnable endHold = new Runnable() {
+        @Override
+        public void run() {
+            held = false;
+            engine.processSendQueue();
+        }
+    };
+
+    private void hold(int millis) {
+        held = true;
+        clock.postDelayed(endHold, millis);
+    }
+
+    /**
+     * Deliver response to the engine after delay, unless the connection has gone by then.
+     */
+    private void respond(byte[] response, long delayMillis) {
+        respond(response, delayMillis, false);
+    }
+
+    /**
+     * @param late Whether it arrives after its cmd has timed out, so must be ignored quietly.
+     */
+    private void respond(final byte[] response, long delayMillis, final boolean late) {
+        final int sentOn = connection;
+        clock.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (sentOn == connection && ready && !engine.onResponse(response)) {
+                    if (late) {
+                        throw new Violation("late ack taken as a protocol error");
+                    }
+                    disconnect(); // As the link does on a protocol error.
+                }
+            }
+        }, delayMillis);
+    }
+
+    /**
+     * Engine's view of the clock, tracking which of its timers are pending. Each task is posted
+     * via one wrapper, so removing it still removes every post, as with Handler.
+     */
+    private class EngineClock extends NovaClock {
+
+        private final Map<Runnable, Runnable> wrappers = new IdentityHashMap<Runnable, Runnable>();
+        private final Map<Runnable, Integer> pending = new IdentityHashMap<Runnable, Integer>();
+
+        @Override
+        long uptimeMillis() {
+            return clock.uptimeMillis();
+        }
+
+        @Override
+        long elapsedRealtimeNanos() {
+            return clock.elapsedRealtimeNanos();
+        }
+
+        @Override
+        void postDelayed(final Runnable task, long delayMillis) {
+            Runnable wrapper = wrappers.get(task);
+            if (wrapper == null) {
+                wrapper = new Runnable() {
+                    @Override
+                    public void run() {
+                        int count = pending.remove(task);
+                        if (count > 1) {
+                            pending.put(task, count - 1);
+                        }
+                        task.run();
+                    }
+                };
+                wrappers.put(task, wrapper);
+            }
+            Integer count = pending.get(task);
+            pending.put(task, count == null ? 1 : count + 1);
+            clock.postDelayed(wrapper, delayMillis);
+        }
+
+        @Override
+        void removeCallbacks(Runnable task) {
+            Runnable wrapper = wrappers.get(task);
+            if (wrapper != null) {
+                pending.remove(task);
+                clock.removeCallbacks(wrapper);
+            }
+        }
+
+        boolean hasPending() {
+            return !pending.isEmpty();
+        }
+    }
+
+    /**
+     * Plays the link and the radio: acks arrive on time mostly, but not always.
+     */
+    private class StressHost implements NovaCommandEngine.Host {
+
+        @Override
+        public boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public boolean isWriteHeld() {
+            return held;
+        }
+
+        @Override
+        public boolean write(byte[] frame) {
+            if (!ready) {
+                throw new Violation("wrote while not ready");
+            }
+            if (held) {
+                throw new Violation("wrote while held");
+            }
+            if (inFlight) {
+                throw new Violation("wrote while awaiting ack");
+            }
+            if (random.nextInt(50) == 0) {
+                return false;
+            }
+            inFlight = true;
+            lastWriteNanos = clock.elapsedRealtimeNanos();
+
+            byte[] request = frame.clone(); // The engine reuses frames.
+            byte[] response = device.onRequest(request);
+            int fate = random.nextInt(100);
+            if (fate < 8) {
+                // Lost.
+            } else if (fate < 13) {
+                respond(response, NovaCommandEngine.ACK_TIMEOUT + 1 + random.nextInt(1500), true); // Late.
+            } else if (fate < 18) {
+                respond(response, 10 + random.nextInt(150));
+                respond(response, 10 + random.nextInt(500)); // Duplicate.
+            } else if (fate < 21) {
+                NovaProtocol protocol = engine.getProtocol();
+                protocol.patchRequestId(request, (protocol.parseAck(response) + 100 + random.nextInt(50)) % 255);
+                respond(device.onRequest(request), 10 + random.nextInt(150)); // Wrong id.
+            } else {
+                respond(response, 10 + random.nextInt(150));
+            }
+            return true;
+        }
+
+        @Override
+        public void onFlashRequested() {
+            if (held) {
+                // As the link abandons an RSSI read. The engine sends once this returns.
+                held = false;
+                clock.removeCallbacks(endHold);
+            }
+        }
+
+        @Override
+        public void onAck(long roundTripNanos) {
+            if (!inFlight) {
+                throw new Violation("ack with nothing in flight");
+            }
+            if (roundTripNanos < 0 || roundTripNanos >= ACK_TIMEOUT_NANOS + MILLIS) {
+                throw new Violation("ack round trip " + roundTripNanos / 1e6 + "ms");
+            }
+            inFlight = false;
+        }
+
+        @Override
+        public void onAckTimeout() {
+            if (!inFlight) {
+                throw new Violation("ack timeout with nothing in flight");
+            }
+            long waited = clock.elapsedRealtimeNanos() - lastWriteNanos;
+            if (waited < ACK_TIMEOUT_NANOS) {
+                throw new Violation("ack timeout after only " + waited / 1e6 + "ms");
+            }
+            inFlight = false;
+        }
+    }
+
+    /**
+     * Callback for one command, checking its result.
+     */
+    private class Tracker extends NovaResultCallback {
+
+        final String description;
+        final boolean flashLane;
+        final long deadline;
+        final boolean readyWhenRequested = ready;
+        long token = NO_TOKEN;
+        int calls;
+        NovaCompletionReason reason;
+
+        Tracker(String description, boolean flashLane, long deadline) {
+            this.description = description;
+            this.flashLane = flashLane;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void onResult(NovaCompletionResult result) {
+            calls++;
+            reason = result.getReason();
+            if (calls > 1) {
+                throw new Violation(this + " callback fired again");
+            }
+
+            long now = clock.elapsedRealtimeNanos();
+            long enqueued = result.getEnqueuedNanos();
+            long written = result.getWrittenNanos();
+            if (reason == NovaCompletionReason.NotReady && readyWhenRequested) {
+                throw new Violation(this + " NotReady when ready");
+            }
+            if (reason == NovaCompletionReason.Expired && deadline == NO_DEADLINE) {
+                throw new Violation(this + " Expired without deadline");
+            }
+            if (reason == NovaCompletionReason.Dropped && flashLane && !requestingFlash) {
+                throw new Violation(this + " dropped for a less urgent cmd");
+            }
+            boolean wasWritten = result.getRequestId() != -1;
+            if (!wasWritten && (result.getAttempts() != 0 || written != 0
+                    || reason == NovaCompletionReason.Acknowledged || reason == NovaCompletionReason.Timeout)) {
+                throw new Violation(this + " inconsistent unwritten result " + result);
+            }
+            if (wasWritten && (written < enqueued || written > now)) {
+                throw new Violation(this + " written out of order " + result);
+            }
+            if (result.getAttempts() > 1 || (reason == NovaCompletionReason.Acknowledged
+                    || reason == NovaCompletionReason.Timeout) && result.getAttempts() != 1) {
+                // Nothing is retried, and sequences count writes per step.
+                throw new Violation(this + " attempts " + result);
+            }
+            if (reason == NovaCompletionReason.Acknowledged && result.getAckedNanos() != now) {
+                throw new Violation(this + " acked time " + result);
+            }
+            if (deadline != NO_DEADLINE && wasWritten && written / MILLIS > deadline) {
+                throw new Violation(this + " written after deadline " + deadline);
+            }
+            long waited = now - enqueued;
+            if (flashLane && waited > FLASH_LATENCY_BOUND_NANOS) {
+                throw new Violation(this + " took " + waited / 1e6 + "ms");
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "cmd " + description;
+        }
+    }
+
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+import java.io.IOException;
+
+/**
+ * Runs a {@link NovaEmulatorServer} standalone, for bench rigs:
+ * <pre>
+ * java com.sneakysquid.nova.link.NovaEmulatorServerTool [port] [--text-only]
+ * </pre>
+ */
+public final class NovaEmulatorServerTool {
+
+    private NovaEmulatorServerTool() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = NovaEmulatorServer.DEFAULT_PORT;
+        boolean binaryCapable = true;
+        for (String arg : args) {
+            if (arg.equals("--text-only")) {
+                binaryCapable = false;
+            } else {
+                port = Integer.parseInt(arg);
+            }
+        }
+
+        Debug.setEnabled(false); // Android logging is not available off-device.
+        NovaSocketLoop loop = new NovaSocketLoop();
+        NovaEmulatorServer emulator = new NovaEmulatorServer(loop, port, binaryCapable);
+        System.out.println("Nova emulator listening on port " + emulator.getPort()
+                + (binaryCapable ? "" : " (text protocol only)"));
+        loop.run();
+    }
+
+}
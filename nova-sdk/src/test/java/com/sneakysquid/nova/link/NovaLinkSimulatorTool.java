@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+/**
+ * Runs a {@link NovaLinkSimulator} sweep over shot rates, printed as CSV:
+ * <pre>
+ * java com.sneakysquid.nova.link.NovaLinkSimulatorTool [devices] [rttMillis] [ackLoss] [hours]
+ * </pre>
+ */
+public final class NovaLinkSimulatorTool {
+
+    private NovaLinkSimulatorTool() {
+    }
+
+    public static void main(String[] args) {
+        int devices = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int rttMillis = args.length > 1 ? Integer.parseInt(args[1]) : 80;
+        double ackLoss = args.length > 2 ? Double.parseDouble(args[2]) : 0.05;
+        double hours = args.length > 3 ? Double.parseDouble(args[3]) : 1;
+
+        Debug.setEnabled(false); // Android logging is not available off-device.
+        System.out.println(NovaLinkSimulator.CSV_HEADER);
+        double[] rates = {1, 2, 5, 8, 10, 12, 15, 20};
+        for (double rate : rates) {
+            NovaLinkSimulator simulator = new NovaLinkSimulator();
+            simulator.setDevices(devices);
+            simulator.setShotsPerSecond(rate);
+            simulator.setRoundTrip(rttMillis, Math.min(rttMillis, 20));
+            simulator.setAckLoss(ackLoss);
+            simulator.run(Math.round(hours * 3600000));
+            System.out.println(simulator.toCsv());
+        }
+    }
+
+}
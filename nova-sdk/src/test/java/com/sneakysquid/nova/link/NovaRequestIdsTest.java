@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NovaRequestIdsTest {
+
+    private static final long MILLIS = 1000000; // In nanos.
+    private static final long QUARANTINE_MILLIS = 1000;
+
+    @Test
+    public void handsOutIdsInTurnSkippingCapabilityId() {
+        NovaRequestIds ids = new NovaRequestIds(QUARANTINE_MILLIS);
+        int expected = 1;
+        for (int i = 0; i < 3 * NovaRequestIds.COUNT; i++) {
+            int id = ids.allocate(0);
+            assertEquals(expected, id);
+            ids.release(id);
+            expected = (expected + 1) % NovaRequestIds.COUNT;
+        }
+    }
+
+    @Test
+    public void exhaustedUntilQuarantineEnds() {
+        NovaRequestIds ids = new NovaRequestIds(QUARANTINE_MILLIS);
+        for (int i = 0; i < NovaRequestIds.COUNT; i++) {
+            ids.quarantine(ids.allocate(0), 5);
+        }
+
+        assertEquals(NovaRequestIds.NONE, ids.allocate(0));
+        assertFalse(ids.isAvailable(0));
+        assertEquals(NovaRequestIds.COUNT, ids.getQuarantined());
+        assertEquals(5 + QUARANTINE_MILLIS * MILLIS, ids.nextReleaseNanos());
+
+        long later = ids.nextReleaseNanos();
+        assertTrue(ids.isAvailable(later));
+        assertNotEquals(NovaRequestIds.NONE, ids.allocate(later));
+        assertEquals(0, ids.getQuarantined());
+    }
+
+    @Test
+    public void quarantinedIdSkippedOnWrap() {
+        NovaRequestIds ids = new NovaRequestIds(QUARANTINE_MILLIS);
+        int unacked = ids.allocate(0);
+        ids.quarantine(unacked, 0);
+
+        for (int i = 0; i < 2 * NovaRequestIds.COUNT; i++) {
+            int id = ids.allocate(0);
+            assertNotEquals(unacked, id);
+            ids.release(id);
+        }
+    }
+
+    @Test
+    public void lateAckReleasesQuarantinedId() {
+        NovaRequestIds ids = new NovaRequestIds(QUARANTINE_MILLIS);
+        int unacked = ids.allocate(0);
+        assertFalse(ids.isQuarantined(unacked));
+        ids.quarantine(unacked, 0);
+        assertTrue(ids.isQuarantined(unacked));
+
+        ids.releaseQuarantined(unacked);
+
+        assertFalse(ids.isQuarantined(unacked));
+        assertEquals(0, ids.getQuarantined());
+        assertEquals(-1, ids.nextReleaseNanos());
+        for (int i = 1; i < NovaRequestIds.COUNT; i++) {
+            ids.allocate(0);
+        }
+        assertEquals(unacked, ids.allocate(0)); // Reused on wrap, well before quarantine ends.
+    }
+
+    @Test
+    public void resetFreesQuarantinedIds() {
+        NovaRequestIds ids = new NovaRequestIds(QUARANTINE_MILLIS);
+        for (int i = 0; i < NovaRequestIds.COUNT; i++) {
+            ids.quarantine(ids.allocate(0), 0);
+        }
+
+        ids.reset();
+
+        assertEquals(0, ids.getQuarantined());
+        assertEquals(-1, ids.nextReleaseNanos());
+        assertTrue(ids.isAvailable(0));
+    }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NovaSessionReplayerTest {
+
+    private static final long MILLIS = 1000000; // In nanos.
+
+    @Test
+    public void replayMatchesRecording() throws IOException {
+        Debug.setEnabled(false); // Android logging is not available off-device.
+
+        NovaSessionReplayer replayer = new NovaSessionReplayer(new ByteArrayInputStream(recordSession(1)));
+        replayer.run();
+
+        assertFalse(replayer.isTruncated());
+        assertEquals(0, replayer.getDivergences());
+        assertNull(replayer.getFirstDivergence());
+        assertTrue(replayer.getCompletions(NovaCompletionReason.Acknowledged) > 0);
+        assertTrue(replayer.getCompletions(NovaCompletionReason.Timeout) > 0);
+    }
+
+    @Test
+    public void rejectsWhatIsNotARecording() {
+        try {
+            new NovaSessionReplayer(new ByteArrayInputStream("not a recording".getBytes()));
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    /**
+     * Drive an engine against a simulated device over a lossy radio, recording it as the link
+     * would.
+     */
+    private static byte[] recordSession(long seed) throws IOException {
+        final Random random = new Random(seed);
+        final NovaVirtualClock clock = new NovaVirtualClock(5000, 123456789L);
+        final NovaSessionRecorder recorder = new NovaSessionRecorder(1 << 20);
+        final NovaSimulatedDevice device = new NovaSimulatedDevice(true);
+        final boolean[] ready = new boolean[1];
+        final NovaCommandEngine[] engine = new NovaCommandEngine[1];
+        engine[0] = new NovaCommandEngine(new NovaCommandEngine.Host() {
+            @Override
+            public boolean isReady() {
+                return ready[0];
+            }
+
+            @Override
+            public boolean isWriteHeld() {
+                return false;
+            }
+
+            @Override
+            public boolean write(byte[] frame) {
+                final byte[] response = device.onRequest(frame.clone());
+                if (random.nextInt(10) != 0) { // Otherwise lost.
+                    clock.postDelayed(new Runnable() {
+                        @Override
+                        public void run() {
+                            recorder.onNotify(response);
+                            engine[0].onResponse(response);
+                        }
+                    }, 20 + random.nextInt(60));
+                }
+                return true;
+            }
+
+            @Override
+            public void onFlashRequested() {
+            }
+
+            @Override
+            public void onAck(long roundTripNanos) {
+            }
+
+            @Override
+            public void onAckTimeout() {
+            }
+        }, clock, new NovaLinkMetrics());
+        engine[0].setRecorder(recorder);
+
+        recorder.onStatus(NovaLinkStatus.Connecting);
+        clock.advanceTo(clock.elapsedRealtimeNanos() + 5 * MILLIS);
+        ready[0] = true;
+        recorder.onStatus(NovaLinkStatus.Ready);
+        engine[0].setProtocol(NovaProtocol.Binary);
+        engine[0].setQueueLimit(4, NovaQueuePolicy.DropOldest);
+
+        for (int i = 0; i < 400; i++) {
+            clock.advanceTo(clock.elapsedRealtimeNanos() + random.nextInt(80) * MILLIS);
+            switch (random.nextInt(5)) {
+                case 0:
+                    NovaFlashCommand flash = NovaFlashCommand.custom(random.nextInt(256), random.nextInt(256), 100);
+                    engine[0].beginFlash(flash, clock.uptimeMillis() + 30, null);
+                    break;
+                case 1:
+                    engine[0].endFlash(NovaLink.NO_DEADLINE, null);
+                    break;
+                case 2:
+                    engine[0].beginFlashSequence(NovaFlashSequence.withPreFlash(
+                            NovaFlashCommand.gentle(), 40, NovaFlashCommand.bright()), null);
+                    break;
+                case 3:
+                    long token = engine[0].ping(null);
+                    if (random.nextBoolean()) {
+                        engine[0].cancel(token);
+                    }
+                    break;
+                default:
+                    engine[0].beginFlash(NovaFlashCommand.warm(), NovaLink.NO_DEADLINE, null);
+            }
+        }
+
+        clock.advanceTo(clock.elapsedRealtimeNanos() + 3000 * MILLIS);
+        ready[0] = false;
+        recorder.onStatus(NovaLinkStatus.Idle);
+        engine[0].failAll(NovaCompletionReason.Disconnected);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        recorder.writeTo(out);
+        return out.toByteArray();
+    }
+
+}
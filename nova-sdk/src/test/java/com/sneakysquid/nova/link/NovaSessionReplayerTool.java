@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Replays a recording file with {@link NovaSessionReplayer}:
+ * <pre>
+ * java com.sneakysquid.nova.link.NovaSessionReplayerTool session.nvrc
+ * </pre>
+ * which prints a report and exits with status 1 if the replay diverged.
+ */
+public final class NovaSessionReplayerTool {
+
+    private NovaSessionReplayerTool() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: NovaSessionReplayerTool <recording>");
+            System.exit(2);
+        }
+
+        Debug.setEnabled(false); // Android logging is not available off-device.
+        NovaSessionReplayer replayer;
+        FileInputStream in = new FileInputStream(args[0]);
+        try {
+            replayer = new NovaSessionReplayer(in);
+        } finally {
+            in.close();
+        }
+        replayer.run();
+        System.out.println(replayer);
+        System.exit(replayer.getDivergences() == 0 ? 0 : 1);
+    }
+
+}
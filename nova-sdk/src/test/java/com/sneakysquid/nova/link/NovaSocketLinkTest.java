@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2013-2014 Sneaky Squid LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sneakysquid.nova.link;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NovaSocketLinkTest {
+
+    private static final long TIMEOUT = 5000; // Longest to run the loop waiting for something, in millis.
+
+    @Test
+    public void commandsAcknowledgedByEmulator() throws IOException {
+        Debug.setEnabled(false); // Android logging is not available off-device.
+        NovaSocketLoop loop = new NovaSocketLoop();
+        NovaEmulatorServer server = new NovaEmulatorServer(loop, 0, true);
+        SocketNovaLink link = new SocketNovaLink(loop, new InetSocketAddress("localhost", server.getPort()));
+        try {
+            connect(loop, link);
+
+            Result flash = new Result();
+            Result off = new Result();
+            Result ping = new Result();
+            link.beginFlash(NovaFlashCommand.warm(), flash);
+            link.endFlash(off);
+            link.ping(ping);
+            runUntilDone(loop, flash, off, ping);
+
+            assertEquals(NovaCompletionReason.Acknowledged, flash.reason);
+            assertEquals(NovaCompletionReason.Acknowledged, off.reason);
+            assertEquals(NovaCompletionReason.Acknowledged, ping.reason);
+            assertEquals(4, server.getRequests()); // Including the capability ping.
+        } finally {
+            link.disable();
+            server.close();
+        }
+    }
+
+    @Test
+    public void closingEmulatorFailsPendingCommands() throws IOException {
+        Debug.setEnabled(false); // Android logging is not available off-device.
+        NovaSocketLoop loop = new NovaSocketLoop();
+        NovaEmulatorServer server = new NovaEmulatorServer(loop, 0, true);
+        SocketNovaLink link = new SocketNovaLink(loop, new InetSocketAddress("localhost", server.getPort()));
+        try {
+            connect(loop, link);
+
+            // Written, but the emulator won't get to answer before it goes.
+            Result flash = new Result();
+            Result ping = new Result();
+            link.beginFlash(NovaFlashCommand.warm(), flash);
+            link.ping(ping);
+            server.close();
+            runUntilDone(loop, flash, ping);
+
+            assertEquals(NovaCompletionReason.Disconnected, flash.reason);
+            assertEquals(NovaCompletionReason.Disconnected, ping.reason);
+            assertEquals(0, server.getConnections());
+        } finally {
+            link.disable();
+        }
+    }
+
+    @Test
+    public void cancellingChainCancelsCommand() throws IOException {
+        Debug.setEnabled(false); // Android logging is not available off-device.
+        NovaSocketLoop loop = new NovaSocketLoop();
+        NovaEmulatorServer server = new NovaEmulatorServer(loop, 0, true);
+        CancelCountingLink link = new CancelCountingLink(loop, new InetSocketAddress("localhost", server.getPort()));
+        NovaAsyncLink async = new NovaAsyncLink(link);
+        try {
+            connect(loop, link);
+
+            // Timed out while waiting on the capture: the capture is cancelled. The timer runs
+            // on the loop, as this thread has no Looper.
+            final NovaFuture<String> capture = new NovaFuture<String>();
+            NovaFuture<NovaCompletionResult> flash = async.beginFlash(NovaFlashCommand.warm());
+            NovaFuture<String> shot = flash.then(new NovaFuture.Continuation<NovaCompletionResult, String>() {
+                @Override
+                public NovaFuture<String> then(NovaCompletionResult lit) {
+                    return capture;
+                }
+            }).withTimeout(100);
+            runUntilDone(loop, shot);
+            assertTrue(flash.isSuccessful());
+            assertTrue(shot.getError() instanceof TimeoutException);
+            assertTrue(capture.getError() instanceof CancellationException);
+
+            // Cancelled while the flash is on the air: the command is cancelled too.
+            NovaFuture<NovaCompletionResult> flash2 = async.beginFlash(NovaFlashCommand.warm());
+            NovaFuture<String> shot2 = flash2.then(new NovaFuture.Continuation<NovaCompletionResult, String>() {
+                @Override
+                public NovaFuture<String> then(NovaCompletionResult lit) {
+                    fail("Step run after cancel");
+                    return null;
+                }
+            });
+            shot2.cancel();
+            assertTrue(flash2.getError() instanceof CancellationException);
+            assertEquals(1, link.cancelled);
+        } finally {
+            link.disable();
+            server.close();
+        }
+    }
+
+    private static void connect(NovaSocketLoop loop, SocketNovaLink link) throws IOException {
+        link.enable();
+        long giveUp = loop.uptimeMillis() + TIMEOUT;
+        while (link.getStatus() != NovaLinkStatus.Ready) {
+            if (loop.uptimeMillis() > giveUp) {
+                fail("Link not Ready (status " + link.getStatus() + ")");
+            }
+            loop.runOnce(10);
+        }
+    }
+
+    private static void runUntilDone(NovaSocketLoop loop, Result... results) throws IOException {
+        long giveUp = loop.uptimeMillis() + TIMEOUT;
+        for (Result result : results) {
+            while (result.reason == null) {
+                if (loop.uptimeMillis() > giveUp) {
+                    fail("Command not completed");
+                }
+                loop.runOnce(10);
+            }
+        }
+    }
+
+    private static void runUntilDone(NovaSocketLoop loop, NovaFuture<?> future) throws IOException {
+        long giveUp = loop.uptimeMillis() + TIMEOUT;
+        while (!future.isDone()) {
+            if (loop.uptimeMillis() > giveUp) {
+                fail("Future not completed");
+            }
+            loop.runOnce(10);
+        }
+    }
+
+    private static class CancelCountingLink extends SocketNovaLink {
+        int cancelled;
+
+        CancelCountingLink(NovaSocketLoop loop, InetSocketAddress address) {
+            super(loop, address);
+        }
+
+        @Override
+        public boolean cancel(long token) {
+            boolean found = super.cancel(token);
+            if (found) {
+                cancelled++;
+            }
+            return found;
+        }
+    }
+
+    private static class Result extends NovaResultCallback {
+        NovaCompletionReason reason;
+
+        @Override
+        public void onResult(NovaCompletionResult result) {
+            reason = result.getReason();
+        }
+    }
+
+}